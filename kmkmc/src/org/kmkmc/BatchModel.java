@@ -0,0 +1,341 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Estimates the driving state of many vehicles at once, for classifying a
+ * whole fleet on each tick. Its results are exactly those of one
+ * {@link Model} per vehicle given the same samples.
+ *
+ * Rather than an object per vehicle, the statistics of all vehicles are kept
+ * in parallel primitive arrays, one set per channel: the window ring buffers
+ * end to end, and the count, mean and M2 of each window side by side. Each
+ * tick updates one channel of every vehicle in a single tight loop over
+ * those arrays, using the same floating-point operations in the same order
+ * as {@link RollingStatistics}, so the results are bit for bit the same. The
+ * minimum and maximum are found by scanning the window when they're needed,
+ * which for the short windows the rules use costs less than maintaining
+ * deques for every vehicle.
+ *
+ * Only rules that test window statistics are supported, since the long-term
+ * statistics of {@link MultiResolutionStatistics} aren't kept. This class
+ * isn't thread-safe.
+ */
+public class BatchModel {
+  private static final int CHANNELS = Model.Channel.values().length;
+  private static final Model.State[] STATES = Model.State.values();
+
+  private final int vehicles;
+  private final StateRules rules;
+  private final int featureCount;
+
+  // Per channel: window length, and per vehicle, the window and its statistics.
+  private final int[] window = new int[CHANNELS];
+  private final double[][] samples = new double[CHANNELS][];
+  private final int[][] count = new int[CHANNELS][];
+  private final long[][] added = new long[CHANNELS][];
+  private final int[][] sinceRecompute = new int[CHANNELS][];
+  private final double[][] mean = new double[CHANNELS][];
+  private final double[][] m2 = new double[CHANNELS][];
+
+  /** The samples of the next tick, one column per channel, filled in by the caller. */
+  private final double[][] input = new double[CHANNELS][];
+
+  // Per vehicle: state ordinal and time it was entered; and the features, vehicle-major.
+  private final int[] state;
+  private final long[] stateTime;
+  private final double[] features;
+
+  /** Constructs a model of a specified number of vehicles, with the default windows and rules. */
+  public BatchModel(int vehicles) {
+    this(vehicles, StateRules.getDefault());
+  }
+
+  /**
+   * Constructs a model of a specified number of vehicles, with the default windows.
+   *
+   * @throws IllegalArgumentException if the rules test other than window statistics
+   */
+  public BatchModel(int vehicles, StateRules rules) {
+    this.vehicles = vehicles;
+    this.rules = rules;
+    featureCount = rules.getFeatureCount();
+    for (int f = 0; f < featureCount; f++) {
+      if (rules.getFeatureResolution(f) != StateRules.Resolution.WINDOW)
+        throw new IllegalArgumentException("BatchModel supports only window statistics, not "
+            + rules.getFeatureChannel(f) + "@" + rules.getFeatureResolution(f));
+    }
+    for (Model.Channel channel : Model.Channel.values()) {
+      int c = channel.ordinal();
+      window[c] = channel.defaultWindow();
+      samples[c] = new double[vehicles * window[c]];
+      count[c] = new int[vehicles];
+      added[c] = new long[vehicles];
+      sinceRecompute[c] = new int[vehicles];
+      mean[c] = new double[vehicles];
+      m2[c] = new double[vehicles];
+      input[c] = new double[vehicles];
+    }
+    state = new int[vehicles];
+    stateTime = new long[vehicles];
+    features = new double[vehicles * featureCount];
+  }
+
+  /** Gets the number of vehicles modeled. */
+  public int getVehicleCount() {
+    return vehicles;
+  }
+
+  /**
+   * Gets the column of samples of a channel for the next tick, indexed by
+   * vehicle, for the caller to fill in.
+   */
+  public double[] input(Model.Channel channel) {
+    return input[channel.ordinal()];
+  }
+
+  /** Fills in the next tick's samples of a vehicle from a snapshot, as Model does. */
+  public void set(int vehicle, VehicleSnapshot snapshot) {
+    input[Model.Channel.ACCELERATOR.ordinal()][vehicle] = snapshot.getAcceleratorPedalRatio();
+    input[Model.Channel.BRAKE.ordinal()][vehicle] = snapshot.isBrakeOn() ? 1 : 0;
+    input[Model.Channel.LATERAL_ACCELERATION.ordinal()][vehicle] = snapshot.getLateralAcceleration();
+    input[Model.Channel.LONGITUDINAL_ACCELERATION.ordinal()][vehicle] = snapshot.getLongitudinalAcceleration();
+    input[Model.Channel.SPEED.ordinal()][vehicle] = snapshot.getSpeed();
+    input[Model.Channel.YAW_RATE.ordinal()][vehicle] = Math.abs(snapshot.getYawRate());
+  }
+
+  /**
+   * Adds the input samples of every vehicle to its statistics, and updates
+   * every vehicle's state.
+   *
+   * @param times the time of each vehicle's samples, in milliseconds
+   */
+  public void update(long[] times) {
+    for (int c = 0; c < CHANNELS; c++)
+      addSamples(c);
+    extractFeatures();
+    for (int v = 0; v < vehicles; v++) {
+      int next = rules.next(state[v], times[v] - stateTime[v], features, v * featureCount);
+      if (next != state[v]) {
+        state[v] = next;
+        stateTime[v] = times[v];
+      }
+    }
+  }
+
+  /** Adds one channel's input samples to every vehicle's window. */
+  private void addSamples(int c) {
+    int w = window[c];
+    double[] x = input[c], ring = samples[c], mean = this.mean[c], m2 = this.m2[c];
+    int[] count = this.count[c], since = sinceRecompute[c];
+    long[] added = this.added[c];
+    int recomputeInterval = Math.max(RollingStatistics.RECOMPUTE_INTERVAL, w);
+    for (int v = 0; v < vehicles; v++) {
+      double sample = x[v];
+      int slot = v * w + (int) (added[v] % w);
+      int n = count[v];
+      if (n == w) {
+        double old = ring[slot], oldMean = mean[v], oldM2 = m2[v];
+        mean[v] = oldMean + (sample - old) / n;
+        m2[v] = oldM2 + (sample - old) * (sample - mean[v] + old - oldMean);
+        if (m2[v] < oldM2 * RollingStatistics.CANCELLATION)
+          since[v] = Integer.MAX_VALUE - 1;
+      } else {
+        count[v] = ++n;
+        double delta = sample - mean[v];
+        mean[v] += delta / n;
+        m2[v] += delta * (sample - mean[v]);
+      }
+      ring[slot] = sample;
+      added[v]++;
+      if (++since[v] >= recomputeInterval)
+        recompute(c, v);
+    }
+  }
+
+  /** Recomputes a window's mean and M2 exactly, as RollingStatistics does. */
+  private void recompute(int c, int v) {
+    sinceRecompute[c][v] = 0;
+    int n = count[c][v], base = v * window[c];
+    double[] ring = samples[c];
+    double sum = 0;
+    for (int i = 0; i < n; i++)
+      sum += ring[base + i];
+    double mean = sum / n;
+    double sumSquares = 0;
+    for (int i = 0; i < n; i++) {
+      double d = ring[base + i] - mean;
+      sumSquares += d * d;
+    }
+    this.mean[c][v] = mean;
+    m2[c][v] = sumSquares;
+  }
+
+  private void extractFeatures() {
+    for (int v = 0; v < vehicles; v++) {
+      int offset = v * featureCount;
+      for (int f = 0; f < featureCount; f++) {
+        int c = rules.getFeatureChannel(f).ordinal();
+        switch (rules.getFeatureStatistic(f)) {
+        case COUNT: features[offset + f] = count[c][v]; break;
+        case MEAN: features[offset + f] = getMean(c, v); break;
+        case MIN: features[offset + f] = getMin(c, v); break;
+        case MAX: features[offset + f] = getMax(c, v); break;
+        case SD: features[offset + f] = getStandardDeviation(c, v); break;
+        case FULL: features[offset + f] = count[c][v] == window[c] ? 1 : 0; break;
+        default: features[offset + f] = getLast(c, v); break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the smallest sample in a window, scanning from oldest to newest so
+   * that among equal samples (such as 0 and -0) the newest wins, as it does
+   * in RollingStatistics.
+   */
+  private double getMin(int c, int v) {
+    int n = count[c][v], w = window[c], base = v * w;
+    if (n == 0)
+      return Double.NaN;
+    int oldest = n < w ? 0 : (int) (added[c][v] % w);
+    double min = Double.POSITIVE_INFINITY;
+    for (int i = 0, slot = oldest; i < n; i++, slot = slot + 1 == w ? 0 : slot + 1) {
+      double sample = samples[c][base + slot];
+      if (sample <= min)
+        min = sample;
+    }
+    return min;
+  }
+
+  /** Finds the largest sample in a window, the newest of equal samples. */
+  private double getMax(int c, int v) {
+    int n = count[c][v], w = window[c], base = v * w;
+    if (n == 0)
+      return Double.NaN;
+    int oldest = n < w ? 0 : (int) (added[c][v] % w);
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0, slot = oldest; i < n; i++, slot = slot + 1 == w ? 0 : slot + 1) {
+      double sample = samples[c][base + slot];
+      if (sample >= max)
+        max = sample;
+    }
+    return max;
+  }
+
+  private double getLast(int c, int v) {
+    return count[c][v] == 0 ? Double.NaN : samples[c][v * window[c] + (int) ((added[c][v] - 1) % window[c])];
+  }
+
+  private double getMean(int c, int v) {
+    if (count[c][v] > 0) {
+      double min = getMin(c, v);
+      if (min == getMax(c, v))
+        return min;
+    }
+    return mean[c][v];
+  }
+
+  private double getStandardDeviation(int c, int v) {
+    int n = count[c][v];
+    if (n < 2 || getMin(c, v) == getMax(c, v))
+      return 0;
+    return Math.sqrt(Math.max(m2[c][v], 0) / (n - 1));
+  }
+
+  /** Gets the estimated state of a vehicle. */
+  public Model.State getState(int vehicle) { return STATES[state[vehicle]]; }
+  /** Gets the number of samples in a vehicle's window of a channel. */
+  public int getCount(Model.Channel channel, int vehicle) { return count[channel.ordinal()][vehicle]; }
+  /** Gets the mean of a vehicle's window of a channel, as RollingStatistics.getMean() would. */
+  public double getMean(Model.Channel channel, int vehicle) { return getMean(channel.ordinal(), vehicle); }
+  /** Gets the smallest sample in a vehicle's window of a channel. */
+  public double getMin(Model.Channel channel, int vehicle) { return getMin(channel.ordinal(), vehicle); }
+  /** Gets the largest sample in a vehicle's window of a channel. */
+  public double getMax(Model.Channel channel, int vehicle) { return getMax(channel.ordinal(), vehicle); }
+  /** Gets the standard deviation of a vehicle's window of a channel. */
+  public double getStandardDeviation(Model.Channel channel, int vehicle) {
+    return getStandardDeviation(channel.ordinal(), vehicle);
+  }
+
+  /** Resets every vehicle's statistics and state. */
+  public void reset() {
+    for (int c = 0; c < CHANNELS; c++) {
+      Arrays.fill(count[c], 0);
+      Arrays.fill(added[c], 0);
+      Arrays.fill(sinceRecompute[c], 0);
+      Arrays.fill(mean[c], 0);
+      Arrays.fill(m2[c], 0);
+    }
+    Arrays.fill(state, Model.State.STARTUP.ordinal());
+    Arrays.fill(stateTime, 0);
+  }
+
+  /**
+   * Unit test. Drives a fleet of synthetic vehicles through a BatchModel and
+   * through one Model each, checking that every state and statistic is
+   * identical, then compares their speed on 10,000 vehicles. The vehicles
+   * drive 100 courses from random starting points, and each tick's
+   * snapshots are made as they're needed, so the test fits in a default heap.
+   */
+  public static void main(String[] args) {
+    int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int ticks = 600;
+    int courses = 100;
+    DataSenderServer.SyntheticScenario[] scenarios = new DataSenderServer.SyntheticScenario[courses];
+    for (int i = 0; i < courses; i++)
+      scenarios[i] = new DataSenderServer.SyntheticScenario(i);
+    Random random = new Random(1);
+    int[] offsets = new int[vehicles];
+    for (int v = 0; v < vehicles; v++)
+      offsets[v] = random.nextInt(1800);
+    VehicleSnapshot[] snapshots = new VehicleSnapshot[vehicles];
+    CarInfo info = new CarInfo();
+    GeographicPoint location = new GeographicPoint(0, 0);
+    long[] times = new long[vehicles];
+
+    BatchModel batch = new BatchModel(vehicles);
+    Model[] models = new Model[vehicles];
+    for (int v = 0; v < vehicles; v++)
+      models[v] = new Model(null);
+    long batchNanos = 0, modelNanos = 0;
+    int[] stateCounts = new int[STATES.length];
+    for (int t = 0; t < ticks; t++) {
+      for (int v = 0; v < vehicles; v++) {
+        scenarios[v % courses].sample(offsets[v] + t, info);
+        snapshots[v] = new VehicleSnapshot(t, "", t, location, 0, 0, 0, info);
+        batch.set(v, snapshots[v]);
+        times[v] = t * 1000L;
+      }
+      long start = System.nanoTime();
+      batch.update(times);
+      long middle = System.nanoTime();
+      for (int v = 0; v < vehicles; v++)
+        models[v].update(snapshots[v]);
+      long end = System.nanoTime();
+      batchNanos += middle - start;
+      modelNanos += end - middle;
+      for (int v = 0; v < vehicles; v++) {
+        if (batch.getState(v) != models[v].getState())
+          throw new AssertionError("Tick " + t + ", vehicle " + v + ": " + batch.getState(v) + " != " + models[v].getState());
+        for (Model.Channel channel : Model.Channel.values()) {
+          RollingStatistics s = models[v].getStatistics(channel);
+          if (Double.doubleToLongBits(batch.getMean(channel, v)) != Double.doubleToLongBits(s.getMean())
+              || Double.doubleToLongBits(batch.getStandardDeviation(channel, v)) != Double.doubleToLongBits(s.getStandardDeviation())
+              || Double.doubleToLongBits(batch.getMin(channel, v)) != Double.doubleToLongBits(s.getMin())
+              || Double.doubleToLongBits(batch.getMax(channel, v)) != Double.doubleToLongBits(s.getMax()))
+            throw new AssertionError("Tick " + t + ", vehicle " + v + ", " + channel + ": statistics differ");
+        }
+        stateCounts[batch.getState(v).ordinal()]++;
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for (Model.State s : STATES)
+      sb.append(s).append('=').append(stateCounts[s.ordinal()]).append(' ');
+    System.out.println("Identical for " + vehicles + " vehicles over " + ticks + " ticks: " + sb);
+    System.out.printf("Per tick: BatchModel %.2f ms, Model %.2f ms%n", batchNanos / 1e6 / ticks, modelNanos / 1e6 / ticks);
+  }
+}
@@ -0,0 +1,251 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A map overlay that draws the path the vehicle has followed, as a line
+ * through the locations added to it.
+ *
+ * Each location is projected to world coordinates once, as it's added. For
+ * each zoom level, the trail is simplified by the Douglas-Peucker algorithm
+ * to the points that keep it within TOLERANCE pixels of the original, so a
+ * long trail draws about as fast as a short one. The simplification is done
+ * lazily, a chunk of CHUNK points at a time, and only for the zoom levels
+ * drawn; the points since the last chunk are drawn unsimplified. Only the
+ * parts of the trail that cross the map are drawn. Locations may be added
+ * from any thread.
+ */
+public class BreadcrumbTrail implements MapOverlay {
+  /**
+   * Greatest distance, in pixels, of the simplified trail from the original:
+   * less than can be seen in a line a few pixels wide.
+   */
+  public static final double TOLERANCE = 1;
+  /** Number of points simplified at a time. */
+  static final int CHUNK = 256;
+  private static final int MAX_ZOOM = 21;
+
+  private final Color color;
+  private final float width;
+  private final Stroke stroke;
+
+  /** World coordinates (world pixels at zoom level 0) of the points. */
+  private double[] xs = new double[1024], ys = new double[1024];
+  private int count;
+
+  /**
+   * For each zoom level, the indexes of the points kept by simplification,
+   * and how many there are. The last kept is where simplification resumes.
+   */
+  private final int[][] kept = new int[MAX_ZOOM + 1][];
+  private final int[] keptCount = new int[MAX_ZOOM + 1];
+
+  // Buffers for drawing, and the simplification's stack.
+  private int[] drawXs = new int[0], drawYs = new int[0];
+  private int[] stack = new int[64];
+
+  /** Constructs a trail drawn in translucent blue. */
+  public BreadcrumbTrail() {
+    this(new Color(0x30, 0x70, 0xff, 0xc0), 4);
+  }
+
+  /** Constructs a trail drawn in a specified color and width. */
+  public BreadcrumbTrail(Color color, float width) {
+    this.color = color;
+    this.width = width;
+    this.stroke = new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+  }
+
+  /** Adds a location to the end of the trail, unless it's the same as the last. */
+  public void add(GeographicPoint location) {
+    if (location != null)
+      add(location.getLatitude(), location.getLongitude());
+  }
+
+  /** Adds a location to the end of the trail, unless it's the same as the last. */
+  public synchronized void add(double latitude, double longitude) {
+    double x = MercatorProjection.x(longitude, 0), y = MercatorProjection.y(latitude, 0);
+    if (Double.isNaN(x) || Double.isNaN(y) || (count > 0 && x == xs[count - 1] && y == ys[count - 1]))
+      return;
+    if (count == xs.length) {
+      xs = Arrays.copyOf(xs, count * 2);
+      ys = Arrays.copyOf(ys, count * 2);
+    }
+    xs[count] = x;
+    ys[count] = y;
+    count++;
+  }
+
+  /** Removes all the locations. */
+  public synchronized void clear() {
+    count = 0;
+    Arrays.fill(keptCount, 0);
+  }
+
+  /** Gets the number of locations in the trail. */
+  public synchronized int size() {
+    return count;
+  }
+
+  /** Gets the number of points drawn at a zoom level, after simplification. */
+  public synchronized int getSimplifiedSize(int zoom) {
+    simplify(zoom);
+    return count == 0 ? 0 : keptCount[zoom] + (count - 1 - kept[zoom][keptCount[zoom] - 1]);
+  }
+
+  @Override
+  public synchronized void paint(Graphics2D g, Map map) {
+    if (count < 2)
+      return;
+    int zoom = Math.min(map.getZoomLevel(), MAX_ZOOM);
+    simplify(zoom);
+    g.setColor(color);
+    g.setStroke(stroke);
+    // Draw the runs of segments that cross the image, skipping points that
+    // round to the same pixel as the one before.
+    int margin = (int) Math.ceil(width);
+    int minX = -margin, minY = -margin, maxX = map.getWidth() + margin, maxY = map.getHeight() + margin;
+    double scale = MercatorProjection.scale(zoom), left = map.getLeft(), top = map.getTop();
+    int[] indexes = kept[zoom];
+    int n = keptCount[zoom], last = indexes[n - 1];
+    int m = 0;
+    for (int k = 0, end = n + (count - 1 - last); k < end; k++) {
+      int i = k < n ? indexes[k] : last + 1 + (k - n);
+      int x = (int) Math.round(xs[i] * scale - left), y = (int) Math.round(ys[i] * scale - top);
+      if (m > 0) {
+        int px = drawXs[m - 1], py = drawYs[m - 1];
+        if (x == px && y == py)
+          continue;
+        if (Math.max(x, px) < minX || Math.min(x, px) > maxX || Math.max(y, py) < minY || Math.min(y, py) > maxY) {
+          if (m > 1)
+            g.drawPolyline(drawXs, drawYs, m);
+          m = 0;  // Start a new run at this point.
+        }
+      }
+      if (m == drawXs.length) {
+        drawXs = Arrays.copyOf(drawXs, Math.max(CHUNK, m * 2));
+        drawYs = Arrays.copyOf(drawYs, Math.max(CHUNK, m * 2));
+      }
+      drawXs[m] = x;
+      drawYs[m] = y;
+      m++;
+    }
+    if (m > 1)
+      g.drawPolyline(drawXs, drawYs, m);
+  }
+
+  /** Simplifies the whole chunks of points not yet simplified at a zoom level. */
+  private void simplify(int zoom) {
+    if (count == 0)
+      return;
+    if (keptCount[zoom] == 0) {
+      if (kept[zoom] == null)
+        kept[zoom] = new int[64];
+      kept[zoom][0] = 0;
+      keptCount[zoom] = 1;
+    }
+    double tolerance = TOLERANCE / MercatorProjection.scale(zoom);
+    int start;
+    while (count - 1 - (start = kept[zoom][keptCount[zoom] - 1]) >= CHUNK)
+      simplify(zoom, start, start + CHUNK, tolerance * tolerance);
+  }
+
+  /**
+   * Simplifies points start to end by the Douglas-Peucker algorithm, appending
+   * the indexes of those kept, after start, to the zoom level's list.
+   */
+  private void simplify(int zoom, int start, int end, double squaredTolerance) {
+    // Mark kept points by pushing segments onto a stack, and popping each to
+    // find its farthest point; a segment whose farthest point is within
+    // tolerance keeps only its ends. Segments are handled left to right, so
+    // kept points are found in order.
+    int top = 0;
+    stack = ensure(stack, 2);
+    stack[top++] = start;
+    stack[top++] = end;
+    while (top > 0) {
+      int b = stack[--top], a = stack[--top];
+      int farthest = -1;
+      double greatest = squaredTolerance;
+      double ax = xs[a], ay = ys[a], dx = xs[b] - ax, dy = ys[b] - ay;
+      double length2 = dx * dx + dy * dy;
+      for (int i = a + 1; i < b; i++) {
+        double px = xs[i] - ax, py = ys[i] - ay;
+        double d2;
+        if (length2 == 0) {
+          d2 = px * px + py * py;
+        } else {
+          double t = Math.max(0, Math.min(1, (px * dx + py * dy) / length2));
+          double ex = px - t * dx, ey = py - t * dy;
+          d2 = ex * ex + ey * ey;
+        }
+        if (d2 > greatest) {
+          greatest = d2;
+          farthest = i;
+        }
+      }
+      if (farthest < 0) {
+        append(zoom, b);
+      } else {
+        stack = ensure(stack, top + 4);
+        stack[top++] = farthest;  // Right half, handled second.
+        stack[top++] = b;
+        stack[top++] = a;  // Left half, handled first.
+        stack[top++] = farthest;
+      }
+    }
+  }
+
+  private void append(int zoom, int index) {
+    if (keptCount[zoom] == kept[zoom].length)
+      kept[zoom] = Arrays.copyOf(kept[zoom], keptCount[zoom] * 2);
+    kept[zoom][keptCount[zoom]++] = index;
+  }
+
+  private static int[] ensure(int[] array, int length) {
+    return array.length >= length ? array : Arrays.copyOf(array, Math.max(length, array.length * 2));
+  }
+
+  /**
+   * Unit test. Builds a trail of 100,000 noisy points, over five hours of
+   * driving laps of the synthetic course, and times drawing it at several
+   * zoom levels.
+   */
+  public static void main(String[] args) {
+    DataSenderServer.SyntheticScenario scenario = new DataSenderServer.SyntheticScenario(1);
+    Random random = new Random(1);
+    BreadcrumbTrail trail = new BreadcrumbTrail();
+    CarInfo info = new CarInfo();
+    int n = 100000;
+    for (int i = 0; i < n; i++) {
+      // 5 samples per second, with each lap displaced so the trail doesn't retrace itself.
+      int t = i / 5, lap = t / 1799;
+      scenario.sample(t % 1799, info);
+      info.longitude += lap * 0.15;
+      trail.add(info.latitude + random.nextGaussian() * 2e-5, info.longitude + random.nextGaussian() * 2e-5);
+    }
+    BufferedImage image = new BufferedImage(640, 640, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    for (int zoom : new int[] { 10, 13, 15, 17 }) {
+      Map map = new Map(new GeographicPoint(info.latitude, info.longitude), zoom, 640, 640, null);
+      long start = System.nanoTime();
+      trail.paint(g, map);
+      double first = (System.nanoTime() - start) / 1e6;
+      int repetitions = 20;
+      start = System.nanoTime();
+      for (int r = 0; r < repetitions; r++)
+        trail.paint(g, map);
+      System.out.printf("Zoom %d: %d of %d points, %.1f ms to simplify and draw, then %.2f ms to draw%n",
+          zoom, trail.getSimplifiedSize(zoom), trail.size(), first,
+          (System.nanoTime() - start) / 1e6 / repetitions);
+    }
+  }
+}
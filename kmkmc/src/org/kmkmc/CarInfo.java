@@ -0,0 +1,100 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+/**
+ * The values decoded from one <code>carinfo</code> element of a web service
+ * response. Instances are mutable and meant to be reused from one poll to the
+ * next, so decoding a response allocates nothing per value.
+ *
+ * Each decoded value has a bit in {@link #present}; a value whose bit is clear
+ * was missing from the response and holds whatever was there before.
+ */
+public class CarInfo {
+  // Bits of the present mask, one per decoded element.
+  public static final int CREATETIME = 1 << 0;
+  public static final int LATITUDE = 1 << 1;
+  public static final int LONGITUDE = 1 << 2;
+  public static final int SPEED = 1 << 3;
+  public static final int LATERAL_ACCELERATION = 1 << 4;
+  public static final int LONGITUDINAL_ACCELERATION = 1 << 5;
+  public static final int YAW_RATE = 1 << 6;
+  public static final int ODOMETER = 1 << 7;
+  public static final int ACCELERATOR_PEDAL_RATIO = 1 << 8;
+  public static final int BRAKE = 1 << 9;
+  public static final int STEERING_ANGLE = 1 << 10;
+  public static final int PARKING_BRAKE = 1 << 11;
+  public static final int ENGINE_RPM = 1 << 12;
+  public static final int RESIDUAL_FUEL = 1 << 13;
+  public static final int ENGINE_TEMPERATURE = 1 << 14;
+  public static final int OUTSIDE_TEMPERATURE = 1 << 15;
+
+  /** Bitwise OR of the constants above for the values present in the response. */
+  public int present;
+
+  public String vid;
+  /** The createtime element, in milliseconds since the epoch (read as UTC). */
+  public long createTime;
+  public double latitude, longitude;
+  public double speed, lateralAcceleration, longitudinalAcceleration, yawRate, odometer;
+  public double acceleratorPedalRatio;
+  public boolean brakeOn, parkingBrakeOn;
+  public double steeringAngle, engineRpm, residualFuel, engineTemperature, outsideTemperature;
+
+  /** Tests whether all values in a bit mask were present in the response. */
+  public boolean has(int mask) {
+    return (present & mask) == mask;
+  }
+
+  /** Copies all values from another instance. */
+  public void copy(CarInfo other) {
+    present = other.present;
+    vid = other.vid;
+    createTime = other.createTime;
+    latitude = other.latitude;
+    longitude = other.longitude;
+    speed = other.speed;
+    lateralAcceleration = other.lateralAcceleration;
+    longitudinalAcceleration = other.longitudinalAcceleration;
+    yawRate = other.yawRate;
+    odometer = other.odometer;
+    acceleratorPedalRatio = other.acceleratorPedalRatio;
+    brakeOn = other.brakeOn;
+    parkingBrakeOn = other.parkingBrakeOn;
+    steeringAngle = other.steeringAngle;
+    engineRpm = other.engineRpm;
+    residualFuel = other.residualFuel;
+    engineTemperature = other.engineTemperature;
+    outsideTemperature = other.outsideTemperature;
+  }
+
+  /** Tests whether another instance holds exactly the same values. */
+  public boolean sameValues(CarInfo other) {
+    return present == other.present
+        && (vid == null ? other.vid == null : vid.equals(other.vid))
+        && createTime == other.createTime
+        && Double.compare(latitude, other.latitude) == 0
+        && Double.compare(longitude, other.longitude) == 0
+        && Double.compare(speed, other.speed) == 0
+        && Double.compare(lateralAcceleration, other.lateralAcceleration) == 0
+        && Double.compare(longitudinalAcceleration, other.longitudinalAcceleration) == 0
+        && Double.compare(yawRate, other.yawRate) == 0
+        && Double.compare(odometer, other.odometer) == 0
+        && Double.compare(acceleratorPedalRatio, other.acceleratorPedalRatio) == 0
+        && brakeOn == other.brakeOn
+        && parkingBrakeOn == other.parkingBrakeOn
+        && Double.compare(steeringAngle, other.steeringAngle) == 0
+        && Double.compare(engineRpm, other.engineRpm) == 0
+        && Double.compare(residualFuel, other.residualFuel) == 0
+        && Double.compare(engineTemperature, other.engineTemperature) == 0
+        && Double.compare(outsideTemperature, other.outsideTemperature) == 0;
+  }
+
+  @Override
+  public String toString() {
+    return "vid=" + vid + ", createTime=" + createTime + ", present=" + Integer.toHexString(present)
+        + ", location=" + latitude + "," + longitude + ", speed=" + speed + ", yawRate=" + yawRate
+        + ", odometer=" + odometer + ", brakeOn=" + brakeOn + ", parkingBrakeOn=" + parkingBrakeOn
+        + ", residualFuel=" + residualFuel;
+  }
+}
@@ -0,0 +1,565 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Decodes the <code>carinfo</code> record for one vehicle from a web service
+ * response into a {@link CarInfo}.
+ *
+ * The default {@link #parse} makes a single streaming pass over the response.
+ * It compares each record's userid as soon as it is read, skips the records of
+ * other vehicles without decoding them, and decodes numbers straight from the
+ * parser's character buffer. {@link #parseDom} is the original DOM and XPath
+ * decoder, kept for comparison.
+ *
+ * An instance reuses its buffers from call to call, so it must not be shared
+ * between threads.
+ */
+public class CarInfoParser {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  /** Element names of the decoded values, indexed by the bit numbers of the CarInfo present mask. */
+  private static final String[] ELEMENT_NAMES = { "createtime", "lat", "lon",
+    "Spd", "ALatStdByEsc", "ALgtStd", "YawRateStd", "OdoDst",
+    "AccrPedlRat", "BrkLiIntenReq", "SteerWhlAgBas", "PrkgLiIndcn",
+    "EngN", "RestFu", "EngT", "OutdT" };
+  private static final int ALL_VALUES = (1 << ELEMENT_NAMES.length) - 1;
+
+  // Fields beyond those of the present mask.
+  private static final int NONE = -1;
+  private static final int USERID = ELEMENT_NAMES.length;
+  private static final int VID = USERID + 1;
+
+  /** Exactly representable powers of ten, for the fast path of decodeDouble(). */
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+  private XMLInputFactory inputFactory;
+
+  /** Text of the element being decoded. */
+  private char[] text = new char[64];
+  private int textLength;
+  /** Set by the decode methods when the text isn't a valid number. */
+  private boolean malformed;
+
+  // Used only by parseDom().
+  private DocumentBuilder builder;
+  private XPathExpression carinfoExpression, useridExpression, vidExpression;
+  private XPathExpression[] valueExpressions = new XPathExpression[ELEMENT_NAMES.length];
+  private DateFormat timestampFormat;
+
+  /** Constructs a parser. */
+  public CarInfoParser() {
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+  }
+
+  /** Chooses what is done with each record of a response decoded by {@link CarInfoParser#parse(InputStream, Router)}. */
+  public interface Router {
+    /**
+     * Chooses where a vehicle's record is decoded to.
+     *
+     * @param userid the userid of the record. This is a view of the parser's
+     * buffer, valid only until this method returns.
+     * @return the object that receives the record's values, or null to skip the record
+     */
+    CarInfo route(CharSequence userid);
+
+    /** Called when a record has been decoded into the object returned by route(). */
+    void decoded(CarInfo info);
+  }
+
+  /** Routes the record of one specified vehicle, for {@link #parse(InputStream, String, CarInfo)}. */
+  private static class SingleVehicleRouter implements Router {
+    String userid;
+    CarInfo info;
+    boolean found;
+
+    @Override
+    public CarInfo route(CharSequence actualUserid) {
+      if (found || !contentEquals(userid, actualUserid)) {
+        if (logger.isLoggable(Level.FINE))
+          logger.fine("Skipping record with userid (" + actualUserid + ") vs request (" + userid + ")");
+        return null;
+      }
+      return info;
+    }
+
+    @Override
+    public void decoded(CarInfo info) {
+      found = true;
+    }
+  }
+
+  private SingleVehicleRouter singleVehicleRouter = new SingleVehicleRouter();
+
+  /** A view of the accumulated text, passed to Router.route(). */
+  private CharSequence textView = new CharSequence() {
+    public int length() { return textLength; }
+    public char charAt(int index) { return text[index]; }
+    public CharSequence subSequence(int start, int end) { return new String(text, start, end - start); }
+    public String toString() { return new String(text, 0, textLength); }
+  };
+
+  /** Tests whether a string and a character sequence contain the same characters. */
+  static boolean contentEquals(String s, CharSequence cs) {
+    if (s.length() != cs.length())
+      return false;
+    for (int i = 0; i < s.length(); i++)
+      if (s.charAt(i) != cs.charAt(i))
+        return false;
+    return true;
+  }
+
+  /**
+   * Decodes the record of a specified vehicle from a response, in a single
+   * streaming pass. Values missing from the record are left unchanged in
+   * <code>info</code>, and their bits are cleared in its present mask.
+   *
+   * @param response the body of the response received from the web service
+   * @param userid the vehicle whose record is wanted
+   * @param info receives the decoded values
+   * @return whether the response contained a record for the vehicle
+   */
+  public boolean parse(InputStream response, String userid, CarInfo info) throws XMLStreamException {
+    singleVehicleRouter.userid = userid;
+    singleVehicleRouter.info = info;
+    singleVehicleRouter.found = false;
+    parse(response, singleVehicleRouter);
+    return singleVehicleRouter.found;
+  }
+
+  /**
+   * Decodes the records of any number of vehicles from a response, in a single
+   * streaming pass. Each record's userid is passed to the router as soon as it
+   * is read, and the records it declines are skipped without being decoded.
+   *
+   * The <code>car</code> element is expected to precede the <code>data</code>
+   * element, as it does in the service's schema; values that appear before the
+   * userid has been read are ignored.
+   *
+   * @param response the body of the response received from the web service
+   * @param router chooses where each record is decoded to
+   */
+  public void parse(InputStream response, Router router) throws XMLStreamException {
+    XMLStreamReader reader = inputFactory.createXMLStreamReader(response);
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("carinfo"))
+          readCarInfo(reader, router);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads the rest of a carinfo element, whose start tag has just been read.
+   * If the router declines it, it is skipped from the point at which the
+   * userid is known.
+   */
+  private void readCarInfo(XMLStreamReader reader, Router router) throws XMLStreamException {
+    int depth = 1, field = NONE, seen = 0;
+    CarInfo info = null;
+    while (depth > 0) {
+      switch (reader.next()) {
+      case XMLStreamConstants.START_ELEMENT:
+        depth++;
+        field = fieldOf(reader.getLocalName());
+        if (info == null && field != USERID)
+          field = NONE;
+        textLength = 0;
+        break;
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.CDATA:
+        if (field != NONE)
+          appendText(reader);
+        break;
+      case XMLStreamConstants.END_ELEMENT:
+        depth--;
+        if (field == USERID) {
+          if (info == null) {
+            if ((info = router.route(textView)) == null) {
+              skipElement(reader, depth);
+              return;
+            }
+            info.present = 0;
+          }
+        } else if (field != NONE) {
+          seen |= 1 << field;
+          decodeField(field, info);
+        }
+        field = NONE;
+        break;
+      case XMLStreamConstants.END_DOCUMENT:
+        throw new XMLStreamException("Unexpected end of document within carinfo");
+      default:
+        break;
+      }
+    }
+    if (info != null) {
+      if ((seen & (1 << VID)) == 0)
+        info.vid = "";
+      warnMissing(seen);
+      router.decoded(info);
+    }
+  }
+
+  /** Skips events until a specified number of enclosing elements have been closed. */
+  private static void skipElement(XMLStreamReader reader, int depth) throws XMLStreamException {
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT)
+        depth++;
+      else if (event == XMLStreamConstants.END_ELEMENT)
+        depth--;
+      else if (event == XMLStreamConstants.END_DOCUMENT)
+        throw new XMLStreamException("Unexpected end of document within carinfo");
+    }
+  }
+
+  /** Maps an element name to the field it holds, or NONE. */
+  private static int fieldOf(String name) {
+    switch (name) {
+    case "userid": return USERID;
+    case "vid": return VID;
+    case "createtime": return 0;
+    case "lat": return 1;
+    case "lon": return 2;
+    case "Spd": return 3;
+    case "ALatStdByEsc": return 4;
+    case "ALgtStd": return 5;
+    case "YawRateStd": return 6;
+    case "OdoDst": return 7;
+    case "AccrPedlRat": return 8;
+    case "BrkLiIntenReq": return 9;
+    case "SteerWhlAgBas": return 10;
+    case "PrkgLiIndcn": return 11;
+    case "EngN": return 12;
+    case "RestFu": return 13;
+    case "EngT": return 14;
+    case "OutdT": return 15;
+    default: return NONE;
+    }
+  }
+
+  private void appendText(XMLStreamReader reader) {
+    int length = reader.getTextLength();
+    if (textLength + length > text.length) {
+      char[] larger = new char[Math.max(2 * text.length, textLength + length)];
+      System.arraycopy(text, 0, larger, 0, textLength);
+      text = larger;
+    }
+    System.arraycopy(reader.getTextCharacters(), reader.getTextStart(), text, textLength, length);
+    textLength += length;
+  }
+
+  /** Decodes the accumulated text as the value of a field, and sets its present bit if valid. */
+  private void decodeField(int field, CarInfo info) {
+    if (field == VID) {
+      if (info.vid == null || !contentEquals(info.vid, textView))
+        info.vid = new String(text, 0, textLength);
+      return;
+    }
+    malformed = false;
+    switch (field) {
+    case 0: {
+      long t = decodeTimestamp();
+      if (!malformed) info.createTime = t;
+      break;
+    }
+    case 1: { double v = decodeDouble(); if (!malformed) info.latitude = v; break; }
+    case 2: { double v = decodeDouble(); if (!malformed) info.longitude = v; break; }
+    case 3: { double v = decodeDouble(); if (!malformed) info.speed = v; break; }
+    case 4: { double v = decodeDouble(); if (!malformed) info.lateralAcceleration = v; break; }
+    case 5: { double v = decodeDouble(); if (!malformed) info.longitudinalAcceleration = v; break; }
+    case 6: { double v = decodeDouble(); if (!malformed) info.yawRate = v; break; }
+    case 7: { double v = decodeDouble(); if (!malformed) info.odometer = v; break; }
+    case 8: { double v = decodeDouble(); if (!malformed) info.acceleratorPedalRatio = v; break; }
+    case 9: { boolean b = decodeBoolean(); if (!malformed) info.brakeOn = b; break; }
+    case 10: { double v = decodeDouble(); if (!malformed) info.steeringAngle = v; break; }
+    case 11: { boolean b = decodeBoolean(); if (!malformed) info.parkingBrakeOn = b; break; }
+    case 12: { double v = decodeDouble(); if (!malformed) info.engineRpm = v; break; }
+    case 13: { double v = decodeDouble(); if (!malformed) info.residualFuel = v; break; }
+    case 14: { double v = decodeDouble(); if (!malformed) info.engineTemperature = v; break; }
+    case 15: { double v = decodeDouble(); if (!malformed) info.outsideTemperature = v; break; }
+    default: return;
+    }
+    if (!malformed)
+      info.present |= 1 << field;
+  }
+
+  /**
+   * Decodes the accumulated text as a double. Decimal numbers of up to 15 or so
+   * significant digits, which are all the service sends, are converted exactly
+   * without allocating; anything else falls back to Double.parseDouble().
+   */
+  private double decodeDouble() {
+    int i = 0, end = textLength;
+    while (i < end && Character.isWhitespace(text[i])) i++;
+    while (end > i && Character.isWhitespace(text[end - 1])) end--;
+    int start = i;
+    boolean negative = false;
+    if (i < end && (text[i] == '-' || text[i] == '+'))
+      negative = text[i++] == '-';
+    long mantissa = 0;
+    int exponent = 0, digits = 0;
+    boolean anyDigits = false, fast = true;
+    for (; i < end && text[i] >= '0' && text[i] <= '9'; i++, anyDigits = true) {
+      if (mantissa == 0 && text[i] == '0') continue;
+      if (++digits > 18) { fast = false; break; }
+      mantissa = 10 * mantissa + (text[i] - '0');
+    }
+    if (fast && i < end && text[i] == '.') {
+      for (i++; i < end && text[i] >= '0' && text[i] <= '9'; i++, anyDigits = true) {
+        if (mantissa == 0 && text[i] == '0') { exponent--; continue; }
+        if (++digits > 18) { fast = false; break; }
+        mantissa = 10 * mantissa + (text[i] - '0');
+        exponent--;
+      }
+    }
+    if (fast && anyDigits && i < end && (text[i] == 'e' || text[i] == 'E')) {
+      i++;
+      boolean negativeExponent = false;
+      if (i < end && (text[i] == '-' || text[i] == '+'))
+        negativeExponent = text[i++] == '-';
+      int e = 0;
+      boolean exponentDigits = false;
+      for (; i < end && text[i] >= '0' && text[i] <= '9' && e < 10000; i++, exponentDigits = true)
+        e = 10 * e + (text[i] - '0');
+      if (!exponentDigits)
+        fast = false;
+      exponent += negativeExponent ? -e : e;
+    }
+    if (fast && anyDigits && i == end && mantissa <= (1L << 53)) {
+      double value;
+      if (mantissa == 0)
+        value = 0;
+      else if (exponent >= 0 && exponent < POWERS_OF_TEN.length)
+        value = mantissa * POWERS_OF_TEN[exponent];
+      else if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+        value = mantissa / POWERS_OF_TEN[-exponent];
+      else
+        return slowDecodeDouble(start, end);
+      return negative ? -value : value;
+    }
+    return slowDecodeDouble(start, end);
+  }
+
+  private double slowDecodeDouble(int start, int end) {
+    try {
+      return Double.parseDouble(new String(text, start, end - start));
+    } catch (NumberFormatException nfe) {
+      malformed = true;
+      return 0;
+    }
+  }
+
+  /** Decodes the accumulated text as an integer flag, which is true if positive. */
+  private boolean decodeBoolean() {
+    int i = 0, end = textLength;
+    while (i < end && Character.isWhitespace(text[i])) i++;
+    while (end > i && Character.isWhitespace(text[end - 1])) end--;
+    boolean negative = false;
+    if (i < end && (text[i] == '-' || text[i] == '+'))
+      negative = text[i++] == '-';
+    if (i == end) {
+      malformed = true;
+      return false;
+    }
+    boolean nonzero = false;
+    for (; i < end; i++) {
+      if (text[i] < '0' || text[i] > '9') {
+        malformed = true;
+        return false;
+      }
+      nonzero |= text[i] != '0';
+    }
+    return nonzero && !negative;
+  }
+
+  /** Decodes the accumulated text as a yyyy-MM-ddTHH:mm:ss timestamp, read as UTC. */
+  private long decodeTimestamp() {
+    int i = 0;
+    while (i < textLength && Character.isWhitespace(text[i])) i++;
+    if (textLength - i < 19 || text[i + 4] != '-' || text[i + 7] != '-' || text[i + 10] != 'T'
+        || text[i + 13] != ':' || text[i + 16] != ':') {
+      malformed = true;
+      return 0;
+    }
+    int year = decodeDigits(i, 4), month = decodeDigits(i + 5, 2), day = decodeDigits(i + 8, 2);
+    int hour = decodeDigits(i + 11, 2), minute = decodeDigits(i + 14, 2), second = decodeDigits(i + 17, 2);
+    if (malformed)
+      return 0;
+    return ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+  }
+
+  private int decodeDigits(int start, int count) {
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      char c = text[i];
+      if (c < '0' || c > '9') {
+        malformed = true;
+        return 0;
+      }
+      value = 10 * value + (c - '0');
+    }
+    return value;
+  }
+
+  /** Counts days from 1970-01-01 to a date of the proleptic Gregorian calendar. */
+  private static long daysFromCivil(int year, int month, int day) {
+    year -= month <= 2 ? 1 : 0;
+    long era = Math.floorDiv(year, 400);
+    long yearOfEra = year - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  private void warnMissing(int seen) {
+    int missing = ALL_VALUES & ~seen;
+    for (int i = 0; missing != 0; i++, missing >>>= 1)
+      if ((missing & 1) != 0)
+        logger.warning("Missing " + ELEMENT_NAMES[i] + " element");
+  }
+
+  // DOM DECODING
+
+  /**
+   * Decodes the record of a specified vehicle from a response by building a
+   * DOM document and querying it with XPath. This is the original decoder,
+   * kept so the two can be compared; it produces the same results as
+   * {@link #parse}.
+   */
+  public boolean parseDom(InputStream response, String userid, CarInfo info) throws Exception {
+    if (builder == null)
+      initializeDom();
+    InputSource is = new InputSource();
+    is.setByteStream(response);
+    Document doc = builder.parse(is);
+    NodeList nodes = (NodeList) carinfoExpression.evaluate(doc, XPathConstants.NODESET);
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Node node = nodes.item(i);
+      String actualUserid = useridExpression.evaluate(node);
+      if (actualUserid.equals(userid)) {
+        parseDom(node, info);
+        return true;
+      }
+      logger.fine("Skipping record with userid (" + actualUserid + ") vs request (" + userid + ")");
+    }
+    return false;
+  }
+
+  private void initializeDom() throws ParserConfigurationException, XPathExpressionException {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setValidating(false);
+    builder = factory.newDocumentBuilder();
+    XPath xpath = XPathFactory.newInstance().newXPath();
+    carinfoExpression = xpath.compile("/response/carinfo");
+    useridExpression = xpath.compile("car/userid");
+    vidExpression = xpath.compile("car/vid");
+    for (int i = 0; i < ELEMENT_NAMES.length; i++) {
+      String name = ELEMENT_NAMES[i];
+      String parent = name.equals("lat") || name.equals("lon") ? "data/MapMatching/" : "data/";
+      valueExpressions[i] = xpath.compile(parent + name);
+    }
+    timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  private void parseDom(Node node, CarInfo info) throws XPathExpressionException {
+    info.present = 0;
+    info.vid = vidExpression.evaluate(node);
+    int seen = 0;
+    for (int i = 0; i < ELEMENT_NAMES.length; i++) {
+      Node valueNode = (Node) valueExpressions[i].evaluate(node, XPathConstants.NODE);
+      if (valueNode == null)
+        continue;
+      seen |= 1 << i;
+      String s = valueNode.getTextContent();
+      try {
+        switch (i) {
+        case 0: info.createTime = timestampFormat.parse(s.trim()).getTime(); break;
+        case 1: info.latitude = Double.parseDouble(s); break;
+        case 2: info.longitude = Double.parseDouble(s); break;
+        case 3: info.speed = Double.parseDouble(s); break;
+        case 4: info.lateralAcceleration = Double.parseDouble(s); break;
+        case 5: info.longitudinalAcceleration = Double.parseDouble(s); break;
+        case 6: info.yawRate = Double.parseDouble(s); break;
+        case 7: info.odometer = Double.parseDouble(s); break;
+        case 8: info.acceleratorPedalRatio = Double.parseDouble(s); break;
+        case 9: info.brakeOn = Integer.parseInt(s.trim()) > 0; break;
+        case 10: info.steeringAngle = Double.parseDouble(s); break;
+        case 11: info.parkingBrakeOn = Integer.parseInt(s.trim()) > 0; break;
+        case 12: info.engineRpm = Double.parseDouble(s); break;
+        case 13: info.residualFuel = Double.parseDouble(s); break;
+        case 14: info.engineTemperature = Double.parseDouble(s); break;
+        case 15: info.outsideTemperature = Double.parseDouble(s); break;
+        }
+        info.present |= 1 << i;
+      } catch (Exception e) {
+        // Malformed value: leave the previous one in place.
+      }
+    }
+    warnMissing(seen);
+  }
+
+  /** Unit test. Decodes the sample data with both decoders, compares the results, and times them. */
+  public static void main(String[] args) throws Exception {
+    byte[] response = VehicleDataClient.SAMPLE_DATA;
+    String userid = "12345678901";
+    CarInfoParser parser = new CarInfoParser();
+    CarInfo streamed = new CarInfo(), dom = new CarInfo();
+    boolean foundStreamed = parser.parse(new ByteArrayInputStream(response), userid, streamed);
+    boolean foundDom = parser.parseDom(new ByteArrayInputStream(response), userid, dom);
+    System.out.println("streaming: " + foundStreamed + " " + streamed);
+    System.out.println("DOM:       " + foundDom + " " + dom);
+    if (foundStreamed != foundDom || !streamed.sameValues(dom))
+      throw new AssertionError("Decoders disagree");
+    if (parser.parse(new ByteArrayInputStream(response), "someone else", streamed))
+      throw new AssertionError("Matched the wrong userid");
+
+    logger.setLevel(Level.SEVERE);  // the sample lacks some elements
+    int n = 20000;
+    for (int pass = 0; pass < 2; pass++) {
+      long t0 = System.nanoTime();
+      for (int i = 0; i < n; i++)
+        parser.parse(new ByteArrayInputStream(response), userid, streamed);
+      long t1 = System.nanoTime();
+      for (int i = 0; i < n; i++)
+        parser.parseDom(new ByteArrayInputStream(response), userid, dom);
+      long t2 = System.nanoTime();
+      System.out.printf("streaming %.1f us/parse, DOM %.1f us/parse%n", (t1 - t0) / 1e3 / n, (t2 - t1) / 1e3 / n);
+    }
+  }
+}
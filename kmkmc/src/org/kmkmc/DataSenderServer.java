@@ -0,0 +1,470 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the DataSender web service, for exercising
+ * {@link VehicleDataClient} and {@link FleetPoller} offline and under load.
+ * It answers GetVehicleInfo, SearchDataSeek and SearchDataReset requests with
+ * the service's XML schema.
+ *
+ * Each userid plays back a scenario, either recorded in a
+ * {@link TelemetryJournal} or synthesized. A userid without a recorded
+ * scenario gets a synthetic drive of its own, so any number of vehicles can be
+ * polled. As with the real service, a scenario advances in real time from the
+ * point it was last seeked or reset to, and GetVehicleInfo may list several
+ * comma-separated userids.
+ *
+ * A fixed latency plus random jitter can be added to every response, to
+ * reproduce slow-service problems. Point clients at the server with
+ * -Dkmkmc.carServer=http://localhost:port.
+ */
+public class DataSenderServer {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  /** The createtime of the start of every scenario. */
+  private static final long SCENARIO_EPOCH = 1383308638000L;  // 2013-11-01T12:23:58
+  private static final DateTimeFormatter TIMESTAMP_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+
+  /** A drive played back by the server: the values reported at each second. */
+  public interface Scenario {
+    /**
+     * Gets the values reported a specified number of seconds into the drive.
+     * The createtime is set by the server, not the scenario.
+     *
+     * @return false if the time is past the end of the scenario
+     */
+    boolean sample(int seconds, CarInfo info);
+  }
+
+  /** Playback state of one userid. */
+  private static class Session {
+    final Scenario scenario;
+    volatile int offset;
+    volatile long startNanos = System.nanoTime();
+
+    Session(Scenario scenario) {
+      this.scenario = scenario;
+    }
+
+    int time() {
+      return offset + (int) TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+    }
+
+    void seek(int seconds) {
+      offset = seconds;
+      startNanos = System.nanoTime();
+    }
+  }
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+  private volatile boolean synthesizeUnknown = true;
+  private volatile int latency, jitter;
+  private final LongAdder requestCount = new LongAdder();
+
+  /**
+   * Constructs a server listening on a specified port of the loopback
+   * interface. Call start() to start answering requests.
+   *
+   * @param port the port, or 0 for any free port
+   * @param threads the number of threads that answer requests
+   */
+  public DataSenderServer(int port, int threads) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+    executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, "DataSenderServer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    server.setExecutor(executor);
+    server.createContext("/DataSender/services/", this::handle);
+  }
+
+  /** Gets the URI at which clients reach the server. */
+  public URI getUri() {
+    return URI.create("http://localhost:" + server.getAddress().getPort());
+  }
+
+  /** Sets the scenario played back for a userid. */
+  public void setScenario(String userid, Scenario scenario) {
+    sessions.put(userid, new Session(scenario));
+  }
+
+  /** Sets whether userids without a scenario get a synthetic one (true), or no data (false). */
+  public void setSynthesizeUnknown(boolean synthesizeUnknown) {
+    this.synthesizeUnknown = synthesizeUnknown;
+  }
+
+  /** Sets the delay added to every response: a fixed latency plus a uniformly random jitter, in milliseconds. */
+  public void setLatency(int latency, int jitter) {
+    this.latency = latency;
+    this.jitter = jitter;
+  }
+
+  /** Gets the number of requests answered. */
+  public long getRequestCount() {
+    return requestCount.sum();
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      requestCount.increment();
+      String path = exchange.getRequestURI().getPath();
+      String service = path.substring(path.lastIndexOf('/') + 1);
+      HashMap<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+      String userids = query.get("userid");
+      if (userids == null || !exchange.getRequestMethod().equals("GET")) {
+        respond(exchange, 400, "<response><error>Bad request</error></response>");
+        return;
+      }
+      StringBuilder sb = new StringBuilder(1024);
+      sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response>\n");
+      switch (service) {
+      case "GetVehicleInfo":
+        CarInfo info = new CarInfo();
+        for (String userid : userids.split(",")) {
+          Session session = session(userid);
+          if (session != null) {
+            int time = session.time();
+            if (session.scenario.sample(time, info))
+              appendCarInfo(sb, userid, time, info, query.keySet());
+          }
+        }
+        break;
+      case "SearchDataSeek":
+      case "SearchDataReset":
+        int seconds = 0;
+        if (service.equals("SearchDataSeek")) {
+          try {
+            seconds = Integer.parseInt(query.get("seekseconds"));
+          } catch (NumberFormatException nfe) {
+            respond(exchange, 400, "<response><error>Bad seekseconds</error></response>");
+            return;
+          }
+        }
+        for (String userid : userids.split(",")) {
+          Session session = session(userid);
+          if (session != null)
+            session.seek(seconds);
+        }
+        sb.append("<result>OK</result>\n");
+        break;
+      default:
+        respond(exchange, 404, "<response><error>No such service</error></response>");
+        return;
+      }
+      sb.append("</response>\n");
+      delay();
+      respond(exchange, 200, sb.toString());
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Failed to answer " + exchange.getRequestURI(), e);
+      respond(exchange, 500, "<response><error>Internal error</error></response>");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private Session session(String userid) {
+    Session session = sessions.get(userid);
+    if (session == null && synthesizeUnknown) {
+      Session created = new Session(new SyntheticScenario(userid.hashCode()));
+      session = sessions.putIfAbsent(userid, created);
+      if (session == null)
+        session = created;
+    }
+    return session;
+  }
+
+  private void delay() throws InterruptedException {
+    int delay = latency + (jitter > 0 ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0);
+    if (delay > 0)
+      Thread.sleep(delay);
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static HashMap<String, String> parseQuery(String rawQuery) {
+    HashMap<String, String> query = new HashMap<String, String>();
+    if (rawQuery == null)
+      return query;
+    for (String pair : rawQuery.split("&")) {
+      int eq = pair.indexOf('=');
+      String name = eq < 0 ? pair : pair.substring(0, eq);
+      String value = eq < 0 ? "" : pair.substring(eq + 1);
+      query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+    return query;
+  }
+
+  /** Escapes the characters of a string that XML text can't contain as they are. */
+  static String escape(String text) {
+    StringBuilder sb = null;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      String entity = c == '<' ? "&lt;" : c == '>' ? "&gt;" : c == '&' ? "&amp;" : c == '"' ? "&quot;" : null;
+      if (entity == null && (c < 0x20 && c != '\t' && c != '\n' && c != '\r'))
+        entity = "";  // not allowed in XML 1.0 at all
+      if (entity != null && sb == null)
+        sb = new StringBuilder(text.length() + 16).append(text, 0, i);
+      if (sb != null) {
+        if (entity != null)
+          sb.append(entity);
+        else
+          sb.append(c);
+      }
+    }
+    return sb == null ? text : sb.toString();
+  }
+
+  /** Appends a carinfo element with the requested parameters. */
+  private static void appendCarInfo(StringBuilder sb, String userid, int time, CarInfo info, Set<String> requested) {
+    sb.append("<carinfo>\n<car>\n\t<userid>").append(escape(userid)).append("</userid>\n\t<vid>")
+        .append(info.vid != null ? escape(info.vid) : "").append("</vid>\n</car>\n<data>\n");
+    long createTime = SCENARIO_EPOCH + time * 1000L;
+    sb.append("\t<createtime>").append(TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(createTime))).append("</createtime>\n");
+    if (requested.contains("MapMatching"))
+      sb.append("\t<MapMatching>\n\t\t<lat>").append(info.latitude).append("</lat>\n\t\t<lon>")
+          .append(info.longitude).append("</lon>\n\t</MapMatching>\n");
+    appendValue(sb, requested, "Spd", info.speed);
+    appendValue(sb, requested, "ALatStdByEsc", info.lateralAcceleration);
+    appendValue(sb, requested, "ALgtStd", info.longitudinalAcceleration);
+    appendValue(sb, requested, "YawRateStd", info.yawRate);
+    appendValue(sb, requested, "OdoDst", info.odometer);
+    appendValue(sb, requested, "AccrPedlRat", info.acceleratorPedalRatio);
+    if (requested.contains("BrkLiIntenReq"))
+      sb.append("\t<BrkLiIntenReq>").append(info.brakeOn ? 1 : 0).append("</BrkLiIntenReq>\n");
+    appendValue(sb, requested, "SteerWhlAgBas", info.steeringAngle);
+    if (requested.contains("PrkgLiIndcn"))
+      sb.append("\t<PrkgLiIndcn>").append(info.parkingBrakeOn ? 1 : 0).append("</PrkgLiIndcn>\n");
+    appendValue(sb, requested, "EngN", info.engineRpm);
+    appendValue(sb, requested, "RestFu", info.residualFuel);
+    appendValue(sb, requested, "EngT", info.engineTemperature);
+    appendValue(sb, requested, "OutdT", info.outsideTemperature);
+    sb.append("</data>\n</carinfo>\n");
+  }
+
+  private static void appendValue(StringBuilder sb, Set<String> requested, String name, double value) {
+    if (requested.contains(name))
+      sb.append('\t').append('<').append(name).append('>').append(value).append("</").append(name).append(">\n");
+  }
+
+  /** A scenario recorded in a telemetry journal. */
+  public static class JournalScenario implements Scenario {
+    private final JournalReplay journal;
+
+    public JournalScenario(JournalReplay journal) {
+      this.journal = journal;
+    }
+
+    @Override
+    public boolean sample(int seconds, CarInfo info) {
+      return journal.readAt(seconds, info);
+    }
+  }
+
+  /**
+   * A synthetic, endlessly repeating drive: parked, then city streets with
+   * turns, a highway cruise, more city driving, and a stop. The drive is
+   * generated once, deterministically from a seed.
+   */
+  public static class SyntheticScenario implements Scenario {
+    private static final int DURATION = 1800;  // seconds per lap
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private final String vid;
+    private final double[] latitude = new double[DURATION], longitude = new double[DURATION];
+    private final double[] speed = new double[DURATION], yawRate = new double[DURATION];
+    private final double[] longitudinalAcceleration = new double[DURATION], odometer = new double[DURATION];
+    private final boolean[] brakeOn = new boolean[DURATION], parkingBrakeOn = new boolean[DURATION];
+    private final double lapDistance;
+
+    public SyntheticScenario(long seed) {
+      Random random = new Random(seed);
+      vid = String.format("%017d", Math.abs(seed) % 100000000000000000L);
+      double lat = 37.429167 + (random.nextDouble() - 0.5) * 0.1;
+      double lon = -122.138056 + (random.nextDouble() - 0.5) * 0.1;
+      double heading = random.nextDouble() * 360;  // degrees clockwise from north
+      double v = 0, distance = 0, turn = 0;
+      int turnEnd = 0;
+      for (int t = 0; t < DURATION; t++) {
+        double target;
+        if (t < 40 || t >= DURATION - 60)
+          target = 0;  // parked, then stopped at the end of the lap
+        else if (t < 400 || (t >= 1100 && t < DURATION - 80))
+          target = 40 + 10 * Math.sin(t / 30.0);  // city
+        else if (t < 1100)
+          target = 100 + 3 * random.nextGaussian();  // highway
+        else
+          target = 0;
+        boolean city = target > 0 && target < 60;
+        if (city && t >= turnEnd && random.nextDouble() < 0.02) {
+          turn = (random.nextBoolean() ? 1 : -1) * 10;  // 90 degrees over 9 seconds
+          turnEnd = t + 9;
+        } else if (t >= turnEnd) {
+          turn = 0;
+        }
+        double yaw = turn + 0.3 * random.nextGaussian();
+        double previous = v;
+        v += Math.max(-12, Math.min(8, target - v));  // km/h per second
+        v = Math.max(0, v);
+        if (v == 0)
+          yaw = 0;
+        heading -= yaw;  // positive yaw rate turns left
+        double meters = (previous + v) / 2 / 3.6;
+        distance += meters;
+        lat += meters * Math.cos(Math.toRadians(heading)) / METERS_PER_DEGREE;
+        lon += meters * Math.sin(Math.toRadians(heading)) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+        latitude[t] = lat;
+        longitude[t] = lon;
+        speed[t] = Math.round(v * 100) / 100.0;
+        yawRate[t] = Math.round(yaw * 1000) / 1000.0;
+        longitudinalAcceleration[t] = Math.round((v - previous) / 3.6 * 1000) / 1000.0;
+        odometer[t] = distance / 1000;
+        brakeOn[t] = v < previous || v == 0;
+        parkingBrakeOn[t] = t < 30;
+      }
+      lapDistance = distance / 1000;
+    }
+
+    @Override
+    public boolean sample(int seconds, CarInfo info) {
+      if (seconds < 0)
+        return false;
+      int lap = seconds / DURATION, t = seconds % DURATION;
+      info.vid = vid;
+      info.latitude = latitude[t];
+      info.longitude = longitude[t];
+      info.speed = speed[t];
+      info.yawRate = yawRate[t];
+      info.longitudinalAcceleration = longitudinalAcceleration[t];
+      info.lateralAcceleration = Math.round(speed[t] / 3.6 * Math.toRadians(yawRate[t]) * 1000) / 1000.0;
+      info.odometer = Math.round((lap * lapDistance + odometer[t]) * 100) / 100.0;
+      info.acceleratorPedalRatio = Math.max(0, Math.min(100, Math.round(20 * longitudinalAcceleration[t] + speed[t] / 4)));
+      info.brakeOn = brakeOn[t];
+      info.parkingBrakeOn = parkingBrakeOn[t];
+      info.steeringAngle = Math.round(yawRate[t] * 30 * 10) / 10.0;
+      info.engineRpm = speed[t] == 0 ? 0 : Math.round(800 + 25 * speed[t]);
+      info.residualFuel = Math.max(0, 255 - (int) ((lap * lapDistance + odometer[t]) / 2));
+      info.engineTemperature = 90;
+      info.outsideTemperature = 20;
+      return true;
+    }
+  }
+
+  /**
+   * Runs a server. Arguments: [-port n] [-threads n] [-latency ms] [-jitter ms]
+   * [-journal userid=file]... [-test]. With -test, it also polls a few
+   * vehicles through a VehicleDataClient and a FleetPoller and prints their
+   * snapshots, then exits.
+   */
+  public static void main(String[] args) throws Exception {
+    int port = 8080, threads = 16, latency = 0, jitter = 0;
+    boolean test = false;
+    HashMap<String, String> journals = new HashMap<String, String>();
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+      case "-port": port = Integer.parseInt(args[++i]); break;
+      case "-threads": threads = Integer.parseInt(args[++i]); break;
+      case "-latency": latency = Integer.parseInt(args[++i]); break;
+      case "-jitter": jitter = Integer.parseInt(args[++i]); break;
+      case "-journal": {
+        String[] pair = args[++i].split("=", 2);
+        journals.put(pair[0], pair[1]);
+        break;
+      }
+      case "-test": test = true; port = 0; break;
+      default: throw new IllegalArgumentException("Unknown argument: " + args[i]);
+      }
+    }
+    DataSenderServer server = new DataSenderServer(port, threads);
+    server.setLatency(latency, jitter);
+    for (java.util.Map.Entry<String, String> entry : journals.entrySet())
+      server.setScenario(entry.getKey(), new JournalScenario(new JournalReplay(Paths.get(entry.getValue()), 1)));
+    server.start();
+    System.out.println("Serving at " + server.getUri() + "; run clients with -Dkmkmc.carServer=" + server.getUri());
+    if (!test)
+      return;
+
+    VehicleDataClient client = new VehicleDataClient(VehicleDataClient.USER_ID_411);
+    client.setServer(server.getUri());
+    for (int time : new int[] { 0, 60, 600 }) {
+      client.seek(time);
+      System.out.println(client.latest());
+    }
+    FleetPoller poller = new FleetPoller(100, 200);
+    poller.setServer(server.getUri());
+    Set<VehicleDataClient> fleet = new HashSet<VehicleDataClient>();
+    for (int i = 0; i < 1000; i++)
+      fleet.add(poller.register("car-" + i));
+    poller.start();
+    Thread.sleep(2000);
+    poller.stop();
+    int received = 0;
+    for (VehicleDataClient c : fleet)
+      if (c.latest().getStatus().equals("Vehicle data received"))
+        received++;
+    System.out.println(poller + "; " + received + " of " + fleet.size() + " vehicles received data");
+    System.out.println(HttpTransport.getDefault().getStatistics("localhost"));
+
+    // A userid with markup in it must still give well-formed XML.
+    String userid = "<car & \"driver\">";
+    ByteBuffer response = HttpTransport.getDefault().get(server.getUri().resolve(
+        "/DataSender/services/GetVehicleInfo?userid=" + URLEncoder.encode(userid, StandardCharsets.UTF_8) + "&Spd"));
+    Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(HttpTransport.asStream(response));
+    System.out.println("Userid " + userid + " came back as " +
+        document.getElementsByTagName("userid").item(0).getTextContent());
+    server.stop();
+  }
+}
@@ -0,0 +1,310 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers vehicle events, such as changes of driving state, from a single
+ * producer to any number of subscribers, each on a thread of its own.
+ *
+ * Events are kept in a ring of preallocated slots that the producer fills in
+ * turn, in the style of the LMAX Disruptor: the producer publishes an event by
+ * advancing a cursor, and each subscriber follows the cursor with a sequence
+ * of its own, so neither takes a lock nor allocates anything per event. The
+ * producer waits only if the slowest subscriber falls a whole ring behind.
+ * A subscriber with nothing to do spins briefly, then parks until the
+ * producer unparks it with the next event, so an idle bus costs no CPU.
+ *
+ * Only one thread may publish events. A handler sees each event exactly once,
+ * in the order published, and must not keep the Event passed to it, since its
+ * slot is reused.
+ */
+public class EventBus {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  /** Types of event. */
+  public enum Type {
+    /** The model's driving state changed. */
+    STATE_CHANGED,
+    /** The parking brake was set. */
+    PARKING_BRAKE_SET,
+    /** The parking brake was released. */
+    PARKING_BRAKE_RELEASED,
+    /** The vehicle set off: the parking brake was released at the start of a trip. */
+    TRIP_STARTED,
+    /** The vehicle stopped and its parking brake was set, ending a trip. */
+    TRIP_ENDED,
+    /** The vehicle entered a geofence. */
+    GEOFENCE_ENTERED,
+    /** The vehicle left a geofence. */
+    GEOFENCE_EXITED
+  };
+
+  /** An event. Its fields are overwritten when its slot in the ring is reused. */
+  public static final class Event {
+    private long sequence;
+    private Type type;
+    private VehicleSnapshot snapshot;
+    private Model.State previousState, state;
+    private Geofence geofence;
+
+    /** Gets the event's position in the sequence of all events published. */
+    public long getSequence() { return sequence; }
+    public Type getType() { return type; }
+    /** Gets the vehicle snapshot in which the event was detected. */
+    public VehicleSnapshot getSnapshot() { return snapshot; }
+    /** Gets the driving state before the event. */
+    public Model.State getPreviousState() { return previousState; }
+    /** Gets the driving state after the event. */
+    public Model.State getState() { return state; }
+    /** Gets the geofence entered or left, or null if the event isn't about one. */
+    public Geofence getGeofence() { return geofence; }
+
+    @Override
+    public String toString() {
+      return "Event#" + sequence + "[" + type + " at " + (snapshot == null ? "?" : snapshot.getTime()) +
+          ", " + previousState + " -> " + state + (geofence == null ? "" : ", " + geofence) + "]";
+    }
+  }
+
+  /** Handles events delivered to a subscriber. */
+  public interface Handler {
+    void onEvent(Event event);
+  }
+
+  /** A subscriber's thread and its position in the ring. */
+  public final class Subscription implements Runnable {
+    private final String name;
+    private final Handler handler;
+    /** Sequence of the last event handled; the producer may reuse its slot. */
+    private final AtomicLong sequence;
+    private final Thread thread;
+    private volatile boolean running = true;
+    /** Whether the thread is parked, or about to park, waiting for the producer to unpark it. */
+    private volatile boolean waiting;
+    private volatile long handledCount;
+
+    private Subscription(String name, Handler handler) {
+      this.name = name;
+      this.handler = handler;
+      this.sequence = new AtomicLong(cursor.get());  // holds the producer back until subscribe() sets it
+      thread = new Thread(this, name);
+      thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      long next = sequence.get() + 1;
+      int idleCount = 0;
+      while (running) {
+        long available = cursor.get();
+        if (available < next) {
+          if (++idleCount < PARK_AFTER) {
+            idle(idleCount);
+          } else {
+            // Announce we're waiting, then check again, so an event published meanwhile isn't missed.
+            waiting = true;
+            if (running && cursor.get() < next)
+              LockSupport.park(this);
+            waiting = false;
+          }
+          continue;
+        }
+        idleCount = 0;
+        handledCount += available + 1 - next;
+        for (; next <= available; next++) {
+          try {
+            handler.onEvent(ring[(int) next & mask]);
+          } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Subscriber " + name + " failed", e);
+          }
+        }
+        sequence.lazySet(available);
+      }
+    }
+
+    /** Stops delivering events to the subscriber. */
+    public void close() {
+      running = false;
+      subscriptions.remove(this);
+      LockSupport.unpark(thread);
+    }
+
+    public String getName() { return name; }
+    /** Gets the number of events handled. */
+    public long getHandledCount() { return handledCount; }
+    /** Gets the number of events waiting for the subscriber. */
+    public long getBacklog() { return cursor.get() - sequence.get(); }
+
+    @Override
+    public String toString() {
+      return name + ": " + handledCount + " handled, " + getBacklog() + " behind";
+    }
+  }
+
+  /** Spins, then yields, as a subscriber waits longer for an event. */
+  private static void idle(int idleCount) {
+    if (idleCount < 100)
+      Thread.onSpinWait();
+    else
+      Thread.yield();
+  }
+
+  /** Number of times a subscriber checks for an event before it parks until unparked. */
+  private static final int PARK_AFTER = 200;
+
+  private final Event[] ring;
+  private final int mask;
+  /** Sequence of the last event published. */
+  private final AtomicLong cursor = new AtomicLong(-1);
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+  /** Sequence of the last event claimed. Accessed only by the producer. */
+  private long claimed = -1;
+  /** Lowest sequence any subscriber had handled, when last checked. Accessed only by the producer. */
+  private long gate = -1;
+
+  /** Constructs an event bus whose ring holds a specified number of events, rounded up to a power of 2. */
+  public EventBus(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    ring = new Event[size];
+    for (int i = 0; i < size; i++)
+      ring[i] = new Event();
+    mask = size - 1;
+  }
+
+  /**
+   * Subscribes a handler to all events published from now on, and starts a
+   * thread that delivers them to it.
+   */
+  public Subscription subscribe(String name, Handler handler) {
+    Subscription subscription = new Subscription(name, handler);
+    subscriptions.add(subscription);
+    // Start from the cursor only once the producer can see the subscription, so
+    // it can't reuse a slot the subscriber hasn't handled.
+    subscription.sequence.set(cursor.get());
+    subscription.thread.start();
+    return subscription;
+  }
+
+  /**
+   * Publishes an event. Must be called by one thread only.
+   *
+   * @param type the type of event
+   * @param snapshot the vehicle snapshot in which the event was detected
+   * @param previousState the driving state before the event
+   * @param state the driving state after the event
+   */
+  public void publish(Type type, VehicleSnapshot snapshot, Model.State previousState, Model.State state) {
+    publish(type, snapshot, previousState, state, null);
+  }
+
+  /**
+   * Publishes an event about a geofence. Must be called by the same thread as
+   * other events are published by.
+   *
+   * @param type the type of event
+   * @param snapshot the vehicle snapshot in which the event was detected
+   * @param previousState the driving state before the event
+   * @param state the driving state after the event
+   * @param geofence the geofence entered or left
+   */
+  public void publish(Type type, VehicleSnapshot snapshot, Model.State previousState, Model.State state,
+      Geofence geofence) {
+    long sequence = claimed + 1;
+    long wrapPoint = sequence - ring.length;
+    while (wrapPoint > gate) {
+      gate = minimumSequence(sequence - 1);
+      if (wrapPoint > gate)
+        LockSupport.parkNanos(1000);
+    }
+    Event event = ring[(int) sequence & mask];
+    event.sequence = sequence;
+    event.type = type;
+    event.snapshot = snapshot;
+    event.previousState = previousState;
+    event.state = state;
+    event.geofence = geofence;
+    claimed = sequence;
+    cursor.set(sequence);
+    for (Subscription subscription : subscriptions)
+      if (subscription.waiting)
+        LockSupport.unpark(subscription.thread);
+  }
+
+  /** Gets the lowest sequence handled by any subscriber, or a default if there are none. */
+  private long minimumSequence(long minimum) {
+    for (Subscription subscription : subscriptions)
+      minimum = Math.min(minimum, subscription.sequence.get());
+    return minimum;
+  }
+
+  /** Gets the number of events published. */
+  public long getPublishedCount() { return cursor.get() + 1; }
+  /** Gets the number of events the ring holds. */
+  public int getCapacity() { return ring.length; }
+  public List<Subscription> getSubscriptions() { return subscriptions; }
+
+  /**
+   * Unit test. Publishes events as fast as it can to three subscribers, one
+   * of them slow, and checks each sees every event once, in order. Then
+   * measures the CPU the idle subscribers use, and the latency of waking them.
+   */
+  public static void main(String[] args) throws Exception {
+    final int n = 2000000;
+    EventBus bus = new EventBus(1024);
+    final long[][] results = new long[3][2];  // {count, out of order}
+    for (int i = 0; i < 3; i++) {
+      final long[] result = results[i];
+      final boolean slow = i == 2;
+      bus.subscribe("subscriber" + i, event -> {
+        if (event.getSequence() != result[0])
+          result[1]++;
+        result[0]++;
+        if (slow && (event.getSequence() & 0xffff) == 0)
+          LockSupport.parkNanos(1000000);
+      });
+    }
+    Model.State[] states = Model.State.values();
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++)
+      bus.publish(Type.STATE_CHANGED, VehicleSnapshot.STARTUP, states[i % states.length],
+          states[(i + 1) % states.length]);
+    for (Subscription subscription : bus.getSubscriptions())
+      while (subscription.getBacklog() > 0)
+        Thread.sleep(1);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    for (int i = 0; i < 3; i++)
+      System.out.println("subscriber" + i + ": " + results[i][0] + " events, " + results[i][1] + " out of order");
+    System.out.printf("%d events to %d subscribers in %.3f s: %.1f million events/s%n",
+        n, 3, seconds, n / seconds / 1e6);
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Thread.sleep(100);
+    long cpu = 0;
+    for (Subscription subscription : bus.getSubscriptions())
+      cpu -= threads.getThreadCpuTime(subscription.thread.getId());
+    Thread.sleep(1000);
+    for (Subscription subscription : bus.getSubscriptions())
+      cpu += threads.getThreadCpuTime(subscription.thread.getId());
+    System.out.printf("Idle for 1 s: %.2f ms of CPU%n", cpu / 1e6);
+    long latency = 0;
+    for (int i = 0; i < 100; i++) {
+      start = System.nanoTime();
+      bus.publish(Type.STATE_CHANGED, VehicleSnapshot.STARTUP, states[0], states[1]);
+      for (Subscription subscription : bus.getSubscriptions())
+        while (subscription.getBacklog() > 0)
+          Thread.yield();
+      latency += System.nanoTime() - start;
+      Thread.sleep(5);
+    }
+    System.out.printf("%.0f us to wake subscribers and handle an event%n", latency / 1e3 / 100);
+  }
+}
@@ -0,0 +1,351 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls the web service on behalf of many vehicles at once. Registered vehicles
+ * are divided into batches, and each batch is polled with a single
+ * GetVehicleInfo request listing all of its userids. The carinfo records of
+ * the response are routed to the vehicles' {@link VehicleDataClient}s, which
+ * publish snapshots just as if they had polled themselves.
+ *
+ * Batches are polled concurrently, without waiting for one another. If a
+ * batch's previous request is still outstanding when its next poll is due,
+ * that poll is skipped.
+ *
+ * The batch size and poll period default to the values of the
+ * org.kmkmc.fleet.batchSize and org.kmkmc.fleet.period (milliseconds) system
+ * properties.
+ */
+public class FleetPoller {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  private final int batchSize;
+  private final long period;
+  private final HttpTransport transport;
+  /** The web service polled. Guarded by lock's write lock. */
+  private URI server = VehicleDataClient.DEFAULT_SERVER;
+
+  /** Registered vehicles by userid, guarded by lock's write lock. */
+  private final LinkedHashMap<String, Vehicle> vehicles = new LinkedHashMap<String, Vehicle>();
+  private volatile Batch[] batches = new Batch[0];
+  /** Set when vehicles are registered or unregistered, so the batches are rebuilt before the next poll. */
+  private volatile boolean batchesStale;
+  /** Incremented whenever the batches are rebuilt. Guarded by lock's write lock. */
+  private int generation;
+  /** Held for reading while a response is routed, and for writing while batches are rebuilt. */
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private ScheduledExecutorService scheduler;
+
+  private final LongAdder requestCount = new LongAdder();
+  private final LongAdder errorCount = new LongAdder();
+  private final LongAdder skipCount = new LongAdder();
+  private final LongAdder recordCount = new LongAdder();
+
+  /** A registered vehicle. */
+  private static class Vehicle {
+    final VehicleDataClient client;
+    /** The values most recently decoded for the vehicle, reused from poll to poll. */
+    final CarInfo info = new CarInfo();
+    /** Whether the response being routed included a record for this vehicle. */
+    boolean received;
+
+    Vehicle(VehicleDataClient client) {
+      this.client = client;
+    }
+  }
+
+  /** A group of vehicles polled with one request. */
+  private class Batch implements CarInfoParser.Router {
+    final int generation;
+    final Vehicle[] members;
+    /** Open-addressed hash table of the members, indexed by userid. */
+    final Vehicle[] table;
+    final URI uri;
+    CarInfoParser parser;
+    final AtomicBoolean inFlight = new AtomicBoolean();
+    Vehicle routed;
+
+    Batch(int generation, List<Vehicle> members) {
+      this.generation = generation;
+      this.members = members.toArray(new Vehicle[members.size()]);
+      table = new Vehicle[Integer.highestOneBit(Math.max(1, 2 * members.size()) - 1) << 1];
+      StringBuilder userids = new StringBuilder();
+      for (Vehicle vehicle : members) {
+        if (userids.length() > 0)
+          userids.append(',');
+        userids.append(vehicle.client.userid());
+        int i = hash(vehicle.client.userid());
+        while (table[i] != null)
+          i = (i + 1) & (table.length - 1);
+        table[i] = vehicle;
+      }
+      uri = VehicleDataClient.serviceUri(server, VehicleDataClient.generateDataRequest(userids.toString()));
+    }
+
+    /** Hashes a userid the same way, whether it's a String or a view of the parser's buffer. */
+    int hash(CharSequence userid) {
+      int h = 0;
+      for (int i = 0; i < userid.length(); i++)
+        h = 31 * h + userid.charAt(i);
+      return (h ^ (h >>> 16)) & (table.length - 1);
+    }
+
+    @Override
+    public CarInfo route(CharSequence userid) {
+      for (int i = hash(userid); table[i] != null; i = (i + 1) & (table.length - 1)) {
+        Vehicle vehicle = table[i];
+        if (CarInfoParser.contentEquals(vehicle.client.userid(), userid)) {
+          if (vehicle.received)
+            return null;  // a duplicate record
+          routed = vehicle;
+          return vehicle.info;
+        }
+      }
+      if (logger.isLoggable(Level.FINE))
+        logger.fine("Skipping record with unrequested userid (" + userid + ")");
+      return null;
+    }
+
+    @Override
+    public void decoded(CarInfo info) {
+      routed.received = true;
+      routed.client.accept(info);
+      recordCount.increment();
+    }
+
+    /** Routes the records of a response to the members. */
+    void route(ByteBuffer response) {
+      lock.readLock().lock();
+      try {
+        if (generation != FleetPoller.this.generation)
+          return;  // the members have been reassigned to other batches
+        for (Vehicle vehicle : members)
+          vehicle.received = false;
+        try {
+          if (parser == null)
+            parser = new CarInfoParser();
+          parser.parse(HttpTransport.asStream(response), this);
+        } catch (Exception e) {
+          errorCount.increment();
+          logger.log(Level.SEVERE, "Failed to parse fleet vehicle data", e);
+          reject("Failed to parse vehicle data");
+          return;
+        }
+        for (Vehicle vehicle : members)
+          if (!vehicle.received)
+            vehicle.client.reject("No vehicle data");
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    /** Records a failed poll for all the members. */
+    void reject(String status) {
+      for (Vehicle vehicle : members)
+        if (!vehicle.received)
+          vehicle.client.reject(status);
+    }
+  }
+
+  /** Constructs a poller with the default batch size and poll period. */
+  public FleetPoller() {
+    this(Integer.getInteger("org.kmkmc.fleet.batchSize", 50), Long.getLong("org.kmkmc.fleet.period", 200));
+  }
+
+  /**
+   * Constructs a poller.
+   *
+   * @param batchSize the greatest number of vehicles polled with one request
+   * @param period the interval between polls, in milliseconds
+   */
+  public FleetPoller(int batchSize, long period) {
+    if (batchSize < 1 || period < 1)
+      throw new IllegalArgumentException("batchSize and period must be positive");
+    this.batchSize = batchSize;
+    this.period = period;
+    this.transport = HttpTransport.getDefault();
+  }
+
+  /** Sets the scheme and host (and optionally port) of the web service polled. */
+  public void setServer(URI server) {
+    lock.writeLock().lock();
+    try {
+      this.server = server;
+      batchesStale = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Registers a vehicle to be polled, and returns the client through which its state is published. */
+  public VehicleDataClient register(String userid) {
+    VehicleDataClient client = new VehicleDataClient(userid);
+    register(client);
+    return client;
+  }
+
+  /** Registers a vehicle to be polled on behalf of a specified client. */
+  public void register(VehicleDataClient client) {
+    lock.writeLock().lock();
+    try {
+      if (vehicles.containsKey(client.userid()))
+        throw new IllegalArgumentException("Already registered: " + client.userid());
+      vehicles.put(client.userid(), new Vehicle(client));
+      batchesStale = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Stops polling a vehicle. */
+  public void unregister(String userid) {
+    lock.writeLock().lock();
+    try {
+      if (vehicles.remove(userid) != null)
+        batchesStale = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Gets the number of registered vehicles. */
+  public int getVehicleCount() {
+    lock.readLock().lock();
+    try {
+      return vehicles.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Divides the registered vehicles into batches, if that's been invalidated. */
+  private void rebuildBatches() {
+    lock.writeLock().lock();
+    try {
+      if (batchesStale) {
+        batchesStale = false;
+        divideBatches();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void divideBatches() {
+    generation++;
+    List<Batch> list = new ArrayList<Batch>();
+    List<Vehicle> members = new ArrayList<Vehicle>(batchSize);
+    for (Vehicle vehicle : vehicles.values()) {
+      members.add(vehicle);
+      if (members.size() == batchSize) {
+        list.add(new Batch(generation, members));
+        members.clear();
+      }
+    }
+    if (!members.isEmpty())
+      list.add(new Batch(generation, members));
+    batches = list.toArray(new Batch[list.size()]);
+  }
+
+  /** Starts polling all registered vehicles periodically, on a background thread. */
+  public synchronized void start() {
+    if (scheduler != null)
+      return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "FleetPoller");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleAtFixedRate(this::poll, 0, period, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops polling. Requests already sent are still routed when answered. */
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+  }
+
+  /** Sends one request for each batch whose previous request has been answered. */
+  public void poll() {
+    if (batchesStale)
+      rebuildBatches();
+    for (final Batch batch : batches) {
+      if (!batch.inFlight.compareAndSet(false, true)) {
+        skipCount.increment();
+        continue;
+      }
+      requestCount.increment();
+      try {
+        transport.getAsync(batch.uri).whenComplete((response, throwable) -> {
+          try {
+            if (throwable == null) {
+              batch.route(response);
+            } else {
+              errorCount.increment();
+              logger.severe("Error contacting web service: " + throwable.getMessage());
+              batch.reject("Error contacting web service");
+            }
+          } finally {
+            batch.inFlight.set(false);
+          }
+        });
+      } catch (RuntimeException e) {
+        batch.inFlight.set(false);
+        errorCount.increment();
+        logger.log(Level.SEVERE, "Failed to send fleet request", e);
+      }
+    }
+  }
+
+  /** Gets the number of batch requests sent. */
+  public long getRequestCount() { return requestCount.sum(); }
+  /** Gets the number of batch requests that failed or whose responses couldn't be parsed. */
+  public long getErrorCount() { return errorCount.sum(); }
+  /** Gets the number of batch polls skipped because the previous request was still outstanding. */
+  public long getSkipCount() { return skipCount.sum(); }
+  /** Gets the number of vehicle records routed to clients. */
+  public long getRecordCount() { return recordCount.sum(); }
+
+  @Override
+  public String toString() {
+    return "FleetPoller: " + getVehicleCount() + " vehicles in " + batches.length + " batches, "
+        + getRequestCount() + " requests, " + getErrorCount() + " errors, " + getSkipCount() + " skipped, "
+        + getRecordCount() + " records";
+  }
+
+  /** Unit test. Polls the vehicles named on the command line, printing their locations each second. */
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0)
+      args = new String[] { VehicleDataClient.USER_ID_411, VehicleDataClient.USER_ID_413 };
+    FleetPoller poller = new FleetPoller();
+    List<VehicleDataClient> clients = new ArrayList<VehicleDataClient>();
+    for (String userid : args)
+      clients.add(poller.register(userid));
+    poller.start();
+    for (int i = 0; i < 10; i++) {
+      Thread.sleep(1000);
+      for (VehicleDataClient client : clients)
+        System.out.println(client.userid() + " " + client.latest());
+      System.out.println(poller);
+    }
+    poller.stop();
+  }
+}
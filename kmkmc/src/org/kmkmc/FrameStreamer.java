@@ -0,0 +1,552 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.RepaintManager;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Renders a Swing component offscreen, without a window, and streams its
+ * frames over a local socket to FrameViewers, so the console and instrument
+ * cluster can be shown on other displays.
+ *
+ * The streamer installs a RepaintManager that records the regions components
+ * ask to have repainted, instead of painting them. At each frame, at FPS
+ * frames per second (set org.kmkmc.stream.fps), only those regions are
+ * painted, and only the BLOCK-pixel blocks within them that actually changed
+ * are sent, as runs of blocks, deflated together. A frame with no changes
+ * isn't sent at all, so the work and bandwidth per frame follow what changed,
+ * not the size of the screen. A viewer gets a whole frame when it connects,
+ * and again if it falls behind, and a delta after that.
+ *
+ * Each frame is sent as: the int MAGIC, a long sequence number, the short
+ * width and height of the screen, a boolean that's true for a whole frame,
+ * an int count of rectangles, each rectangle's short x, y, width and height,
+ * then an int length and that many bytes of the rectangles' pixels, as RGB
+ * bytes row by row, one rectangle after another, deflated.
+ */
+public class FrameStreamer {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  /** Marks the start of each frame: "KMFR". */
+  static final int MAGIC = 0x4b4d4652;
+  /** Width and height, in pixels, of the blocks compared. */
+  public static final int BLOCK = 32;
+  /** Port streamed from, on the local host. */
+  public static final int PORT = Integer.getInteger("org.kmkmc.stream.port", 5905);
+  /** Frames per second captured. */
+  public static final int FPS = Integer.getInteger("org.kmkmc.stream.fps", 15);
+  /** Frames queued for encoding, or for a viewer, before it's deemed to have fallen behind. */
+  private static final int QUEUE_LENGTH = 8;
+
+  /** The changes captured in one frame. */
+  private static final class Delta {
+    final long sequence;
+    final boolean whole;
+    /** Each rectangle's x, y, width and height. */
+    final int[] rectangles;
+    /** Each rectangle's pixels, row by row. */
+    final int[][] pixels;
+
+    Delta(long sequence, boolean whole, int[] rectangles, int[][] pixels) {
+      this.sequence = sequence;
+      this.whole = whole;
+      this.rectangles = rectangles;
+      this.pixels = pixels;
+    }
+  }
+
+  /** A connected viewer, with a thread sending it frames. */
+  private final class Viewer implements Runnable {
+    private final Socket socket;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_LENGTH);
+    /** Whether it needs a whole frame next. Accessed only by the stream thread. */
+    private boolean needsWhole = true;
+
+    Viewer(Socket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+        while (true) {
+          byte[] frame = queue.take();
+          out.write(frame);
+          out.flush();
+          bytesSent.addAndGet(frame.length);
+        }
+      } catch (IOException e) {
+        logger.info("Viewer " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        viewers.remove(this);
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // already closing
+        }
+      }
+    }
+  }
+
+  /**
+   * Records the regions repainted in the streamed component, in its
+   * coordinates, and the need to lay it out, rather than painting.
+   */
+  private final class Recorder extends RepaintManager {
+    private final List<Rectangle> dirty = new ArrayList<Rectangle>();
+    private boolean layoutNeeded;
+
+    @Override
+    public void addDirtyRegion(JComponent c, int x, int y, int w, int h) {
+      if (w <= 0 || h <= 0 || !(c == root || SwingUtilities.isDescendingFrom(c, root)))
+        return;
+      add(SwingUtilities.convertRectangle(c, new Rectangle(x, y, w, h), root));
+    }
+
+    @Override
+    public void addInvalidComponent(JComponent c) {
+      if (c == root || SwingUtilities.isDescendingFrom(c, root))
+        synchronized (this) {
+          layoutNeeded = true;
+        }
+    }
+
+    /** Adds a region, merging it with any it overlaps. */
+    synchronized void add(Rectangle region) {
+      region = region.intersection(new Rectangle(0, 0, width, height));
+      if (region.isEmpty())
+        return;
+      for (int i = dirty.size() - 1; i >= 0; i--) {
+        if (dirty.get(i).intersects(region)) {
+          region.add(dirty.remove(i));
+          i = dirty.size();  // the grown region may now overlap others
+        }
+      }
+      dirty.add(region);
+    }
+
+    synchronized List<Rectangle> takeDirty() {
+      List<Rectangle> regions = new ArrayList<Rectangle>(dirty);
+      dirty.clear();
+      return regions;
+    }
+
+    synchronized boolean takeLayoutNeeded() {
+      boolean needed = layoutNeeded;
+      layoutNeeded = false;
+      return needed;
+    }
+  }
+
+  private final JComponent root;
+  private final int width, height;
+  private final int blocksAcross, blocksDown;
+  /** The component is painted here; its pixels are compared with those shown. */
+  private final BufferedImage canvas;
+  private final int[] canvasPixels;
+  /** The pixels the viewers have been sent. Event thread only. */
+  private final int[] shown;
+  private final boolean[] changedBlocks;
+  private final Recorder recorder = new Recorder();
+  private final Timer timer;
+  private long sequence;
+  /** Whether the next frame must be whole, because a delta was dropped or a viewer connected. */
+  private volatile boolean resync = true;
+
+  private final BlockingQueue<Delta> deltas = new ArrayBlockingQueue<Delta>(QUEUE_LENGTH);
+  /** The pixels of the last frame encoded, for whole frames for viewers. Stream thread only. */
+  private final int[] screen;
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final List<Viewer> viewers = new CopyOnWriteArrayList<Viewer>();
+  private ServerSocket serverSocket;
+  private Thread streamThread;
+
+  // Statistics:
+  private long frameCount, changedPixels, captureNanos, droppedCount;
+  private final AtomicLong bytesSent = new AtomicLong();
+
+  /**
+   * Constructs a streamer of a component, laid out at a specified size.
+   *
+   * @param root the component, which mustn't be in a window
+   * @param width the width of the frames, in pixels
+   * @param height the height of the frames, in pixels
+   */
+  public FrameStreamer(JComponent root, int width, int height) {
+    this.root = root;
+    this.width = width;
+    this.height = height;
+    blocksAcross = (width + BLOCK - 1) / BLOCK;
+    blocksDown = (height + BLOCK - 1) / BLOCK;
+    canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    canvasPixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+    shown = new int[width * height];
+    screen = new int[width * height];
+    changedBlocks = new boolean[blocksAcross * blocksDown];
+    recorder.setDoubleBufferingEnabled(false);
+    timer = new Timer(1000 / FPS, event -> capture());
+  }
+
+  /**
+   * Starts capturing frames, and accepting viewers on a port of the local
+   * host (0 for any free port). Call on the event thread. The streamer's
+   * RepaintManager replaces the current one, so nothing else is painted.
+   */
+  public void start(int port) throws IOException {
+    serverSocket = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+    RepaintManager.setCurrentManager(recorder);
+    root.setSize(width, height);
+    layout(root);
+    streamThread = new Thread(this::stream, "stream");
+    streamThread.setDaemon(true);
+    streamThread.start();
+    Thread acceptThread = new Thread(this::accept, "stream-accept");
+    acceptThread.start();  // not a daemon: it keeps a headless app running
+    timer.start();
+    logger.info("Streaming " + width + "x" + height + " frames at " + FPS + " fps on port " + getPort());
+  }
+
+  /** Stops capturing frames and accepting viewers, and disconnects them. */
+  public void stop() {
+    timer.stop();
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      // already closed
+    }
+    if (streamThread != null)
+      streamThread.interrupt();
+    for (Viewer viewer : viewers)
+      try {
+        viewer.socket.close();
+      } catch (IOException e) {
+        // already closed
+      }
+  }
+
+  /** Gets the port viewers connect to. */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        Viewer viewer = new Viewer(socket);
+        viewers.add(viewer);
+        Thread thread = new Thread(viewer, "stream-viewer");
+        thread.setDaemon(true);
+        thread.start();
+        resync = true;  // send it a whole frame at the next capture, even if nothing changes
+        logger.info("Viewer connected from " + socket.getRemoteSocketAddress());
+      } catch (IOException e) {
+        if (!serverSocket.isClosed())
+          logger.log(Level.WARNING, "Failed to accept a viewer", e);
+      }
+    }
+  }
+
+  /** Lays out a container and everything in it, as validation would if it had a window. */
+  private static void layout(Container container) {
+    container.doLayout();
+    for (Component child : container.getComponents())
+      if (child instanceof Container)
+        layout((Container) child);
+  }
+
+  /** Notes the bounds of every component in a container, in the root's coordinates. */
+  private void bounds(Container container, IdentityHashMap<Component, Rectangle> bounds) {
+    for (Component child : container.getComponents()) {
+      bounds.put(child, SwingUtilities.convertRectangle(container, child.getBounds(), root));
+      if (child instanceof Container)
+        bounds((Container) child, bounds);
+    }
+  }
+
+  /**
+   * Captures a frame: lays out the component if need be, paints the regions
+   * repainted since the last frame, and queues the blocks that changed for
+   * the viewers. Called on the event thread.
+   */
+  private void capture() {
+    long start = System.nanoTime();
+    if (recorder.takeLayoutNeeded()) {
+      // Repaint whatever the layout moves.
+      IdentityHashMap<Component, Rectangle> before = new IdentityHashMap<Component, Rectangle>();
+      bounds(root, before);
+      layout(root);
+      IdentityHashMap<Component, Rectangle> after = new IdentityHashMap<Component, Rectangle>();
+      bounds(root, after);
+      for (java.util.Map.Entry<Component, Rectangle> entry : after.entrySet()) {
+        Rectangle old = before.get(entry.getKey());
+        if (!entry.getValue().equals(old)) {
+          recorder.add(entry.getValue());
+          if (old != null)
+            recorder.add(old);
+        }
+      }
+    }
+    boolean whole = resync;
+    List<Rectangle> regions = recorder.takeDirty();
+    if (whole) {
+      resync = false;
+      regions = Arrays.asList(new Rectangle(0, 0, width, height));
+    } else if (regions.isEmpty()) {
+      return;
+    }
+
+    Graphics2D g = canvas.createGraphics();
+    for (Rectangle region : regions) {
+      g.setClip(region);
+      root.paint(g);
+    }
+    g.dispose();
+
+    // Mark the blocks that changed, and note them as shown.
+    Arrays.fill(changedBlocks, false);
+    for (Rectangle region : regions) {
+      for (int by = region.y / BLOCK; by <= (region.y + region.height - 1) / BLOCK; by++) {
+        for (int bx = region.x / BLOCK; bx <= (region.x + region.width - 1) / BLOCK; bx++) {
+          int block = by * blocksAcross + bx;
+          if (changedBlocks[block])
+            continue;
+          int x0 = bx * BLOCK, y0 = by * BLOCK, x1 = Math.min(x0 + BLOCK, width), y1 = Math.min(y0 + BLOCK, height);
+          if (!whole && blockEquals(x0, y0, x1, y1))
+            continue;
+          changedBlocks[block] = true;
+          for (int y = y0; y < y1; y++)
+            System.arraycopy(canvasPixels, y * width + x0, shown, y * width + x0, x1 - x0);
+        }
+      }
+    }
+
+    // Send each run of changed blocks in a row as a rectangle.
+    List<int[]> rectangles = new ArrayList<int[]>();
+    for (int by = 0; by < blocksDown; by++) {
+      for (int bx = 0; bx < blocksAcross; bx++) {
+        if (!changedBlocks[by * blocksAcross + bx])
+          continue;
+        int end = bx;
+        while (end + 1 < blocksAcross && changedBlocks[by * blocksAcross + end + 1])
+          end++;
+        int x0 = bx * BLOCK, y0 = by * BLOCK;
+        rectangles.add(new int[] { x0, y0, Math.min((end + 1) * BLOCK, width) - x0,
+            Math.min(y0 + BLOCK, height) - y0 });
+        bx = end;
+      }
+    }
+    if (!rectangles.isEmpty()) {
+      int[] packed = new int[rectangles.size() * 4];
+      int[][] pixels = new int[rectangles.size()][];
+      for (int i = 0; i < rectangles.size(); i++) {
+        int[] r = rectangles.get(i);
+        System.arraycopy(r, 0, packed, i * 4, 4);
+        pixels[i] = new int[r[2] * r[3]];
+        for (int y = 0; y < r[3]; y++)
+          System.arraycopy(shown, (r[1] + y) * width + r[0], pixels[i], y * r[2], r[2]);
+        changedPixels += r[2] * r[3];
+      }
+      if (deltas.offer(new Delta(++sequence, whole, packed, pixels))) {
+        frameCount++;
+      } else {
+        resync = true;  // the encoder is behind: start again from a whole frame
+        droppedCount++;
+      }
+    }
+    captureNanos += System.nanoTime() - start;
+  }
+
+  /** Tests whether a block of the canvas equals the pixels shown. */
+  private boolean blockEquals(int x0, int y0, int x1, int y1) {
+    for (int y = y0; y < y1; y++)
+      for (int i = y * width + x0, end = y * width + x1; i < end; i++)
+        if (canvasPixels[i] != shown[i])
+          return false;
+    return true;
+  }
+
+  /** Encodes the queued frames, and passes them to the viewers. Runs on the stream thread. */
+  private void stream() {
+    try {
+      while (true) {
+        Delta delta = deltas.take();
+        int[] r = delta.rectangles;
+        for (int i = 0; i < delta.pixels.length; i++)
+          for (int y = 0; y < r[i * 4 + 3]; y++)
+            System.arraycopy(delta.pixels[i], y * r[i * 4 + 2], screen, (r[i * 4 + 1] + y) * width + r[i * 4],
+                r[i * 4 + 2]);
+        byte[] deltaFrame = null, wholeFrame = null;
+        for (Viewer viewer : viewers) {
+          byte[] frame;
+          if (viewer.needsWhole || delta.whole) {
+            if (wholeFrame == null)
+              wholeFrame = encode(delta.sequence, true, new int[] { 0, 0, width, height }, new int[][] { screen });
+            frame = wholeFrame;
+            viewer.needsWhole = false;
+          } else {
+            if (deltaFrame == null)
+              deltaFrame = encode(delta.sequence, false, delta.rectangles, delta.pixels);
+            frame = deltaFrame;
+          }
+          if (!viewer.queue.offer(frame)) {
+            viewer.queue.clear();  // it's fallen behind: skip to a whole frame
+            viewer.needsWhole = true;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Failed to encode a frame; streaming stopped", e);
+    }
+  }
+
+  /** Encodes a frame in the stream's format. */
+  private byte[] encode(long sequence, boolean whole, int[] rectangles, int[][] pixels) throws IOException {
+    int count = rectangles.length / 4, size = 0;
+    for (int[] p : pixels)
+      size += p.length;
+    byte[] raw = new byte[size * 3];
+    int j = 0;
+    for (int[] p : pixels) {
+      for (int rgb : p) {
+        raw[j++] = (byte) (rgb >> 16);
+        raw[j++] = (byte) (rgb >> 8);
+        raw[j++] = (byte) rgb;
+      }
+    }
+    deflater.reset();
+    deflater.setInput(raw);
+    deflater.finish();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+    byte[] buffer = new byte[8192];
+    while (!deflater.finished())
+      compressed.write(buffer, 0, deflater.deflate(buffer));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(compressed.size() + 32 + count * 8);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeLong(sequence);
+    out.writeShort(width);
+    out.writeShort(height);
+    out.writeBoolean(whole);
+    out.writeInt(count);
+    for (int value : rectangles)
+      out.writeShort(value);
+    out.writeInt(compressed.size());
+    compressed.writeTo(out);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /** Gets the number of frames with changes captured. */
+  public long getFrameCount() { return frameCount; }
+  /** Gets the number of bytes sent to viewers. */
+  public long getBytesSent() { return bytesSent.get(); }
+  /** Gets the number of frames dropped because encoding fell behind. */
+  public long getDroppedCount() { return droppedCount; }
+  /** Gets the number of viewers connected. */
+  public int getViewerCount() { return viewers.size(); }
+
+  @Override
+  public String toString() {
+    return String.format("FrameStreamer[%dx%d, %d frames, %.1f%% changed, %.2f ms per capture, %d dropped, " +
+        "%d viewers, %d bytes sent]", width, height, frameCount,
+        frameCount == 0 ? 0 : 100.0 * changedPixels / frameCount / (width * height),
+        frameCount == 0 ? 0 : captureNanos / 1e6 / frameCount, droppedCount, viewers.size(), bytesSent.get());
+  }
+
+  /**
+   * Unit test. Streams an instrument cluster, with the speed changing, to a
+   * viewer in this process for a few seconds, then checks the viewer's image
+   * matches and reports the bytes per frame against a whole frame's.
+   */
+  public static void main(String[] args) throws Exception {
+    InstrumentCluster cluster = new InstrumentCluster();
+    JPanel root = new JPanel(new BorderLayout());
+    root.add(cluster, BorderLayout.CENTER);
+    FrameStreamer streamer = new FrameStreamer(root, 1280, 320);
+    SwingUtilities.invokeAndWait(() -> {
+      try {
+        streamer.start(0);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    FrameViewer viewer = new FrameViewer();
+    viewer.connect("localhost", streamer.getPort());
+
+    long start = System.currentTimeMillis();
+    Model.State[] states = Model.State.values();
+    Timer driver = new Timer(1000 / 60, event -> {
+      double t = (System.currentTimeMillis() - start) / 1000.0;
+      cluster.setSpeed(40 + 25 * Math.sin(t / 2));
+      cluster.setFuel(200 - (int) (t * 4));
+      cluster.setState(states[(int) t % states.length]);
+    });
+    SwingUtilities.invokeAndWait(driver::start);
+    Thread.sleep(5000);
+    SwingUtilities.invokeAndWait(driver::stop);
+    // A viewer joining while the screen is idle should still get it whole.
+    FrameViewer late = new FrameViewer();
+    late.connect("localhost", streamer.getPort());
+    Thread.sleep(1000);  // for the last frames to arrive
+
+    int[] expected = new int[streamer.shown.length];
+    SwingUtilities.invokeAndWait(() -> System.arraycopy(streamer.shown, 0, expected, 0, expected.length));
+    int mismatches = 0, lateMismatches = 0;
+    for (int y = 0; y < 320; y++) {
+      for (int x = 0; x < 1280; x++) {
+        int pixel = expected[y * 1280 + x] & 0xffffff;
+        if ((viewer.getImage().getRGB(x, y) & 0xffffff) != pixel)
+          mismatches++;
+        BufferedImage lateImage = late.getImage();
+        if (x >= lateImage.getWidth() || y >= lateImage.getHeight() || (lateImage.getRGB(x, y) & 0xffffff) != pixel)
+          lateMismatches++;
+      }
+    }
+    streamer.stop();
+    viewer.disconnect();
+    late.disconnect();
+    System.out.println(streamer);
+    System.out.println(viewer);
+    System.out.println("Viewer joining when idle: " + late + ", " + lateMismatches + " pixels differ");
+    System.out.printf("%.0f bytes per frame, against %d raw and %d deflated for a whole frame; %d pixels differ%n",
+        (double) viewer.getBytesReceived() / Math.max(1, viewer.getFrameCount()), 1280 * 320 * 3,
+        streamer.encode(0, true, new int[] { 0, 0, 1280, 320 }, new int[][] { expected }).length, mismatches);
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+/**
+ * A lightweight display of the frames streamed by a FrameStreamer. It keeps
+ * the screen as an image, applies each frame's rectangles to it, and
+ * repaints just those rectangles.
+ */
+@SuppressWarnings("serial")
+public class FrameViewer extends JComponent {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  /** Guards the image. */
+  private final Object lock = new Object();
+  private BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+  private int[] pixels = new int[1];
+  private final Inflater inflater = new Inflater();
+  private Socket socket;
+
+  // Statistics:
+  private volatile long frameCount, bytesReceived;
+
+  public FrameViewer() {
+    setOpaque(true);
+    setPreferredSize(new Dimension(640, 480));
+  }
+
+  /** Connects to a streamer and shows its frames, as they arrive, until disconnected. */
+  public void connect(String host, int port) throws IOException {
+    socket = new Socket(host, port);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    Thread thread = new Thread(() -> {
+      try {
+        while (true)
+          for (Rectangle r : readFrame(in))
+            repaint(r);
+      } catch (EOFException e) {
+        logger.info("Stream ended");
+      } catch (IOException e) {
+        if (!socket.isClosed())
+          logger.log(Level.WARNING, "Failed to read the stream", e);
+      }
+    }, "viewer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Disconnects from the streamer. */
+  public void disconnect() throws IOException {
+    if (socket != null)
+      socket.close();
+  }
+
+  /**
+   * Reads a frame and applies it to the image.
+   *
+   * @return the rectangles the frame changed
+   * @throws IOException if the stream can't be read, or isn't in FrameStreamer's format
+   */
+  Rectangle[] readFrame(DataInputStream in) throws IOException {
+    if (in.readInt() != FrameStreamer.MAGIC)
+      throw new IOException("Not a frame");
+    in.readLong();  // sequence
+    int width = in.readUnsignedShort(), height = in.readUnsignedShort();
+    boolean whole = in.readBoolean();
+    Rectangle[] rectangles = new Rectangle[in.readInt()];
+    int size = 0;
+    for (int i = 0; i < rectangles.length; i++) {
+      rectangles[i] = new Rectangle(in.readUnsignedShort(), in.readUnsignedShort(), in.readUnsignedShort(),
+          in.readUnsignedShort());
+      size += rectangles[i].width * rectangles[i].height;
+    }
+    byte[] compressed = new byte[in.readInt()];
+    in.readFully(compressed);
+    byte[] raw = new byte[size * 3];
+    inflater.reset();
+    inflater.setInput(compressed);
+    try {
+      if (inflater.inflate(raw) != raw.length)
+        throw new IOException("Frame truncated");
+    } catch (DataFormatException e) {
+      throw new IOException("Frame corrupt", e);
+    }
+
+    synchronized (lock) {
+      if (width != image.getWidth() || height != image.getHeight()) {
+        if (!whole)
+          throw new IOException("Delta for a screen of a different size");
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        SwingUtilities.invokeLater(() -> {
+          setPreferredSize(new Dimension(width, height));
+          revalidate();
+        });
+      }
+      int j = 0;
+      for (Rectangle r : rectangles) {
+        for (int y = r.y; y < r.y + r.height; y++) {
+          for (int i = y * width + r.x, end = i + r.width; i < end; i++, j += 3)
+            pixels[i] = (raw[j] & 0xff) << 16 | (raw[j + 1] & 0xff) << 8 | (raw[j + 2] & 0xff);
+        }
+      }
+    }
+    frameCount++;
+    bytesReceived += 25 + rectangles.length * 8 + compressed.length;
+    return rectangles;
+  }
+
+  /** Gets the image of the screen. Its pixels may change as frames arrive. */
+  public BufferedImage getImage() {
+    synchronized (lock) {
+      return image;
+    }
+  }
+
+  public long getFrameCount() { return frameCount; }
+  public long getBytesReceived() { return bytesReceived; }
+
+  @Override
+  protected void paintComponent(Graphics g) {
+    synchronized (lock) {
+      g.drawImage(image, 0, 0, null);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FrameViewer[" + frameCount + " frames, " + bytesReceived + " bytes]";
+  }
+
+  /** Shows the frames streamed from a host and port, by default localhost and FrameStreamer.PORT. */
+  public static void main(String[] args) throws Exception {
+    String host = args.length > 0 ? args[0] : "localhost";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : FrameStreamer.PORT;
+    FrameViewer viewer = new FrameViewer();
+    JFrame frame = new JFrame("KMKMC " + host + ":" + port);
+    frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+    frame.getContentPane().add(viewer);
+    frame.pack();
+    frame.setVisible(true);
+    viewer.connect(host, port);
+  }
+}
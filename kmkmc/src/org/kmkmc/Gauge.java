@@ -0,0 +1,404 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.text.DecimalFormat;
+import java.util.IdentityHashMap;
+
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.RepaintManager;
+import javax.swing.SwingConstants;
+
+/**
+ * A custom-painted instrument cluster gauge. A gauge remembers the value it
+ * shows, in the resolution it shows it, so setting the same value again does
+ * nothing, and a change repaints only the part of the gauge that differs. It
+ * paints from sprites, images of its glyphs and segments drawn once when it's
+ * constructed. Gauges are set and painted on the event thread.
+ */
+@SuppressWarnings("serial")
+public abstract class Gauge extends JComponent {
+  // Statistics:
+  private long updateCount, changeCount, paintCount, paintNanos;
+
+  protected Gauge(int width, int height) {
+    Dimension size = new Dimension(width, height);
+    setMinimumSize(size);
+    setPreferredSize(size);
+    setOpaque(true);
+    setBackground(Color.black);
+  }
+
+  /** Counts an update, and returns whether the value shown changes. */
+  protected final boolean update(boolean changed) {
+    updateCount++;
+    if (changed)
+      changeCount++;
+    return changed;
+  }
+
+  /** Repaints a region whose appearance has changed. */
+  protected final void changed(Rectangle region) {
+    repaint(region);
+  }
+
+  @Override
+  protected final void paintComponent(Graphics g) {
+    long start = System.nanoTime();
+    Rectangle clip = g.getClipBounds();
+    if (clip == null)
+      clip = new Rectangle(0, 0, getWidth(), getHeight());
+    g.setColor(getBackground());
+    g.fillRect(clip.x, clip.y, clip.width, clip.height);
+    paintGauge((Graphics2D) g);
+    paintCount++;
+    paintNanos += System.nanoTime() - start;
+  }
+
+  /** Paints the gauge over its background, within the clip. */
+  protected abstract void paintGauge(Graphics2D g);
+
+  /** Gets the number of values set. */
+  public long getUpdateCount() { return updateCount; }
+  /** Gets the number of values set that changed what's shown. */
+  public long getChangeCount() { return changeCount; }
+  public long getPaintCount() { return paintCount; }
+  /** Gets the mean time to paint, in milliseconds. */
+  public double getMeanPaintMillis() { return paintCount == 0 ? 0 : paintNanos / 1e6 / paintCount; }
+
+  @Override
+  public String toString() {
+    return String.format("%s[%d updates, %d changes, %d paints of %.3f ms]", getClass().getSimpleName(),
+        updateCount, changeCount, paintCount, getMeanPaintMillis());
+  }
+
+  /** Creates a translucent image to draw a sprite on. */
+  private static BufferedImage sprite(int width, int height) {
+    return new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_ARGB);
+  }
+
+  /** Sprites of the characters of a string, in a font and color, for drawing text without laying it out. */
+  static final class Glyphs {
+    private final String characters;
+    private final BufferedImage[] sprites;
+    /** Room left of each glyph's origin, and right of its advance, for overhang. */
+    private final int pad;
+    private final int ascent, descent;
+    private final int[] advances;
+
+    Glyphs(Font font, Color color, String characters) {
+      this.characters = characters;
+      BufferedImage scratch = sprite(1, 1);
+      Graphics2D g = scratch.createGraphics();
+      FontMetrics metrics = g.getFontMetrics(font);
+      g.dispose();
+      ascent = metrics.getAscent();
+      descent = metrics.getDescent();
+      pad = font.getSize() / 3;
+      sprites = new BufferedImage[characters.length()];
+      advances = new int[characters.length()];
+      for (int i = 0; i < characters.length(); i++) {
+        String s = characters.substring(i, i + 1);
+        advances[i] = metrics.stringWidth(s);
+        sprites[i] = sprite(advances[i] + 2 * pad, ascent + descent);
+        g = sprites[i].createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setFont(font);
+        g.setColor(color);
+        g.drawString(s, pad, ascent);
+        g.dispose();
+      }
+    }
+
+    int getAscent() { return ascent; }
+    int getHeight() { return ascent + descent; }
+    int getPad() { return pad; }
+
+    /** Gets the width of a string, whose characters must all have sprites. */
+    int width(CharSequence s) {
+      int width = 0;
+      for (int i = 0; i < s.length(); i++)
+        width += advances[characters.indexOf(s.charAt(i))];
+      return width;
+    }
+
+    /** Draws a string, whose characters must all have sprites, with its baseline starting at (x, y). */
+    void draw(Graphics g, CharSequence s, int x, int y) {
+      for (int i = 0; i < s.length(); i++)
+        x += draw(g, s.charAt(i), x, y);
+    }
+
+    /** Draws a character, which must have a sprite, with its baseline starting at (x, y), and returns its advance. */
+    int draw(Graphics g, char c, int x, int y) {
+      int index = characters.indexOf(c);
+      g.drawImage(sprites[index], x - pad, y - ascent, null);
+      return advances[index];
+    }
+  }
+
+  /** Shows the speed as a whole number of miles per hour, like "55 mph", right aligned. */
+  public static class Speed extends Gauge {
+    private static final int DIGITS = 3;
+    private static final String SUFFIX = " mph";
+    private final Glyphs glyphs = new Glyphs(new Font("Monospaced", Font.BOLD | Font.ITALIC, 72), Color.orange,
+        "0123456789 mph");
+    /** Width of a digit, which in a monospaced font is the width of every character. */
+    private final int advance = glyphs.width("0");
+    /** The speed shown, or -1 before one is set. */
+    private int speed = -1;
+    private final char[] digits = new char[DIGITS];
+
+    public Speed() {
+      super(300, 100);
+      setMaximumSize(new Dimension(Integer.MAX_VALUE, Integer.MAX_VALUE));
+    }
+
+    /** Sets the speed shown, which is rounded to a whole number from 0 to 999. */
+    public void setSpeed(double speed) {
+      int value = (int) Math.max(0, Math.min(999, Math.round(speed)));
+      if (!update(value != this.speed))
+        return;
+      char[] old = digits.clone();
+      this.speed = value;
+      format(value, digits);
+      for (int i = 0; i < DIGITS; i++)
+        if (digits[i] != old[i])
+          changed(cellBounds(i));
+    }
+
+    public int getSpeed() { return speed; }
+
+    /** Formats a speed right aligned in digit cells, blank for leading zeros. */
+    private static void format(int value, char[] digits) {
+      for (int i = digits.length - 1; i >= 0; i--) {
+        digits[i] = value > 0 || i == digits.length - 1 ? (char) ('0' + value % 10) : ' ';
+        value /= 10;
+      }
+    }
+
+    private int baseline() {
+      return (getHeight() - glyphs.getHeight()) / 2 + glyphs.getAscent();
+    }
+
+    /** Gets the left edge of digit cell i. */
+    private int cellX(int i) {
+      return getWidth() - glyphs.width(SUFFIX) - (DIGITS - i) * advance;
+    }
+
+    /** Gets the area digit cell i's sprite may cover. */
+    private Rectangle cellBounds(int i) {
+      return new Rectangle(cellX(i) - glyphs.getPad(), baseline() - glyphs.getAscent(), advance + 2 * glyphs.getPad(),
+          glyphs.getHeight());
+    }
+
+    @Override
+    protected void paintGauge(Graphics2D g) {
+      if (speed < 0)
+        return;
+      int y = baseline();
+      for (int i = 0; i < DIGITS; i++)
+        glyphs.draw(g, digits[i], cellX(i), y);
+      glyphs.draw(g, SUFFIX, cellX(DIGITS), y);
+    }
+  }
+
+  /** Shows the fuel level as a column of segments, with the percentage. */
+  public static class Fuel extends Gauge {
+    /** The fuel level of a full tank. */
+    public static final int FULL = 255;
+    private static final int SEGMENTS = 20, GAP = 2;
+    private final Glyphs glyphs = new Glyphs(new Font("Dialog", Font.BOLD, 12), Color.white, "0123456789%");
+    private BufferedImage lit, unlit;
+    /** The percentage shown, or -1 before one is set. */
+    private int percent = -1;
+
+    public Fuel() {
+      super(24, 100);
+      setMaximumSize(new Dimension(24, Integer.MAX_VALUE));
+    }
+
+    /** Sets the fuel level, from 0 to FULL. */
+    public void setFuel(int fuel) {
+      int value = (int) Math.round(100.0 * Math.max(0, Math.min(FULL, fuel)) / FULL);
+      if (!update(value != percent))
+        return;
+      percent = value;
+      changed(new Rectangle(0, 0, getWidth(), getHeight()));
+    }
+
+    public int getPercent() { return percent; }
+
+    /** Draws the segment sprites, if the gauge's size has changed. */
+    private void prepareSprites(int width, int height) {
+      if (lit != null && lit.getWidth() == width && lit.getHeight() == height)
+        return;
+      lit = sprite(width, height);
+      unlit = sprite(width, height);
+      Graphics2D g = lit.createGraphics();
+      g.setColor(Color.cyan);
+      g.fillRect(0, 0, width, height);
+      g.dispose();
+      g = unlit.createGraphics();
+      g.setColor(new Color(0x00, 0x40, 0x40));
+      g.fillRect(0, 0, width, height);
+      g.dispose();
+    }
+
+    @Override
+    protected void paintGauge(Graphics2D g) {
+      if (percent < 0)
+        return;
+      int width = getWidth(), segmentHeight = Math.max(1, (getHeight() - (SEGMENTS - 1) * GAP) / SEGMENTS);
+      prepareSprites(width, segmentHeight);
+      int litCount = (percent * SEGMENTS + 50) / 100;
+      for (int i = 0; i < SEGMENTS; i++) {
+        int y = getHeight() - (i + 1) * segmentHeight - i * GAP;
+        g.drawImage(i < litCount ? lit : unlit, 0, y, null);
+      }
+      String text = percent + "%";
+      glyphs.draw(g, text, (width - glyphs.width(text)) / 2, (getHeight() + glyphs.getAscent()) / 2);
+    }
+  }
+
+  /** Shows the driving state as a stack of four bars, more of them lit the more demanding it is. */
+  public static class Modes extends Gauge {
+    private static final int BARS = 4, BAR_WIDTH = 60, BAR_HEIGHT = 45, GAP = 2;
+    private static final Color[] COLORS = { Color.black, Color.gray, Color.green, Color.yellow, Color.orange };
+    private final BufferedImage[] sprites = new BufferedImage[COLORS.length];
+    /** The color index of each bar, bottom first. */
+    private final int[] shown = new int[BARS];
+    private Model.State state;
+
+    public Modes() {
+      super(BAR_WIDTH, BARS * BAR_HEIGHT + (BARS - 1) * GAP);
+      setMaximumSize(getPreferredSize());
+      for (int i = 0; i < COLORS.length; i++) {
+        sprites[i] = sprite(BAR_WIDTH, BAR_HEIGHT);
+        Graphics2D g = sprites[i].createGraphics();
+        g.setColor(COLORS[i]);
+        g.fillRect(0, 0, BAR_WIDTH, BAR_HEIGHT);
+        g.dispose();
+      }
+    }
+
+    /** Sets the driving state shown. */
+    public void setState(Model.State state) {
+      if (!update(state != this.state))
+        return;
+      this.state = state;
+      int lit = 0, color = 0;
+      switch (state) {
+      case STARTUP: break;
+      case STOPPED: lit = 1; color = 1; break;
+      case CRUISING: lit = 2; color = 2; break;
+      case ACTIVE: lit = 3; color = 3; break;
+      case DEMANDING: lit = 4; color = 4; break;
+      }
+      for (int i = 0; i < BARS; i++) {
+        int index = i < lit ? color : 0;
+        if (shown[i] != index) {
+          shown[i] = index;
+          changed(barBounds(i));
+        }
+      }
+    }
+
+    public Model.State getState() { return state; }
+
+    /** Gets the bounds of bar i, counting from the bottom. */
+    private Rectangle barBounds(int i) {
+      return new Rectangle(0, getHeight() - (i + 1) * BAR_HEIGHT - i * GAP, BAR_WIDTH, BAR_HEIGHT);
+    }
+
+    @Override
+    protected void paintGauge(Graphics2D g) {
+      for (int i = 0; i < BARS; i++) {
+        Rectangle bounds = barBounds(i);
+        g.drawImage(sprites[shown[i]], bounds.x, bounds.y, null);
+      }
+    }
+  }
+
+  /**
+   * Unit test. Feeds the gauges the values of a poll at 60 frames per second
+   * and compares the time spent with a label formatted and repainted every
+   * frame, as the cluster used to. The regions the gauges repaint are
+   * recorded by a RepaintManager, and painted as it would paint them.
+   */
+  public static void main(String[] args) {
+    IdentityHashMap<JComponent, Rectangle> dirty = new IdentityHashMap<JComponent, Rectangle>();
+    RepaintManager.setCurrentManager(new RepaintManager() {
+      @Override
+      public void addDirtyRegion(JComponent c, int x, int y, int w, int h) {
+        Rectangle region = dirty.get(c);
+        if (region == null)
+          dirty.put(c, new Rectangle(x, y, w, h));
+        else
+          region.add(new Rectangle(x, y, w, h));
+      }
+    });
+    Speed speed = new Speed();
+    speed.setSize(500, 100);
+    Fuel fuel = new Fuel();
+    fuel.setSize(24, 150);
+    Modes modes = new Modes();
+    modes.setSize(modes.getPreferredSize());
+    JLabel label = new JLabel("0 mph");
+    label.setOpaque(true);
+    label.setBackground(Color.black);
+    label.setForeground(Color.orange);
+    label.setFont(new Font("Monospaced", Font.BOLD | Font.ITALIC, 72));
+    label.setHorizontalAlignment(SwingConstants.TRAILING);
+    label.setSize(500, 100);
+    DecimalFormat speedFormat = new DecimalFormat("### mph");
+    BufferedImage screen = new BufferedImage(500, 150, BufferedImage.TYPE_INT_RGB);
+
+    int frames = 60 * 60;  // a minute
+    long gaugeNanos = 0, labelNanos = 0;
+    Model.State[] states = Model.State.values();
+    for (int frame = 0; frame < frames; frame++) {
+      double value = 30 + 20 * Math.sin(frame / 600.0);  // a speed changing by about a mph a second
+      long start = System.nanoTime();
+      speed.setSpeed(value);
+      fuel.setFuel(200 - frame / 100);
+      modes.setState(states[frame / 900 % states.length]);
+      for (Gauge gauge : new Gauge[] { speed, fuel, modes })
+        paintDirty(gauge, dirty.remove(gauge), screen);
+      gaugeNanos += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      label.setText(speedFormat.format(value));
+      Graphics2D g = screen.createGraphics();
+      label.paint(g);
+      g.dispose();
+      labelNanos += System.nanoTime() - start;
+    }
+    System.out.println(speed);
+    System.out.println(fuel);
+    System.out.println(modes);
+    System.out.printf("Per frame: gauges %.4f ms, speed label alone %.4f ms%n",
+        gaugeNanos / 1e6 / frames, labelNanos / 1e6 / frames);
+  }
+
+  /** Paints the region of a gauge repainted since the last call, if any, and returns the time taken. */
+  private static long paintDirty(Gauge gauge, Rectangle region, BufferedImage screen) {
+    if (region == null || region.isEmpty())
+      return 0;
+    long start = System.nanoTime();
+    Graphics2D g = screen.createGraphics();
+    g.setClip(region);
+    gauge.paintComponent(g);
+    g.dispose();
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+/**
+ * A geographic area, such as a circle around home, whose entry or exit by
+ * the vehicle triggers something. See {@link GeofenceEngine}.
+ *
+ * Areas are expected to be small compared with the Earth, and not to cross
+ * the 180th meridian or a pole.
+ */
+public abstract class Geofence {
+  /** Meters per degree of latitude. */
+  static final double METERS_PER_DEGREE = 111320;
+
+  private final String name;
+  // Bounding box, in degrees:
+  final double minLatitude, minLongitude, maxLatitude, maxLongitude;
+
+  protected Geofence(String name, double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+    this.name = name;
+    this.minLatitude = minLatitude;
+    this.minLongitude = minLongitude;
+    this.maxLatitude = maxLatitude;
+    this.maxLongitude = maxLongitude;
+  }
+
+  public String getName() { return name; }
+
+  /** Tests whether the area contains a point, given in degrees. */
+  public abstract boolean contains(double latitude, double longitude);
+
+  /** Tests whether the area's bounding box contains a point, given in degrees. */
+  final boolean boundsContain(double latitude, double longitude) {
+    return latitude >= minLatitude && latitude <= maxLatitude && longitude >= minLongitude && longitude <= maxLongitude;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + name + "]";
+  }
+
+  /** A circle of a specified radius around a point. */
+  public static class Circle extends Geofence {
+    private final double latitude, longitude, radius;
+    /** Meters per degree of longitude at the center. */
+    private final double metersPerLongitude;
+
+    /**
+     * Constructs a circle.
+     *
+     * @param name the fence's name
+     * @param center the center of the circle
+     * @param radius the radius of the circle, in meters
+     */
+    public Circle(String name, GeographicPoint center, double radius) {
+      this(name, center.getLatitude(), center.getLongitude(), radius);
+    }
+
+    private Circle(String name, double latitude, double longitude, double radius) {
+      this(name, latitude, longitude, radius, METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+    }
+
+    private Circle(String name, double latitude, double longitude, double radius, double metersPerLongitude) {
+      super(name, latitude - radius / METERS_PER_DEGREE, longitude - radius / metersPerLongitude,
+          latitude + radius / METERS_PER_DEGREE, longitude + radius / metersPerLongitude);
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.radius = radius;
+      this.metersPerLongitude = metersPerLongitude;
+    }
+
+    public GeographicPoint getCenter() { return new GeographicPoint(latitude, longitude); }
+    /** Gets the radius, in meters. */
+    public double getRadius() { return radius; }
+
+    @Override
+    public boolean contains(double latitude, double longitude) {
+      double north = (latitude - this.latitude) * METERS_PER_DEGREE;
+      double east = (longitude - this.longitude) * metersPerLongitude;
+      return north * north + east * east <= radius * radius;
+    }
+  }
+
+  /** A polygon, with straight edges in latitude and longitude. */
+  public static class Polygon extends Geofence {
+    private final double[] latitudes, longitudes;
+
+    /**
+     * Constructs a polygon.
+     *
+     * @param name the fence's name
+     * @param latitudes the latitudes of the vertices, in order, in degrees
+     * @param longitudes the longitudes of the vertices, in degrees
+     */
+    public Polygon(String name, double[] latitudes, double[] longitudes) {
+      super(name, min(latitudes), min(longitudes), max(latitudes), max(longitudes));
+      if (latitudes.length != longitudes.length || latitudes.length < 3)
+        throw new IllegalArgumentException("A polygon needs at least 3 vertices");
+      this.latitudes = latitudes.clone();
+      this.longitudes = longitudes.clone();
+    }
+
+    /** Constructs a polygon from its vertices, in order. */
+    public Polygon(String name, GeographicPoint... vertices) {
+      this(name, latitudes(vertices), longitudes(vertices));
+    }
+
+    @Override
+    public boolean contains(double latitude, double longitude) {
+      if (!boundsContain(latitude, longitude))
+        return false;
+      // Count the edges crossed by a ray running east from the point.
+      boolean inside = false;
+      for (int i = 0, j = latitudes.length - 1; i < latitudes.length; j = i++) {
+        double yi = latitudes[i], yj = latitudes[j];
+        if ((yi > latitude) != (yj > latitude) &&
+            longitude < longitudes[i] + (latitude - yi) * (longitudes[j] - longitudes[i]) / (yj - yi))
+          inside = !inside;
+      }
+      return inside;
+    }
+
+    private static double min(double[] values) {
+      double min = Double.POSITIVE_INFINITY;
+      for (double value : values)
+        min = Math.min(min, value);
+      return min;
+    }
+
+    private static double max(double[] values) {
+      double max = Double.NEGATIVE_INFINITY;
+      for (double value : values)
+        max = Math.max(max, value);
+      return max;
+    }
+
+    private static double[] latitudes(GeographicPoint[] points) {
+      double[] latitudes = new double[points.length];
+      for (int i = 0; i < points.length; i++)
+        latitudes[i] = points[i].getLatitude();
+      return latitudes;
+    }
+
+    private static double[] longitudes(GeographicPoint[] points) {
+      double[] longitudes = new double[points.length];
+      for (int i = 0; i < points.length; i++)
+        longitudes[i] = points[i].getLongitude();
+      return longitudes;
+    }
+  }
+}
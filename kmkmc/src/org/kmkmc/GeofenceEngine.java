@@ -0,0 +1,248 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tracks a vehicle's location against a set of geofences, and reports when it
+ * enters or leaves one.
+ *
+ * Fences are indexed by a grid of cells of CELL_SIZE degrees (by default 0.01,
+ * about a kilometer; set org.kmkmc.geofence.cellSize): each fence is listed in
+ * every cell its bounding box overlaps, so a location need only be tested
+ * against the fences listed in its cell. A fence overlapping more than
+ * MAX_CELLS cells is instead tested at every update, after its bounding box.
+ * Fences may be added and removed at any time, but the engine isn't thread
+ * safe.
+ */
+public class GeofenceEngine {
+  /** Receives notice of the vehicle entering and leaving fences. */
+  public interface Listener {
+    void entered(Geofence fence, GeographicPoint location);
+    void exited(Geofence fence, GeographicPoint location);
+  }
+
+  /** Width and height of a grid cell, in degrees. */
+  public static final double CELL_SIZE = Double.parseDouble(System.getProperty("org.kmkmc.geofence.cellSize", "0.01"));
+  /** Most cells a fence is listed in; larger fences are tested at every update. */
+  static final int MAX_CELLS = 1024;
+
+  private static final Geofence[] NO_FENCES = new Geofence[0];
+
+  /** Fences listed in each cell, by cell key. */
+  private final HashMap<Long, Geofence[]> cells = new HashMap<Long, Geofence[]>();
+  /** Fences too large to list in cells. */
+  private final List<Geofence> large = new ArrayList<Geofence>();
+  private int fenceCount;
+
+  private final Listener listener;
+  /** Fences the vehicle is inside. */
+  private final HashSet<Geofence> inside = new HashSet<Geofence>();
+  private final List<Geofence> exited = new ArrayList<Geofence>();
+  private long testCount;
+
+  public GeofenceEngine(Listener listener) {
+    this.listener = listener;
+  }
+
+  private static int cell(double degrees) {
+    return (int) Math.floor(degrees / CELL_SIZE);
+  }
+
+  private static long key(int row, int column) {
+    return ((long) row << 32) | (column & 0xffffffffL);
+  }
+
+  /** Adds a fence. The vehicle is taken to be outside it until the next update. */
+  public void add(Geofence fence) {
+    int row0 = cell(fence.minLatitude), row1 = cell(fence.maxLatitude);
+    int column0 = cell(fence.minLongitude), column1 = cell(fence.maxLongitude);
+    fenceCount++;
+    if ((long) (row1 - row0 + 1) * (column1 - column0 + 1) > MAX_CELLS) {
+      large.add(fence);
+      return;
+    }
+    for (int row = row0; row <= row1; row++) {
+      for (int column = column0; column <= column1; column++) {
+        Geofence[] fences = cells.getOrDefault(key(row, column), NO_FENCES);
+        fences = Arrays.copyOf(fences, fences.length + 1);
+        fences[fences.length - 1] = fence;
+        cells.put(key(row, column), fences);
+      }
+    }
+  }
+
+  /** Removes a fence, without reporting an exit. */
+  public void remove(Geofence fence) {
+    inside.remove(fence);
+    if (large.remove(fence)) {
+      fenceCount--;
+      return;
+    }
+    boolean found = false;
+    for (int row = cell(fence.minLatitude); row <= cell(fence.maxLatitude); row++) {
+      for (int column = cell(fence.minLongitude); column <= cell(fence.maxLongitude); column++) {
+        long key = key(row, column);
+        Geofence[] fences = cells.get(key);
+        if (fences == null)
+          continue;
+        for (int i = 0; i < fences.length; i++) {
+          if (fences[i] == fence) {
+            found = true;
+            if (fences.length == 1) {
+              cells.remove(key);
+            } else {
+              Geofence[] remaining = Arrays.copyOf(fences, fences.length - 1);
+              System.arraycopy(fences, i + 1, remaining, i, fences.length - 1 - i);
+              cells.put(key, remaining);
+            }
+            break;
+          }
+        }
+      }
+    }
+    if (found)
+      fenceCount--;
+  }
+
+  /**
+   * Updates the vehicle's location, reporting the fences it has left, then
+   * those it has entered, since the last update.
+   */
+  public void update(GeographicPoint location) {
+    if (location == null)
+      return;
+    double latitude = location.getLatitude(), longitude = location.getLongitude();
+    if (Double.isNaN(latitude) || Double.isNaN(longitude))
+      return;
+    exited.clear();
+    for (Iterator<Geofence> i = inside.iterator(); i.hasNext();) {
+      Geofence fence = i.next();
+      testCount++;
+      if (!fence.contains(latitude, longitude)) {
+        i.remove();
+        exited.add(fence);
+      }
+    }
+    for (Geofence fence : exited)
+      listener.exited(fence, location);
+
+    Geofence[] fences = cells.get(key(cell(latitude), cell(longitude)));
+    if (fences != null)
+      for (Geofence fence : fences)
+        test(fence, latitude, longitude, location);
+    for (Geofence fence : large)
+      if (fence.boundsContain(latitude, longitude))
+        test(fence, latitude, longitude, location);
+  }
+
+  private void test(Geofence fence, double latitude, double longitude, GeographicPoint location) {
+    if (inside.contains(fence))
+      return;
+    testCount++;
+    if (fence.contains(latitude, longitude)) {
+      inside.add(fence);
+      listener.entered(fence, location);
+    }
+  }
+
+  /** Tests whether the vehicle was inside a fence at the last update. */
+  public boolean isInside(Geofence fence) {
+    return inside.contains(fence);
+  }
+
+  /** Gets the number of fences. */
+  public int size() {
+    return fenceCount;
+  }
+
+  /** Gets the number of times a location has been tested against a fence. */
+  public long getTestCount() {
+    return testCount;
+  }
+
+  @Override
+  public String toString() {
+    return "GeofenceEngine[" + fenceCount + " fences in " + cells.size() + " cells and " + large.size() +
+        " large, inside " + inside + "]";
+  }
+
+  /**
+   * Unit test. Scatters 50,000 circles and polygons over the synthetic
+   * course, drives a lap, and checks the events against a brute-force test of
+   * every fence.
+   */
+  public static void main(String[] args) {
+    Random random = new Random(1);
+    final int[] events = new int[2];
+    GeofenceEngine engine = new GeofenceEngine(new Listener() {
+      @Override
+      public void entered(Geofence fence, GeographicPoint location) {
+        events[0]++;
+      }
+      @Override
+      public void exited(Geofence fence, GeographicPoint location) {
+        events[1]++;
+      }
+    });
+    List<Geofence> fences = new ArrayList<Geofence>();
+    for (int i = 0; i < 50000; i++) {
+      double latitude = 37.429167 + (random.nextDouble() - 0.5) * 0.3;
+      double longitude = -122.138056 + (random.nextDouble() - 0.5) * 0.3;
+      double size = 20 + random.nextDouble() * 300;
+      if (i % 2 == 0) {
+        fences.add(new Geofence.Circle("circle" + i, new GeographicPoint(latitude, longitude), size));
+      } else {
+        int n = 3 + random.nextInt(6);
+        double[] latitudes = new double[n], longitudes = new double[n];
+        for (int j = 0; j < n; j++) {
+          double angle = 2 * Math.PI * j / n, r = size * (0.5 + random.nextDouble()) / Geofence.METERS_PER_DEGREE;
+          latitudes[j] = latitude + r * Math.sin(angle);
+          longitudes[j] = longitude + r * Math.cos(angle) / Math.cos(Math.toRadians(latitude));
+        }
+        fences.add(new Geofence.Polygon("polygon" + i, latitudes, longitudes));
+      }
+    }
+    fences.add(new Geofence.Circle("county", new GeographicPoint(37.43, -122.14), 30000));
+    for (Geofence fence : fences)
+      engine.add(fence);
+
+    DataSenderServer.SyntheticScenario scenario = new DataSenderServer.SyntheticScenario(1);
+    CarInfo info = new CarInfo();
+    HashSet<Geofence> bruteInside = new HashSet<Geofence>();
+    int mismatches = 0, bruteEvents = 0, updates = 0;
+    long nanos = 0;
+    for (int t = 0; t < 1799; t++) {
+      scenario.sample(t, info);
+      GeographicPoint location = new GeographicPoint(info.latitude, info.longitude);
+      long start = System.nanoTime();
+      engine.update(location);
+      nanos += System.nanoTime() - start;
+      updates++;
+      for (Geofence fence : fences) {
+        boolean in = fence.contains(info.latitude, info.longitude);
+        if (in != bruteInside.contains(fence)) {
+          bruteEvents++;
+          if (in)
+            bruteInside.add(fence);
+          else
+            bruteInside.remove(fence);
+        }
+        if (in != engine.isInside(fence))
+          mismatches++;
+      }
+    }
+    System.out.println(engine);
+    System.out.printf("%d entries and %d exits (brute force: %d events), %d mismatches%n",
+        events[0], events[1], bruteEvents, mismatches);
+    System.out.printf("%.2f us and %.1f fence tests per update, of %d fences%n",
+        nanos / 1e3 / updates, engine.getTestCount() / (double) updates, engine.size());
+  }
+}
@@ -0,0 +1,254 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sends HTTP GET requests to the web services the app uses. All requests share
+ * one client, so connections to each host are kept alive and reused. Every
+ * request has a deadline, responses may be gzip-compressed, and response
+ * bodies are returned as byte buffers. Latency and error counts are kept for
+ * each host.
+ *
+ * Timeouts default to the values of the org.kmkmc.http.connectTimeout and
+ * org.kmkmc.http.timeout system properties, in milliseconds.
+ */
+public class HttpTransport {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  private static final HttpTransport DEFAULT = new HttpTransport(
+      Duration.ofMillis(Long.getLong("org.kmkmc.http.connectTimeout", 2000)),
+      Duration.ofMillis(Long.getLong("org.kmkmc.http.timeout", 5000)));
+
+  private final HttpClient client;
+  private final Duration timeout;
+  private final ConcurrentHashMap<String, HostStatistics> statistics = new ConcurrentHashMap<String, HostStatistics>();
+
+  /** Latency and error counts of the requests sent to one host. */
+  public static class HostStatistics {
+    private final String host;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private volatile long lastLatency;
+
+    private HostStatistics(String host) {
+      this.host = host;
+    }
+
+    private void record(long latencyNanos, boolean error) {
+      requests.increment();
+      if (error)
+        errors.increment();
+      totalLatency.add(latencyNanos);
+      lastLatency = latencyNanos;
+      long max;
+      while (latencyNanos > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latencyNanos))
+        ;
+    }
+
+    public String getHost() { return host; }
+    public long getRequestCount() { return requests.sum(); }
+    public long getErrorCount() { return errors.sum(); }
+    /** Gets the mean latency of all requests, in milliseconds. */
+    public double getMeanLatency() {
+      long n = requests.sum();
+      return n == 0 ? 0 : totalLatency.sum() / 1e6 / n;
+    }
+    /** Gets the greatest latency of any request, in milliseconds. */
+    public double getMaxLatency() { return maxLatency.get() / 1e6; }
+    /** Gets the latency of the most recent request, in milliseconds. */
+    public double getLastLatency() { return lastLatency / 1e6; }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %d requests, %d errors, latency mean %.1f ms, max %.1f ms, last %.1f ms",
+          host, getRequestCount(), getErrorCount(), getMeanLatency(), getMaxLatency(), getLastLatency());
+    }
+  }
+
+  /**
+   * Constructs a transport.
+   *
+   * @param connectTimeout the longest to wait for a connection to be established
+   * @param timeout the default deadline for a request to be answered
+   */
+  public HttpTransport(Duration connectTimeout, Duration timeout) {
+    this.timeout = timeout;
+    client = HttpClient.newBuilder()
+        .connectTimeout(connectTimeout)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+  }
+
+  /** Gets the transport shared by the app's web service clients. */
+  public static HttpTransport getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Builds a URI from a host and the "file" portion of a URL, quoting any
+   * characters that aren't legal in a URI.
+   *
+   * @param scheme "http" or "https"
+   * @param authority the host, and optionally ":port"
+   * @param request the path, optionally followed by "?" and a query
+   */
+  public static URI uri(String scheme, String authority, String request) {
+    int q = request.indexOf('?');
+    String path = q < 0 ? request : request.substring(0, q);
+    String query = q < 0 ? null : request.substring(q + 1);
+    try {
+      return new URI(scheme, authority, path, query, null);
+    } catch (URISyntaxException use) {
+      throw new IllegalArgumentException(use);
+    }
+  }
+
+  /** Sends a GET request and waits for its response, using the default deadline. */
+  public ByteBuffer get(URI uri) throws IOException {
+    return get(uri, timeout);
+  }
+
+  /**
+   * Sends a GET request and waits for its response.
+   *
+   * @param uri the resource requested
+   * @param timeout the deadline for the response to be received
+   * @return the response body
+   * @throws IOException if the request failed, timed out, or didn't succeed
+   */
+  public ByteBuffer get(URI uri, Duration timeout) throws IOException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      HttpResponse<byte[]> response = client.send(newRequest(uri, timeout), HttpResponse.BodyHandlers.ofByteArray());
+      ByteBuffer body = decode(response);
+      error = false;
+      return body;
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for " + uri.getHost(), ie);
+    } finally {
+      record(uri, start, error);
+    }
+  }
+
+  /** Sends a GET request without waiting for its response, using the default deadline. */
+  public CompletableFuture<ByteBuffer> getAsync(URI uri) {
+    return getAsync(uri, timeout);
+  }
+
+  /**
+   * Sends a GET request without waiting for its response.
+   *
+   * @param uri the resource requested
+   * @param timeout the deadline for the response to be received
+   * @return a future completed with the response body, or exceptionally if
+   * the request failed, timed out, or didn't succeed
+   */
+  public CompletableFuture<ByteBuffer> getAsync(final URI uri, Duration timeout) {
+    final long start = System.nanoTime();
+    return client.sendAsync(newRequest(uri, timeout), HttpResponse.BodyHandlers.ofByteArray())
+        .thenApply(response -> {
+          try {
+            return decode(response);
+          } catch (IOException ioe) {
+            throw new CompletionException(ioe);
+          }
+        })
+        .whenComplete((body, throwable) -> record(uri, start, throwable != null));
+  }
+
+  /** Gets the statistics of requests sent to a specified host, or null if there were none. */
+  public HostStatistics getStatistics(String host) {
+    return statistics.get(host);
+  }
+
+  /** Gets the statistics of requests sent to each host. */
+  public Collection<HostStatistics> getStatistics() {
+    return new ArrayList<HostStatistics>(statistics.values());
+  }
+
+  /** Returns a stream that reads the remaining bytes of a buffer. */
+  public static InputStream asStream(ByteBuffer buffer) {
+    if (buffer.hasArray())
+      return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return new ByteArrayInputStream(bytes);
+  }
+
+  private HttpRequest newRequest(URI uri, Duration timeout) {
+    if (logger.isLoggable(Level.FINE))
+      logger.fine("Query: " + uri);
+    return HttpRequest.newBuilder(uri)
+        .timeout(timeout)
+        .header("Accept-Encoding", "gzip")
+        .GET()
+        .build();
+  }
+
+  /** Checks the status of a response, and decompresses its body if need be. */
+  private static ByteBuffer decode(HttpResponse<byte[]> response) throws IOException {
+    if (response.statusCode() / 100 != 2)
+      throw new IOException("HTTP status " + response.statusCode() + " from " + response.uri().getHost());
+    byte[] body = response.body();
+    if (response.headers().firstValue("Content-Encoding").orElse("").equalsIgnoreCase("gzip")) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(4 * body.length, 256));
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0; )
+          out.write(buffer, 0, n);
+      }
+      body = out.toByteArray();
+    }
+    return ByteBuffer.wrap(body);
+  }
+
+  private void record(URI uri, long start, boolean error) {
+    String host = uri.getHost();
+    HostStatistics hostStatistics = statistics.get(host);
+    if (hostStatistics == null) {
+      hostStatistics = new HostStatistics(host);
+      HostStatistics previous = statistics.putIfAbsent(host, hostStatistics);
+      if (previous != null)
+        hostStatistics = previous;
+    }
+    hostStatistics.record(System.nanoTime() - start, error);
+  }
+
+  /** Unit test. Fetches a URL several times, both ways, and prints the statistics. */
+  public static void main(String[] args) throws Exception {
+    URI uri = URI.create(args.length == 1 ? args[0] : "https://www.google.com/");
+    HttpTransport transport = getDefault();
+    for (int i = 0; i < 3; i++)
+      System.out.println("get: " + transport.get(uri).remaining() + " bytes");
+    for (int i = 0; i < 3; i++)
+      System.out.println("getAsync: " + transport.getAsync(uri).join().remaining() + " bytes");
+    for (HostStatistics s : transport.getStatistics())
+      System.out.println(s);
+  }
+}
@@ -4,35 +4,27 @@ package org.kmkmc;
 
 import java.awt.CardLayout;
 import java.awt.Color;
-import java.awt.Dimension;
 import java.awt.Font;
-import java.text.DecimalFormat;
 
 import javax.swing.GroupLayout;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
-import javax.swing.JProgressBar;
 import javax.swing.JTextArea;
-import javax.swing.SwingConstants;
 
 /** A UI components emulating the instrument cluster. */
 @SuppressWarnings("serial")
 public class InstrumentCluster extends JPanel {
-  private DecimalFormat speedFormat = new DecimalFormat("### mph");
-  
-  private JProgressBar fuelGauge = new JProgressBar(SwingConstants.VERTICAL);
+  private Gauge.Fuel fuelGauge = new Gauge.Fuel();
   private JLabel fullLabel = new JLabel("F");
   private JLabel emptyLabel = new JLabel("E");
   private JPanel centerPanel = new JPanel();
   private CardLayout centerPanelLayout = new CardLayout();
-  private JLabel speedLabel = new JLabel("0 mph");
+  private Gauge.Speed speedGauge = new Gauge.Speed();
   private JTextArea textField = new JTextArea();
-  private JLabel modeLabel1 = new JLabel();
-  private JLabel modeLabel2 = new JLabel();
-  private JLabel modeLabel3 = new JLabel();
-  private JLabel modeLabel4 = new JLabel();
-  private Dimension modeLabelSize = new Dimension(60, 45);
+  private Gauge.Modes modeGauge = new Gauge.Modes();
+  private String message = "";
+  private boolean messageVisible;
 
   /** Construct an instrument cluster. */
   public InstrumentCluster() {
@@ -48,11 +40,7 @@ public class InstrumentCluster extends JPanel {
         .addGap(60)
         .addComponent(centerPanel, 100, 600, 1000)
         .addGap(60)
-        .addGroup(layout.createParallelGroup()
-            .addComponent(modeLabel1)
-            .addComponent(modeLabel2)
-            .addComponent(modeLabel3)
-            .addComponent(modeLabel4)));
+        .addComponent(modeGauge));
     layout.setVerticalGroup(layout.createParallelGroup()
         .addComponent(fuelGauge, 40, 100, 1000)
         .addGroup(layout.createSequentialGroup()
@@ -65,55 +53,25 @@ public class InstrumentCluster extends JPanel {
             .addGap(0, 20, 100))
         .addGroup(layout.createSequentialGroup()
             .addGap(0, 0, 1000)
-            .addComponent(modeLabel4)
-            .addGap(2, 2, 2)
-            .addComponent(modeLabel3)
-            .addGap(2, 2, 2)
-            .addComponent(modeLabel2)
-            .addGap(2, 2, 2)
-            .addComponent(modeLabel1)));
-    fuelGauge.setMinimum(0);
-    fuelGauge.setMaximum(255);
+            .addComponent(modeGauge)));
     fullLabel.setForeground(Color.cyan);
     fullLabel.setFont(new Font("Dialog", Font.BOLD, 24));
     emptyLabel.setForeground(Color.cyan);
     emptyLabel.setFont(new Font("Dialog", Font.BOLD, 24));
-    speedLabel.setOpaque(true);
-    speedLabel.setBackground(Color.black);
-    speedLabel.setForeground(Color.orange);
-    speedLabel.setFont(new Font("Monospaced", Font.BOLD | Font.ITALIC, 72));
-    speedLabel.setHorizontalAlignment(SwingConstants.TRAILING);
     textField.setForeground(Color.green);
     textField.setBackground(Color.black);
     textField.setFont(new Font("Dialog", Font.BOLD, 48));
     textField.setEditable(false);
     centerPanel.setLayout(centerPanelLayout);
-    centerPanel.add(speedLabel, "speed");
+    centerPanel.add(speedGauge, "speed");
     centerPanel.add(textField, "text");
-    modeLabel1.setMinimumSize(modeLabelSize);
-    modeLabel1.setPreferredSize(modeLabelSize);
-    modeLabel1.setMaximumSize(modeLabelSize);
-    modeLabel2.setMinimumSize(modeLabelSize);
-    modeLabel2.setPreferredSize(modeLabelSize);
-    modeLabel2.setMaximumSize(modeLabelSize);
-    modeLabel3.setMinimumSize(modeLabelSize);
-    modeLabel3.setPreferredSize(modeLabelSize);
-    modeLabel3.setMaximumSize(modeLabelSize);
-    modeLabel4.setMinimumSize(modeLabelSize);
-    modeLabel4.setPreferredSize(modeLabelSize);
-    modeLabel4.setMaximumSize(modeLabelSize);
-    modeLabel1.setOpaque(true);
-    modeLabel2.setOpaque(true);
-    modeLabel3.setOpaque(true);
-    modeLabel4.setOpaque(true);
+    setSpeed(0);
     setState(Model.State.STARTUP);
   }
 
-  /** Sets the fuel level displayed by the instrument cluster. */
+  /** Sets the fuel level displayed by the instrument cluster, from 0 to 255. */
   public void setFuel(int fuel) {
-    fuelGauge.setForeground(Color.cyan);
-    fuelGauge.setStringPainted(true);
-    fuelGauge.setValue(fuel);
+    fuelGauge.setFuel(fuel);
   }
 
   /** 
@@ -121,6 +79,9 @@ public class InstrumentCluster extends JPanel {
    * cluster.
    */
   public void setMessage(String text) {
+    if (text.equals(message))
+      return;
+    message = text;
     textField.setText(text);
   }
 
@@ -129,27 +90,25 @@ public class InstrumentCluster extends JPanel {
    * speed (false) or a text message (true).
    */
   public void setMessageVisible(boolean b) {
+    if (b == messageVisible)
+      return;
+    messageVisible = b;
     centerPanelLayout.show(centerPanel, b ? "text" : "speed");
   }
 
   /** Sets the speed displayed by the instrument cluster. */
   public void setSpeed(double speed) {
-    speedLabel.setText(speedFormat.format(speed));
+    speedGauge.setSpeed(speed);
   }
   
+  /** Sets the driving state displayed by the mode bars. */
   public void setState(Model.State state) {
-    Color color1 = Color.black, color2= Color.black , color3 = Color.black, color4 = Color.black;
-    switch (state) {
-    case STARTUP: break;
-    case STOPPED: color1 = Color.gray; break;
-    case CRUISING: color1 = color2 = Color.green; break;
-    case ACTIVE: color1 = color2 = color3 = Color.yellow; break;
-    case DEMANDING: color1 = color2 = color3  = color4 = Color.orange; break; 
-    }
-    modeLabel1.setBackground(color1);
-    modeLabel2.setBackground(color2);
-    modeLabel3.setBackground(color3);
-    modeLabel4.setBackground(color4);
+    modeGauge.setState(state);
+  }
+
+  @Override
+  public String toString() {
+    return "InstrumentCluster[" + speedGauge + ", " + fuelGauge + ", " + modeGauge + "]";
   }
   
   /** Unit test. */
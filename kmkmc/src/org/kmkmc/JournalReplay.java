@@ -0,0 +1,191 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the polls recorded in a {@link TelemetryJournal}, in place of the
+ * web service. Each call to {@link #next} yields the next record, and waits if
+ * need be so that records are delivered at their recorded pace scaled by a
+ * speed factor. An infinite speed delivers them as fast as they are asked for.
+ */
+public class JournalReplay implements Closeable {
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final long count;
+  private final String userid, vid;
+  private final double speed;
+
+  private long index;
+  /** Recorded wall time of the record at which pacing was last anchored. */
+  private long anchorRecordTime;
+  /** System.nanoTime() at which that record was delivered. */
+  private long anchorNanos;
+  private boolean anchored;
+
+  /**
+   * Opens a journal for replay.
+   *
+   * @param path the journal file
+   * @param speed the factor by which replay is faster than the recording, or
+   * Double.POSITIVE_INFINITY for as fast as possible
+   */
+  public JournalReplay(Path path, double speed) throws IOException {
+    if (!(speed > 0))
+      throw new IllegalArgumentException("speed must be positive: " + speed);
+    this.speed = speed;
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.capacity() < TelemetryJournal.HEADER_SIZE)
+        throw new IOException(path + " isn't a telemetry journal");
+      TelemetryJournal.checkHeader(buffer, path);
+      long available = (buffer.capacity() - TelemetryJournal.HEADER_SIZE) / TelemetryJournal.RECORD_SIZE;
+      count = Math.min(buffer.getLong(TelemetryJournal.COUNT_OFFSET), available);
+      userid = TelemetryJournal.getString(buffer, TelemetryJournal.USERID_OFFSET);
+      vid = TelemetryJournal.getString(buffer, TelemetryJournal.VID_OFFSET);
+    } catch (IOException ioe) {
+      channel.close();
+      throw ioe;
+    }
+  }
+
+  /**
+   * Parses a replay speed: a positive number, optionally followed by "x", or
+   * "max" for as fast as possible.
+   */
+  public static double parseSpeed(String s) {
+    s = s.trim().toLowerCase();
+    if (s.equals("max"))
+      return Double.POSITIVE_INFINITY;
+    if (s.endsWith("x"))
+      s = s.substring(0, s.length() - 1);
+    return Double.parseDouble(s);
+  }
+
+  /** Gets the vehicle whose polls were recorded. */
+  public String userid() { return userid; }
+  /** Gets the vehicle ID last recorded. */
+  public String vid() { return vid; }
+  /** Gets the number of records in the journal. */
+  public long size() { return count; }
+  /** Gets the index of the record that next() yields next. */
+  public synchronized long position() { return index; }
+
+  /**
+   * Yields the next record, first waiting until it is due.
+   *
+   * @param info receives the record's values
+   * @return false if the end of the journal has been reached
+   */
+  public synchronized boolean next(CarInfo info) throws InterruptedException {
+    if (index >= count)
+      return false;
+    int p = offset(index);
+    long recordTime = buffer.getLong(p + TelemetryJournal.WALL_TIME);
+    if (!Double.isInfinite(speed)) {
+      if (!anchored) {
+        anchored = true;
+        anchorRecordTime = recordTime;
+        anchorNanos = System.nanoTime();
+      } else {
+        long due = anchorNanos + (long) ((recordTime - anchorRecordTime) * 1e6 / speed);
+        long wait = due - System.nanoTime();
+        if (wait > 0)
+          TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    }
+    read(p, info);
+    index++;
+    return true;
+  }
+
+  /**
+   * Moves to the first record at least a specified number of seconds, by
+   * createtime, after the first record, and restarts pacing from there.
+   */
+  public synchronized void seek(int seconds) {
+    index = indexAt(seconds);
+    anchored = false;
+  }
+
+  /**
+   * Reads the record in effect a specified number of seconds, by createtime,
+   * after the first record, without affecting next(). This is the last record
+   * at or before that time.
+   *
+   * @param info receives the record's values
+   * @return false if the journal is empty or the time is past its end
+   */
+  public boolean readAt(int seconds, CarInfo info) {
+    if (count == 0 || seconds < 0 || seconds * 1000L > duration())
+      return false;
+    read(offset(Math.max(indexAt(seconds + 1) - 1, 0)), info);
+    return true;
+  }
+
+  /** Gets the span of createtimes in the journal, in milliseconds. */
+  public long duration() {
+    if (count == 0)
+      return 0;
+    return buffer.getLong(offset(count - 1) + TelemetryJournal.CREATE_TIME)
+        - buffer.getLong(offset(0) + TelemetryJournal.CREATE_TIME);
+  }
+
+  /** Finds the first record at least a specified number of seconds, by createtime, after the first. */
+  private long indexAt(int seconds) {
+    if (count == 0)
+      return 0;
+    long target = buffer.getLong(offset(0) + TelemetryJournal.CREATE_TIME) + seconds * 1000L;
+    long low = 0, high = count;
+    while (low < high) {  // createtime never decreases, so binary search
+      long mid = (low + high) >>> 1;
+      if (buffer.getLong(offset(mid) + TelemetryJournal.CREATE_TIME) < target)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private static int offset(long index) {
+    return (int) (TelemetryJournal.HEADER_SIZE + index * TelemetryJournal.RECORD_SIZE);
+  }
+
+  private void read(int p, CarInfo info) {
+    info.vid = vid;
+    info.createTime = buffer.getLong(p + TelemetryJournal.CREATE_TIME);
+    info.present = buffer.getInt(p + TelemetryJournal.PRESENT);
+    int flags = buffer.getInt(p + TelemetryJournal.FLAGS);
+    info.brakeOn = (flags & TelemetryJournal.BRAKE_FLAG) != 0;
+    info.parkingBrakeOn = (flags & TelemetryJournal.PARKING_BRAKE_FLAG) != 0;
+    p += TelemetryJournal.VALUES;
+    info.latitude = buffer.getDouble(p);
+    info.longitude = buffer.getDouble(p + 8);
+    info.speed = buffer.getDouble(p + 16);
+    info.lateralAcceleration = buffer.getDouble(p + 24);
+    info.longitudinalAcceleration = buffer.getDouble(p + 32);
+    info.yawRate = buffer.getDouble(p + 40);
+    info.odometer = buffer.getDouble(p + 48);
+    info.acceleratorPedalRatio = buffer.getDouble(p + 56);
+    info.steeringAngle = buffer.getDouble(p + 64);
+    info.engineRpm = buffer.getDouble(p + 72);
+    info.residualFuel = buffer.getDouble(p + 80);
+    info.engineTemperature = buffer.getDouble(p + 88);
+    info.outsideTemperature = buffer.getDouble(p + 96);
+  }
+}
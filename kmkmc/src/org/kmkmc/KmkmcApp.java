@@ -4,15 +4,17 @@ package org.kmkmc;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
 import java.awt.Toolkit;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.io.IOException;
 import java.net.URL;
 import java.text.MessageFormat;
-import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.swing.Box;
@@ -24,11 +26,12 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.SwingConstants;
-import javax.swing.SwingWorker;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 /**
  * Main class of the "Know Me, Know My Car" demo app.
- * This includes the background thread that polls vehicle state,
+ * This includes the pipeline of threads that poll vehicle state,
  * principal UI components, state transitions, and keyboard shortcuts
  * for demoing. 
  */
@@ -39,10 +42,17 @@ public class KmkmcApp extends JPanel {
   /** Whether the display is showing a map, info pane, or both. */
   public enum Mode { MAP, INFO, BOTH };
 
+  /** Frames per second at which the vehicle marker and speed are animated. */
+  private static final int ANIMATION_FPS = Integer.getInteger("org.kmkmc.ui.fps", 60);
+  /** Number of polls between logging the pipeline stages' statistics. */
+  private static final int STATS_INTERVAL = 100;
+  /** Longest jump in vehicle time, in seconds, across which the trail is continued rather than restarted. */
+  private static final int TRAIL_GAP = 10;
+
   private MapClient mapClient = new MapClient();
   private Model model;
   private Model.State previousState = Model.State.STARTUP;
-  private JLabel mapLabel = new JLabel();
+  private MapPanel mapPanel = new MapPanel(640, 640);
   private JLabel infoLabel = new JLabel("INFO LABEL");
   private JTextField commandField = new JTextField();
   private JLabel timeLabel = new JLabel();
@@ -53,12 +63,39 @@ public class KmkmcApp extends JPanel {
   private AudioSystem audioSystem = new AudioSystem();
   private VoiceSynthesizer voiceSynthesizer = new VoiceSynthesizer();
   private InstrumentCluster instrumentCluster;
-  private boolean parkingBrakeWasOn;
+  private final EventBus eventBus = new EventBus(256);
+  /** Accessed only by the model stage's thread. */
+  private boolean parkingBrakeWasOn, inTrip;
+  /** Radius of the geofence around home, in meters. */
+  private static final double HOME_RADIUS = 150;
+  /**
+   * Geofences, the one around home, where the vehicle first reported its
+   * location, and the snapshot they're being checked against. Accessed only by
+   * the model stage's thread.
+   */
+  private final GeofenceEngine geofences = new GeofenceEngine(new GeofenceEngine.Listener() {
+    @Override
+    public void entered(Geofence fence, GeographicPoint location) {
+      eventBus.publish(EventBus.Type.GEOFENCE_ENTERED, fenceSnapshot, previousState, previousState, fence);
+    }
+    @Override
+    public void exited(Geofence fence, GeographicPoint location) {
+      eventBus.publish(EventBus.Type.GEOFENCE_EXITED, fenceSnapshot, previousState, previousState, fence);
+    }
+  });
+  private Geofence homeFence;
+  private VehicleSnapshot fenceSnapshot;
+  /** Whether the vehicle is inside the home geofence. */
+  private volatile boolean atHome;
   
   private int lastPlaylistChange;
-  private double startingOdometer;
-  private int startingTime;
-  private double startingFuel;
+  /** The current trip, reset when the parking brake is released. */
+  private final TripAccumulator trip = new TripAccumulator();
+  /** Vehicle time of the last location added to the trail. Accessed only by the map stage's thread. */
+  private int trailTime;
+  /** Interpolates the vehicle's location and speed between polls, for animation. */
+  private final SnapshotInterpolator interpolator = new SnapshotInterpolator();
+  private final Timer animationTimer = new Timer(1000 / ANIMATION_FPS, event -> animate());
   
   public KmkmcApp(VehicleDataClient vehicleDataClient, InstrumentCluster instrumentCluster) {
     super(new BorderLayout());
@@ -70,12 +107,13 @@ public class KmkmcApp extends JPanel {
     infoLabel.setPreferredSize(d);
     infoLabel.setMaximumSize(d);
     model = new Model(vehicleDataClient);
-    mapLabel.setPreferredSize(new Dimension(640, 640));
-    mapLabel.addMouseListener(mapMouseListener);
+    mapPanel.addMouseListener(mapMouseListener);
+    // The panel draws the vehicle marker, so it can be animated between maps.
+    mapClient.getOverlays().removeIf(overlay -> overlay instanceof MapOverlay.VehicleMarker);
     
     Box box = Box.createHorizontalBox();
     box.add(Box.createHorizontalGlue());
-    box.add(mapLabel);
+    box.add(mapPanel);
     box.add(infoLabel);
     box.add(Box.createHorizontalGlue());
     add(box, BorderLayout.CENTER);
@@ -152,68 +190,196 @@ public class KmkmcApp extends JPanel {
         }
       }
     });
-    (new Worker()).execute();
+    startPipeline();
   }
 
-  /** 
-   * Repeatedly polls the vehicle data API, fetches an updated map image,
-   * advances state, and updates the display.
+  /**
+   * Starts the threads that poll the vehicle data API, advance the model,
+   * fetch updated map images, drive the audio, and update the display. Each
+   * runs as a Stage of its own, passing only its latest result downstream, so
+   * a slow map fetch doesn't delay polling or state changes: it just skips
+   * the vehicle locations it had no time for. A PollScheduler paces the polls,
+   * and an animation timer moves the vehicle marker and speed in between.
    */
-  private class Worker extends SwingWorker<Object, Map> {
-    @Override
-    protected Object doInBackground() throws Exception {
-      while (true) {
-	Thread.sleep(200);
-      	vehicleDataClient.poll();
-      	model.update();
-      	mapClient.setVehicleLocation(vehicleDataClient.getLocation());
-      	publish(mapClient.getMap());
-      	if (model.getState() == Model.State.DEMANDING)
-      	  audioSystem.pause();
-      	else if ((vehicleDataClient.getTime() - lastPlaylistChange > 20) &&
-      	    previousState != Model.State.CRUISING && model.getState() == Model.State.CRUISING)
-      	  play("Cruising Music");
-      	else if (previousState == Model.State.CRUISING && model.getState() == Model.State.ACTIVE)
-          play("Quiet Music");
-      	else if (previousState != Model.State.STOPPED && model.getState() == Model.State.STOPPED)
-      	  audioSystem.pause();
-      	previousState = model.getState();
+  private void startPipeline() {
+    mapStage.connect(displayStage);
+    eventBus.subscribe("audio", this::updateAudio);
+    eventBus.subscribe("trip", this::updateTrip);
+    eventBus.subscribe("geofence", this::updateGeofence);
+    Thread ingest = new Thread(() -> {
+      try {
+        pollScheduler.run();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
+    }, "ingest");
+    ingest.setDaemon(true);
+    ingest.start();
+    animationTimer.start();
+  }
+
+  /** Polls once, passes the snapshot downstream, and returns whether vehicle data was received. */
+  private boolean poll() {
+    boolean received = vehicleDataClient.poll();
+    VehicleSnapshot snapshot = vehicleDataClient.latest();
+    interpolator.add(snapshot);
+    modelStage.post(snapshot);
+    mapStage.post(snapshot);
+    if (pollScheduler.getPollCount() % STATS_INTERVAL == 0 && logger.isLoggable(Level.FINE)) {
+      for (Stage<?, ?> stage : new Stage<?, ?>[] { modelStage, mapStage, displayStage })
+        logger.fine(stage.toString());
+      for (EventBus.Subscription subscription : eventBus.getSubscriptions())
+        logger.fine(subscription.toString());
+      logger.fine(mapClient.getTileCache() + " " + mapClient.getPrefetcher());
+      logger.fine(mapPanel.toString());
     }
+    return received;
+  }
 
-    @Override
-    protected void process(List<Map> maps) {
-      setMap(maps.get(maps.size() - 1));
+  private final PollScheduler pollScheduler = new PollScheduler(this::poll);
+
+  private final Stage<VehicleSnapshot, Void> modelStage =
+      new Stage<VehicleSnapshot, Void>("model", snapshot -> {
+        model.update(snapshot);
+        Model.State state = model.getState();
+        pollScheduler.setState(state);
+        detectEvents(snapshot, state);
+        trip.update(snapshot, state);
+        return null;
+      });
+
+  private final Stage<VehicleSnapshot, Map> mapStage =
+      new Stage<VehicleSnapshot, Map>("map", snapshot -> {
+        mapClient.setVehicleLocation(snapshot.getLocation());
+        if (snapshot.getEstimateTime() != 0) {
+          // A seek, forward or back, starts a new trail rather than drawing a line across the jump.
+          int time = snapshot.getTime();
+          if (time < trailTime || time > trailTime + TRAIL_GAP)
+            mapClient.getTrail().clear();
+          trailTime = time;
+          mapClient.getTrail().add(snapshot.getLocation());
+        }
+        mapClient.prefetch(snapshot);
+        Map map = mapClient.getMap();
+        if (mapClient.isCurrent(map))
+          mapPanel.setMap(map);  // copies just the changes, off the event thread
+        return map;
+      });
+
+  /** Shows maps, skipping any whose view the user has since changed. */
+  private final Stage<Map, Void> displayStage =
+      new Stage<Map, Void>("display", map -> {
+        if (mapClient.isCurrent(map))
+          setMap(map);
+        return null;
+      }, SwingUtilities::invokeLater);
+
+  /**
+   * Publishes an event for each change of driving state or of the parking
+   * brake since the last snapshot, and for each geofence entered or left.
+   * Called only by the model stage's thread, so each change is published
+   * exactly once.
+   */
+  private void detectEvents(VehicleSnapshot snapshot, Model.State state) {
+    if (state != previousState)
+      eventBus.publish(EventBus.Type.STATE_CHANGED, snapshot, previousState, state);
+    boolean parkingBrakeOn = snapshot.isParkingBrakeOn();
+    if (parkingBrakeOn && !parkingBrakeWasOn) {
+      eventBus.publish(EventBus.Type.PARKING_BRAKE_SET, snapshot, previousState, state);
+      if (inTrip) {
+        inTrip = false;
+        eventBus.publish(EventBus.Type.TRIP_ENDED, snapshot, previousState, state);
+      }
+    } else if (!parkingBrakeOn && parkingBrakeWasOn) {
+      eventBus.publish(EventBus.Type.PARKING_BRAKE_RELEASED, snapshot, previousState, state);
+      if (!inTrip) {
+        inTrip = true;
+        trip.reset();
+        eventBus.publish(EventBus.Type.TRIP_STARTED, snapshot, previousState, state);
+      }
+    }
+    parkingBrakeWasOn = parkingBrakeOn;
+    previousState = state;
+
+    // Skip snapshots without an estimated location, such as the placeholder before the first fix.
+    GeographicPoint location = snapshot.getLocation();
+    if (snapshot.getEstimateTime() == 0 || location == null || Double.isNaN(location.getLatitude()) ||
+        Double.isNaN(location.getLongitude()))
+      return;
+    if (homeFence == null) {
+      homeFence = new Geofence.Circle("home", location, HOME_RADIUS);
+      geofences.add(homeFence);
     }
+    fenceSnapshot = snapshot;
+    geofences.update(location);
+  }
+
+  /** Pauses or changes the music when the driving state changes. */
+  private void updateAudio(EventBus.Event event) {
+    if (event.getType() != EventBus.Type.STATE_CHANGED)
+      return;
+    Model.State previousState = event.getPreviousState(), state = event.getState();
+    if (state == Model.State.DEMANDING)
+      audioSystem.pause();
+    else if ((event.getSnapshot().getTime() - lastPlaylistChange > 20) &&
+        previousState != Model.State.CRUISING && state == Model.State.CRUISING)
+      play("Cruising Music");
+    else if (previousState == Model.State.CRUISING && state == Model.State.ACTIVE)
+      play("Quiet Music");
+    else if (state == Model.State.STOPPED)
+      audioSystem.pause();
+  }
+
+  /** Greets the driver, and starts a new trail on the map, when a trip starts. */
+  private void updateTrip(EventBus.Event event) {
+    if (event.getType() != EventBus.Type.TRIP_STARTED)
+      return;
+    mapClient.getTrail().clear();
+    SwingUtilities.invokeLater(() -> showInfo("/org/kmkmc/1a-GoingToWorkTrafficAhead.png", "Hello Jane"));
+  }
+
+  /** Notes when the vehicle arrives at or leaves home. */
+  private void updateGeofence(EventBus.Event event) {
+    if (event.getGeofence() == null || !event.getGeofence().getName().equals("home"))
+      return;
+    if (event.getType() == EventBus.Type.GEOFENCE_ENTERED)
+      atHome = true;
+    else if (event.getType() == EventBus.Type.GEOFENCE_EXITED)
+      atHome = false;
   }
   
   public void setMap(Map map) {
     this.map = map;
-    mapLabel.setIcon(new ImageIcon(map.getImage()));
-    instrumentCluster.setFuel((int) vehicleDataClient.getResidualFuel());
-    instrumentCluster.setSpeed(vehicleDataClient.getSpeed());
-    instrumentCluster.setState(model.getState());
-    int time = vehicleDataClient.getTime();
+    // Read the vehicle and model state once, so everything displayed is from the same poll.
+    VehicleSnapshot snapshot = vehicleDataClient.latest();
+    Model.State state = model.getState();
+    instrumentCluster.setFuel((int) snapshot.getResidualFuel());
+    instrumentCluster.setState(state);
+    int time = snapshot.getTime();
     int seconds = time % 60, minutes = (time / 60) % 60, hours = (time / 3600);
     timeLabel.setText(MessageFormat.format("{0,number,00}:{1,number,00}:{2,number,00}", hours, minutes, seconds));
-    statusLabel.setText(vehicleDataClient.getStatus());
-    // TODO trigger from vehicle power state
-    if (model.getState() == Model.State.STOPPED &&
-        vehicleDataClient.getTime() < 500) {
+    statusLabel.setText(snapshot.getStatus());
+    if (state == Model.State.STOPPED && atHome) {
       instrumentCluster.setMessage("Traffic on I-280.");
       instrumentCluster.setMessageVisible(true);
     } else {
       instrumentCluster.setMessageVisible(false);
     }
-    if (parkingBrakeWasOn && !vehicleDataClient.isParkingBrakeOn()) {
-      showInfo("/org/kmkmc/1a-GoingToWorkTrafficAhead.png", "Hello Jane");
-      startingOdometer = vehicleDataClient.getOdometer();
-      startingTime = vehicleDataClient.getTime();
-      startingFuel = vehicleDataClient.getResidualFuel();
-    }
-    parkingBrakeWasOn = vehicleDataClient.isParkingBrakeOn();
   }
   
+  /**
+   * Moves the vehicle marker and speed readout to where the vehicle is now,
+   * interpolated between the last two polls. Called on the event thread by
+   * the animation timer, many times a poll; it polls nothing itself.
+   */
+  private void animate() {
+    SnapshotInterpolator.Sample sample = interpolator.sample(System.currentTimeMillis());
+    if (sample == null)
+      return;
+    mapPanel.setVehicleLocation(sample.getLocation());
+    instrumentCluster.setSpeed(sample.getSpeed());
+  }
+
   /** Centers the map on the point where the mouse is clicked. */
   private MouseListener mapMouseListener = new MouseAdapter() {
     @Override
@@ -222,25 +388,39 @@ public class KmkmcApp extends JPanel {
 	GeographicPoint location = map.mapImageToGeographic(event.getPoint());
 	logger.fine("Centering on " + location);
 	mapClient.setCenterLocation(location);
+	renderMap();
       }
     }
   };
   
   public void zoomIn() {
-    mapClient.setZoomLevel(mapClient.getZoomLevel() + 1);
+    mapClient.zoomBy(1);
+    renderMap();
   };
   public void zoomOut() {
-    mapClient.setZoomLevel(mapClient.getZoomLevel() - 1);
+    mapClient.zoomBy(-1);
+    renderMap();
   };
   public void recenter() {
-    mapClient.setCenterOnVehicle(true);;
+    mapClient.setCenterOnVehicle(true);
+    renderMap();
   };
 
+  /**
+   * Renders the map of a changed view now, rather than at the next poll. A
+   * render already under way for the old view is abandoned.
+   */
+  private void renderMap() {
+    mapStage.post(vehicleDataClient.latest());
+  }
+
   public void gotoTime(int time) {
     vehicleDataClient.seek(time);
+    interpolator.reset();
   }
   public void skip5() {
     vehicleDataClient.seek(vehicleDataClient.getTime() + 5 * 60);
+    interpolator.reset();
   };
   
   public void play(String playlist) {
@@ -256,7 +436,7 @@ public class KmkmcApp extends JPanel {
     default: break;
     }
     infoLabel.setVisible(infoVisible);
-    mapLabel.setVisible(mapVisible);
+    mapPanel.setVisible(mapVisible);
   }
 
   public void showInfo(String resource) {
@@ -274,12 +454,10 @@ public class KmkmcApp extends JPanel {
   }
   
   public void showTripSummary() {
-    double elapsedMiles = vehicleDataClient.getOdometer() - startingOdometer;
-    int elapsedTime = vehicleDataClient.getTime() - startingTime;
-    double elapsedFuel = (startingFuel - vehicleDataClient.getResidualFuel()) / 255.0 * 45 / 3.785;
+    TripAccumulator.Summary summary = trip.getSummary();
     String s = MessageFormat.format(
         "<html><hr><center><h1><font size='72'>Trip Summary</h1></center><br><blockquote><font size='40'> {0,number,#.##} miles <br><br> {1,number,#.#} hours <br><br>  {2,number,#.#} gallons </font></blockquote><br><br><hr></html>",
-        elapsedMiles, elapsedTime / 3600.0, elapsedFuel
+        summary.getDistance(), summary.getTime() / 3600.0, summary.getFuelUsedGallons()
         );
     infoLabel.setIcon(null);
     infoLabel.setText(s);
@@ -295,6 +473,22 @@ public class KmkmcApp extends JPanel {
     
     // Display console:
     KmkmcApp panel = new KmkmcApp(vehicleDataClient, instrumentCluster);
+    if (GraphicsEnvironment.isHeadless()) {
+      // Without a display, stream the console over the instrument cluster to FrameViewers.
+      JPanel screen = new JPanel(new BorderLayout());
+      screen.add(panel, BorderLayout.CENTER);
+      screen.add(instrumentCluster, BorderLayout.SOUTH);
+      FrameStreamer streamer =
+          new FrameStreamer(screen, 1280, 640 + instrumentCluster.getPreferredSize().height);
+      SwingUtilities.invokeAndWait(() -> {
+        try {
+          streamer.start(FrameStreamer.PORT);
+        } catch (IOException e) {
+          throw new RuntimeException("Can't stream frames", e);
+        }
+      });
+      return;
+    }
     JFrame frame = new JFrame("Console Display");
     frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
     frame.getContentPane().add(panel);
@@ -0,0 +1,53 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A mailbox holding at most one message, the latest one posted. Posting a
+ * message while another is waiting replaces (conflates) the waiting one, so a
+ * slow reader always gets the freshest message and never falls behind.
+ * Safe for any number of writers and readers.
+ */
+public class Mailbox<T> {
+  private final AtomicReference<T> slot = new AtomicReference<T>();
+  private final LongAdder postCount = new LongAdder();
+  private final LongAdder conflatedCount = new LongAdder();
+
+  /**
+   * Posts a message, replacing any message waiting.
+   *
+   * @return whether the mailbox was empty
+   */
+  public boolean post(T message) {
+    if (message == null)
+      throw new NullPointerException();
+    postCount.increment();
+    if (slot.getAndSet(message) == null)
+      return true;
+    conflatedCount.increment();
+    return false;
+  }
+
+  /** Takes the waiting message, or returns null if there's none. */
+  public T take() {
+    return slot.getAndSet(null);
+  }
+
+  /** Gets the number of messages waiting: 0 or 1. */
+  public int getDepth() {
+    return slot.get() == null ? 0 : 1;
+  }
+
+  /** Gets the number of messages posted. */
+  public long getPostCount() {
+    return postCount.sum();
+  }
+
+  /** Gets the number of messages replaced before they were taken. */
+  public long getConflatedCount() {
+    return conflatedCount.sum();
+  }
+}
@@ -2,73 +2,172 @@
 
 package org.kmkmc;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.RenderingHints;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.logging.Level;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Logger;
 
-import javax.imageio.ImageIO;
-
 /**
  * Encapsulates a rendered map image, plus the parameters controlling how it was
  * rendered.
  * 
  * After constructing an instance, invoke render() to render an image, then
- * getImage() to get that image. The render() call should be made off the event
- * thread as it involves a web service call.
+ * getImage() to get that image. The image is a base map, assembled from map
+ * tiles, with overlays such as the vehicle marker drawn on top. The render()
+ * call should be made off the event thread as it may have to fetch tiles from
+ * a web service.
  */
 public class Map {
   public static final String API_KEY = System.getProperty("kmkmc.mapApiKey", "<missing kmkmc.mapApiKey value");
   public static final String HOST = "maps.googleapis.com";
   private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+  /** Least time between warnings of missing tiles, in milliseconds. */
+  private static final long MISSING_WARNING_INTERVAL = 10000;
+  /** System.currentTimeMillis() of the last warning of missing tiles. */
+  private static volatile long lastMissingWarning;
 
   private GeographicPoint vehicleLocation;
   private int zoomLevel, width, height;
   private GeographicPoint centerLocation;
-  private String request;
+  private TileCache tileCache;
+  /** World pixel coordinates, at this zoom level, of the image's top left corner. */
+  private int left, top;
+  /** The map without overlays, which may be shared with maps of the same view. */
+  private BufferedImage baseImage;
   private Image image;
+  /** The view of the MapClient this map was rendered for, or null. */
+  private MapView view;
 
   /** 
    * Constructs a Map with specified parameters. This notes those parameter values but
    * does not yet render the map (call render() for that). 
    */
   public Map(GeographicPoint centerLocation, int zoomLevel, int width, int height, GeographicPoint vehicleLocation) {
+    this(centerLocation, zoomLevel, width, height, vehicleLocation, TileCache.getDefault());
+  }
+
+  /** Constructs a Map with specified parameters, whose tiles come from a specified cache. */
+  public Map(GeographicPoint centerLocation, int zoomLevel, int width, int height, GeographicPoint vehicleLocation,
+      TileCache tileCache) {
     this.centerLocation = centerLocation;
     this.zoomLevel = zoomLevel;
     this.width = width;
     this.height = height;
     this.vehicleLocation = vehicleLocation;
-
-    request = String.format(
-      	"//maps/api/staticmap?key=%s&sensor=true&center=%g,%g&zoom=%d&size=%dx%d&markers=label:V|%g,%g&visual_refresh=true", 
-      	API_KEY, 
-      	centerLocation.getLatitude(), centerLocation.getLongitude(),
-      	zoomLevel, width, height,
-      	vehicleLocation.getLatitude(), vehicleLocation.getLongitude());
+    this.tileCache = tileCache;
+    Point2D.Double center = mapGeographicToPixel(centerLocation);
+    left = (int) Math.floor(center.x - width / 2.0);
+    top = (int) Math.floor(center.y - height / 2.0);
   }
 
-  /** Renders the map. Best done in a background thread. */
+  /**
+   * Renders the map: the base map, and the vehicle marker over it. Best done
+   * in a background thread.
+   */
   public void render() {
     if (image != null)
       return;  // already done
-    try {
-      URL url = new URL("https", HOST, request);
-      if (logger.isLoggable(Level.FINE))
-        logger.fine("Query: " + url);
-      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      image = ImageIO.read(connection.getInputStream());
-      if (logger.isLoggable(Level.FINE))
-        logger.fine("Response: " + image);
-    } catch (Exception e) {
-      logger.severe("Error contacting web service: " + e.getMessage());
-      image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_BGR);
+    render(null, DEFAULT_OVERLAYS);
+  }
+
+  private static final List<MapOverlay> DEFAULT_OVERLAYS =
+      Collections.<MapOverlay>singletonList(new MapOverlay.VehicleMarker());
+
+  /**
+   * Renders the map, by rendering the base map if it isn't already, then
+   * drawing it and overlays onto a back buffer, which becomes the map's
+   * image. Best done in a background thread.
+   *
+   * @param backBuffer the image to draw on, or null (or one of the wrong
+   *          size) for a new one
+   * @param overlays the overlays to draw, bottom first
+   */
+  public void render(BufferedImage backBuffer, List<? extends MapOverlay> overlays) {
+    render(backBuffer, overlays, () -> false);
+  }
+
+  /**
+   * Renders the map like {@link #render(BufferedImage, List)}, but gives up,
+   * throwing a CancellationException, if a test says to before a map tile
+   * is fetched. That way a render the user is no longer waiting for doesn't
+   * hold up the next.
+   *
+   * @param backBuffer the image to draw on, or null (or one of the wrong
+   *          size) for a new one
+   * @param overlays the overlays to draw, bottom first
+   * @param cancelled tests whether to give up
+   */
+  public void render(BufferedImage backBuffer, List<? extends MapOverlay> overlays, BooleanSupplier cancelled) {
+    if (baseImage == null)
+      baseImage = renderBase(cancelled);
+    if (backBuffer == null || backBuffer.getWidth() != width || backBuffer.getHeight() != height)
+      backBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = backBuffer.createGraphics();
+    g.drawImage(baseImage, 0, 0, null);
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    for (MapOverlay overlay : overlays)
+      overlay.paint(g, this);
+    g.dispose();
+    image = backBuffer;
+  }
+
+  /** Renders the base map, without overlays, from map tiles. */
+  private BufferedImage renderBase(BooleanSupplier cancelled) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    g.setColor(Color.LIGHT_GRAY);
+    g.fillRect(0, 0, width, height);
+    int tileSize = TileCache.TILE_SIZE, tileCount = 1 << zoomLevel;
+    int missing = 0;
+    for (int y = Math.floorDiv(top, tileSize); y <= Math.floorDiv(top + height - 1, tileSize); y++) {
+      if (y < 0 || y >= tileCount)
+        continue;
+      for (int x = Math.floorDiv(left, tileSize); x <= Math.floorDiv(left + width - 1, tileSize); x++) {
+        if (cancelled.getAsBoolean()) {
+          g.dispose();
+          throw new CancellationException("Map render cancelled");
+        }
+        BufferedImage tile = tileCache.get(zoomLevel, Math.floorMod(x, tileCount), y);
+        if (tile != null)
+          g.drawImage(tile, x * tileSize - left, y * tileSize - top, null);
+        else
+          missing++;
+      }
+    }
+    long now = System.currentTimeMillis();
+    if (missing > 0 && now - lastMissingWarning >= MISSING_WARNING_INTERVAL) {
+      lastMissingWarning = now;
+      logger.warning(missing + " map tiles missing");
     }
+    g.dispose();
+    return image;
   }
-  
+
+  /**
+   * Returns a map of the same view as this one, but with the vehicle at a
+   * specified location. It shares this map's base map, so rendering it only
+   * draws the overlays.
+   */
+  public Map withVehicleLocation(GeographicPoint vehicleLocation) {
+    Map map = new Map(centerLocation, zoomLevel, width, height, vehicleLocation, tileCache);
+    map.baseImage = baseImage;
+    map.view = view;
+    return map;
+  }
+
+  /** Tests whether another map shows the same view (and so the same base map) as this one. */
+  public boolean hasSameView(Map other) {
+    return other != null && centerLocation.equals(other.centerLocation) && zoomLevel == other.zoomLevel &&
+        width == other.width && height == other.height && tileCache == other.tileCache;
+  }
+
   /** Gets the rendered map image. */
   public Image getImage() {
     if (image == null) {
@@ -77,43 +176,83 @@ public class Map {
     }
     return image;
   }
-  
-  // COORDINATE MAPPING
 
-  // The following is based on
-  // https://developers.google.com/maps/documentation/javascript/examples/map-coordinates?csw=1
+  public GeographicPoint getCenterLocation() { return centerLocation; }
+  /** Gets the location at which the vehicle is displayed, or null. */
+  public GeographicPoint getVehicleLocation() { return vehicleLocation; }
+  public int getZoomLevel() { return zoomLevel; }
+  public int getWidth() { return width; }
+  public int getHeight() { return height; }
+  /** Gets the view of the MapClient this map was rendered for, or null if it wasn't rendered by one. */
+  public MapView getView() { return view; }
+  void setView(MapView view) { this.view = view; }
 
-  private static final float TILE_SIZE = 256;
-  private static final Point2D.Double pixelOrigin = new Point2D.Double(TILE_SIZE / 2, TILE_SIZE / 2);
-  private static final double pixelsPerLonDegree = TILE_SIZE / 360.0;
-  private static final double pixelsPerLonRadian = TILE_SIZE / (2 * Math.PI);
+  // COORDINATE MAPPING
+
+  // See MercatorProjection. World coordinates are world pixels at zoom level 0.
 
   /** Maps a point from geographic coordinates to world coordinates. */
   public Point2D.Double mapGeographicToWorld(GeographicPoint geographicPoint) {
-    // Truncating to 0.9999 effectively limits latitude to 89.189. This is
-    // about a third of a tile past the edge of the world tile.
-    double x = TILE_SIZE / 2 + centerLocation.getLongitude() * (256 / 360.0);
-    double siny = Math.min(Math.max(Math.sin(Math.toRadians(geographicPoint.getLatitude())), -.9999), .9999);
-    double y = TILE_SIZE / 2 + 0.5 * Math.log((1 + siny) / (1 - siny)) * -TILE_SIZE / (2 * Math.PI);
-    return new Point2D.Double(x, y);
+    return new Point2D.Double(MercatorProjection.x(geographicPoint.getLongitude(), 0),
+        MercatorProjection.y(geographicPoint.getLatitude(), 0));
+  }
+
+  /** Maps a point from geographic coordinates to world pixel coordinates at this map's zoom level. */
+  private Point2D.Double mapGeographicToPixel(GeographicPoint geographicPoint) {
+    return new Point2D.Double(MercatorProjection.x(geographicPoint.getLongitude(), zoomLevel),
+        MercatorProjection.y(geographicPoint.getLatitude(), zoomLevel));
+  }
+
+  /** Maps a point from geographic coordinates to image coordinates. */
+  public Point2D.Double mapGeographicToImage(GeographicPoint geographicPoint) {
+    Point2D.Double point = mapGeographicToPixel(geographicPoint);
+    point.x -= left;
+    point.y -= top;
+    return point;
+  }
+
+  /**
+   * Maps points from geographic coordinates to image coordinates.
+   *
+   * @param latitudes the latitudes of the points, in degrees
+   * @param longitudes the longitudes of the points, in degrees
+   * @param count the number of points
+   * @param xs receives the x coordinates
+   * @param ys receives the y coordinates
+   */
+  public void mapGeographicToImage(double[] latitudes, double[] longitudes, int count, double[] xs, double[] ys) {
+    MercatorProjection.project(latitudes, longitudes, 0, count, zoomLevel, left, top, xs, ys);
   }
 
   /** Maps a point from world coordinate to geographic ones. */
   public GeographicPoint mapWorldToGeographic(Point2D worldPoint) {
-    double lng = (worldPoint.getX() - pixelOrigin.x) / pixelsPerLonDegree;
-    double latRadians = (worldPoint.getY() - pixelOrigin.y) / -pixelsPerLonRadian;
-    double lat = Math.toDegrees(2 * Math.atan(Math.exp(latRadians)) - Math.PI / 2);
-    return new GeographicPoint(lat, lng);
+    return new GeographicPoint(MercatorProjection.latitude(worldPoint.getY(), 0),
+        MercatorProjection.longitude(worldPoint.getX(), 0));
   }
 
   /** Maps a point from image coordinates to geographic ones. */
   public GeographicPoint mapImageToGeographic(Point2D imagePoint) {
-    Point2D.Double centerWorldPoint = mapGeographicToWorld(centerLocation);
-    double px = imagePoint.getX() - width / 2.0, py = imagePoint.getY() - height / 2.0;
-    double numTiles = 1 << zoomLevel;
-    double x = centerWorldPoint.getX() + px / numTiles, y = centerWorldPoint.getY() + py / numTiles;
-    return mapWorldToGeographic(new Point2D.Double(x, y));
+    return new GeographicPoint(MercatorProjection.latitude(imagePoint.getY() + top, zoomLevel),
+        MercatorProjection.longitude(imagePoint.getX() + left, zoomLevel));
+  }
+
+  /**
+   * Maps points from image coordinates to geographic ones.
+   *
+   * @param xs the x coordinates of the points
+   * @param ys the y coordinates of the points
+   * @param count the number of points
+   * @param latitudes receives the latitudes, in degrees
+   * @param longitudes receives the longitudes, in degrees
+   */
+  public void mapImageToGeographic(double[] xs, double[] ys, int count, double[] latitudes, double[] longitudes) {
+    MercatorProjection.unproject(xs, ys, 0, count, zoomLevel, left, top, latitudes, longitudes);
   }
+
+  /** Gets the x coordinate, in world pixels at this map's zoom level, of the image's left edge. */
+  public int getLeft() { return left; }
+  /** Gets the y coordinate, in world pixels at this map's zoom level, of the image's top edge. */
+  public int getTop() { return top; }
   
   // IDENTITY
 
@@ -123,7 +262,6 @@ public class Map {
     int result = 1;
     result = prime * result + ((centerLocation == null) ? 0 : centerLocation.hashCode());
     result = prime * result + height;
-    result = prime * result + ((request == null) ? 0 : request.hashCode());
     result = prime * result + ((vehicleLocation == null) ? 0 : vehicleLocation.hashCode());
     result = prime * result + width;
     result = prime * result + zoomLevel;
@@ -151,11 +289,6 @@ public class Map {
       return false;
     if (height != other.height)
       return false;
-    if (request == null) {
-      if (other.request != null)
-        return false;
-    } else if (!request.equals(other.request))
-      return false;
     if (vehicleLocation == null) {
       if (other.vehicleLocation != null)
         return false;
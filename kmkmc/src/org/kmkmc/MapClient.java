@@ -2,31 +2,119 @@
 
 package org.kmkmc;
 
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 
 /**
- * Renders map images for car navigation using the Google Static Maps API.
+ * Renders map images for car navigation from map tiles, which are cached
+ * locally and fetched from a tile server or the Google Static Maps API.
  * This maintains current map rendering settings (center location, zoom level, etc.),
  * and supplies maps rendered according to those set
+ *
+ * The vehicle marker and other overlays are drawn locally over a base map
+ * that's kept while the view is unchanged, so with auto-centering off, a
+ * moving vehicle costs only a redraw. Map images are drawn on a few reused
+ * back buffers, so a map's image is valid only until two more are rendered.
+ *
+ * The view settings are held in an immutable MapView, swapped atomically, so
+ * they may be changed from any thread, such as the event thread, while maps
+ * are rendered on another. A render whose view is replaced before its tiles
+ * are all fetched is abandoned, and {@link #isCurrent(Map)} tells whether a
+ * finished map is still worth showing. Maps are rendered by one thread at a
+ * time.
  */
 public class MapClient {
-  // View parameters:
-  private GeographicPoint centerLocation = new GeographicPoint(0, 0);
-  private int zoomLevel = 14;
-  private int width = 640, height = 640;
-  private boolean centerOnVehicle = true;
+  /** The view settings. */
+  private final AtomicReference<MapView> view =
+      new AtomicReference<MapView>(new MapView(new GeographicPoint(0, 0), 14, 640, 640, true));
   
   // Content parameters:
-  private GeographicPoint vehicleLocation;
+  private volatile GeographicPoint vehicleLocation;
   
-  /** The most recently rendered map image. */
+  /** The most recently rendered map image. Accessed only by the rendering thread. */
   private Map lastMap;
+  private long cancelledCount;
+  /** Source of the tiles maps are assembled from. */
+  private TileCache tileCache = TileCache.getDefault();
+  /** Warms the tile cache along the vehicle's path; created when first needed. */
+  private MapPrefetcher prefetcher;
+
+  // Overlays:
+  private final BreadcrumbTrail trail = new BreadcrumbTrail();
+  private final MapOverlay.AlertPins alertPins = new MapOverlay.AlertPins();
+  private final List<MapOverlay> overlays =
+      new CopyOnWriteArrayList<MapOverlay>(Arrays.asList(trail, alertPins, new MapOverlay.VehicleMarker()));
+  /**
+   * Images that maps are rendered on, in rotation, so a map's image isn't
+   * drawn on again until two more maps have been rendered.
+   */
+  private final BufferedImage[] backBuffers = new BufferedImage[3];
+  private int backBufferIndex;
+
+  /** Gets the overlays drawn over the base map, bottom first. The list may be changed from any thread. */
+  public List<MapOverlay> getOverlays() {
+    return overlays;
+  }
+
+  /** Gets the overlay of the vehicle's trail. */
+  public BreadcrumbTrail getTrail() {
+    return trail;
+  }
+
+  /** Gets the overlay of alert pins. */
+  public MapOverlay.AlertPins getAlertPins() {
+    return alertPins;
+  }
+
+  /** Gets the source of the tiles maps are assembled from. */
+  public TileCache getTileCache() {
+    return tileCache;
+  }
+
+  /** Sets the source of the tiles maps are assembled from. */
+  public void setTileCache(TileCache tileCache) {
+    this.tileCache = tileCache;
+    setPrefetcher(null);
+  }
+
+  /** Gets the prefetcher that warms the tile cache along the vehicle's path. */
+  public synchronized MapPrefetcher getPrefetcher() {
+    if (prefetcher == null)
+      prefetcher = new MapPrefetcher(tileCache, getView().getWidth(), getView().getHeight());
+    return prefetcher;
+  }
+
+  private synchronized void setPrefetcher(MapPrefetcher prefetcher) {
+    if (this.prefetcher != null)
+      this.prefetcher.cancel();
+    this.prefetcher = prefetcher;
+  }
+
+  /**
+   * Starts prefetching, in the background, the map tiles needed soon by a
+   * map following the vehicle in a specified snapshot.
+   */
+  public void prefetch(VehicleSnapshot snapshot) {
+    getPrefetcher().update(snapshot, getView().getZoomLevel());
+  }
+
+  /** Gets the current view settings. */
+  public MapView getView() {
+    return view.get();
+  }
 
   /** Gets the location at which map images will be centered. */
   public GeographicPoint getCenterLocation() {
-    return centerLocation;
+    return getView().getCenterLocation(vehicleLocation);
   }
   
   /** 
@@ -35,62 +123,146 @@ public class MapClient {
    * centered on the vehicle.
    */
   public void setCenterLocation(GeographicPoint centerLocation) {
-    this.centerLocation = centerLocation;
-    this.setCenterOnVehicle(false);
+    view.updateAndGet(v -> v.withCenterLocation(centerLocation));
   }
 
   /** Gets the zoom level. */
   public int getZoomLevel() {
-    return zoomLevel;
+    return getView().getZoomLevel();
   }
   
   /** Sets the zoom level. */
   public void setZoomLevel(int zoomLevel) {
-    this.zoomLevel = Math.max(2, Math.min(20, zoomLevel));
+    zoomChanged(view.getAndUpdate(v -> v.withZoomLevel(zoomLevel)));
+  }
+
+  /**
+   * Changes the zoom level by a number of levels. Unlike getting the zoom
+   * level and setting it, this can't lose a change made at the same time.
+   */
+  public void zoomBy(int levels) {
+    zoomChanged(view.getAndUpdate(v -> v.withZoomLevel(v.getZoomLevel() + levels)));
+  }
+
+  /** Cancels prefetching if the zoom level has changed from a previous view's. */
+  private synchronized void zoomChanged(MapView previous) {
+    if (prefetcher != null && previous.getZoomLevel() != getZoomLevel())
+      prefetcher.cancel();  // Tiles for the old zoom level won't be needed.
   }
   
   /** Sets the size of rendered map images, in pixels. */
   public void setSize(int width, int height) {
-    this.width = width;
-    this.height = height;
+    view.updateAndGet(v -> v.withSize(width, height));
+    setPrefetcher(null);
   }
 
   /** Gets whether vehicle auto-centering mode is on. */
   public boolean isCenterOnVehicle() {
-    return centerOnVehicle;
+    return getView().isCenterOnVehicle();
   }
   
-  /** Sets vehicle auto-centering mode on or off. */
+  /**
+   * Sets vehicle auto-centering mode on or off. When it's turned off, the
+   * map stays centered where the vehicle is.
+   */
   public void setCenterOnVehicle(boolean centerOnVehicle) {
-    this.centerOnVehicle = centerOnVehicle;
+    GeographicPoint vehicleLocation = this.vehicleLocation;
+    view.updateAndGet(v -> v.withCenterOnVehicle(centerOnVehicle, v.getCenterLocation(vehicleLocation)));
   }
   
   /**
    * Sets the location at which the vehicle is displayed. If
-   * vehicle auto-centering mode is on, this also adjusts the
-   * location of the map center.
+   * vehicle auto-centering mode is on, this also moves the
+   * map center, without changing the view's generation.
    */
   public void setVehicleLocation(GeographicPoint vehicleLocation) {
     this.vehicleLocation = vehicleLocation;
-    if (centerOnVehicle)
-      this.centerLocation = vehicleLocation;
   }
 
-  /** Gets a map rendering according to current settings. */
+  /**
+   * Tests whether a map was rendered for the current view, so it's worth
+   * showing. A map showing an older view is stale: the user has since zoomed
+   * or moved the map, and a map of the new view is on its way.
+   */
+  public boolean isCurrent(Map map) {
+    return map != null && map.getView() == getView();
+  }
+
+  /** Gets the number of renders abandoned because their view was replaced. */
+  public long getCancelledCount() {
+    return cancelledCount;
+  }
+
+  /**
+   * Gets a map rendering according to current settings, or null if the
+   * settings changed before it was done, in which case it's abandoned.
+   */
   public Map getMap() {
-    Map map = new Map(centerLocation, zoomLevel, width, height, vehicleLocation);
-    if (!map.equals(lastMap)) {  // otherwise reuse the last map
-      map.render();
-      lastMap = map;
+    MapView view = getView();
+    GeographicPoint vehicleLocation = this.vehicleLocation;
+    Map map = new Map(view.getCenterLocation(vehicleLocation), view.getZoomLevel(), view.getWidth(),
+        view.getHeight(), vehicleLocation, tileCache);
+    if (map.hasSameView(lastMap))  // reuse the last base map, and just redraw the overlays
+      map = lastMap.withVehicleLocation(vehicleLocation);
+    map.setView(view);
+    int index = (backBufferIndex + 1) % backBuffers.length;
+    try {
+      map.render(backBuffers[index], overlays, () -> this.view.get().getGeneration() != view.getGeneration());
+    } catch (CancellationException e) {
+      cancelledCount++;
+      return null;
     }
-    return lastMap;
+    backBufferIndex = index;
+    backBuffers[backBufferIndex] = (BufferedImage) map.getImage();
+    lastMap = map;
+    return map;
   }
   
-  /** Unit test. Retrieves and displays a map. */
+  /**
+   * Unit test. Zooms three times while a map is being rendered, checks that
+   * the render is abandoned, then retrieves and displays a map.
+   */
   public static void main(String[] args) throws Exception {
     MapClient client = new MapClient();
+    client.setTileCache(new TileCache(null, null, 1 << 20) {
+      @Override
+      public BufferedImage get(int zoom, int x, int y) {
+        try {
+          Thread.sleep(20);  // like a network fetch
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return null;
+      }
+    });
     client.setVehicleLocation(new GeographicPoint(37.429167, -122.138056));
-    Map map = client.getMap();
+    Thread zoomer = new Thread(() -> {
+      for (int i = 0; i < 3; i++) {
+        try {
+          Thread.sleep(30);
+        } catch (InterruptedException e) {
+          return;
+        }
+        client.zoomBy(1);
+      }
+    });
+    zoomer.start();
+    long start = System.nanoTime();
+    Map stale = client.getMap();
+    System.out.printf("Render during zooms: %s after %.0f ms%n", stale == null ? "abandoned" : "finished",
+        (System.nanoTime() - start) / 1e6);
+    zoomer.join();
+    Map latest = client.getMap();
+    System.out.println("Then rendered " + latest.getView() + ", current: " + client.isCurrent(latest) +
+        "; " + client.getCancelledCount() + " cancelled");
+    client.zoomBy(-3);
+    System.out.println("After zooming out, current: " + client.isCurrent(latest));
+    if (GraphicsEnvironment.isHeadless())
+      return;
+
+    MapClient liveClient = new MapClient();
+    liveClient.setVehicleLocation(new GeographicPoint(37.429167, -122.138056));
+    Map map = liveClient.getMap();
     JLabel label = new JLabel(new ImageIcon(map.getImage()));
     JFrame frame = new JFrame("MapClient Test");
     frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -0,0 +1,108 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Something drawn over a base map, such as the vehicle marker. Overlays are
+ * drawn locally each time a map is rendered, so they can change without the
+ * base map being rendered again.
+ */
+public interface MapOverlay {
+  /**
+   * Draws the overlay.
+   *
+   * @param g the graphics context, in the map's image coordinates
+   * @param map the map drawn on, which maps geographic coordinates to image ones
+   */
+  void paint(Graphics2D g, Map map);
+
+  /** A labeled pin at a location, like the Static Maps API's markers. */
+  public static class Pin {
+    private static final Font FONT = new Font(Font.SANS_SERIF, Font.BOLD, 12);
+    private static final BasicStroke STROKE = new BasicStroke(1);
+
+    private final GeographicPoint location;
+    private final String label;
+    private final Color color;
+
+    public Pin(GeographicPoint location, String label, Color color) {
+      this.location = location;
+      this.label = label;
+      this.color = color;
+    }
+
+    public GeographicPoint getLocation() { return location; }
+    public String getLabel() { return label; }
+    public Color getColor() { return color; }
+
+    /** Draws the pin on a map. */
+    public void paint(Graphics2D g, Map map) {
+      Point2D.Double point = map.mapGeographicToImage(location);
+      paint(g, (int) Math.round(point.x), (int) Math.round(point.y), label, color);
+    }
+
+    /** Draws a labeled pin with its point at (x, y). */
+    public static void paint(Graphics2D g, int x, int y, String label, Color color) {
+      int r = 10;
+      int[] xs = { x, x - r + 2, x + r - 2 }, ys = { y, y - r - 8, y - r - 8 };
+      g.setColor(color);
+      g.fillPolygon(xs, ys, 3);
+      g.fillOval(x - r, y - 2 * r - 12, 2 * r, 2 * r);
+      g.setColor(color.darker());
+      g.setStroke(STROKE);
+      g.drawOval(x - r, y - 2 * r - 12, 2 * r, 2 * r);
+      if (label != null) {
+        g.setColor(Color.BLACK);
+        g.setFont(FONT);
+        int labelWidth = g.getFontMetrics().stringWidth(label);
+        g.drawString(label, x - labelWidth / 2, y - r - 7);
+      }
+    }
+  }
+
+  /** Marks the map's vehicle location with a pin labeled "V". */
+  public static class VehicleMarker implements MapOverlay {
+    private static final Color COLOR = new Color(0xfc, 0x65, 0x55);
+    /** Bounds of the marker relative to its point, with a pixel to spare for antialiasing. */
+    public static final Rectangle BOUNDS = new Rectangle(-12, -35, 24, 37);
+
+    @Override
+    public void paint(Graphics2D g, Map map) {
+      GeographicPoint location = map.getVehicleLocation();
+      if (location == null)
+        return;
+      Point2D.Double point = map.mapGeographicToImage(location);
+      paint(g, (int) Math.round(point.x), (int) Math.round(point.y));
+    }
+
+    /** Draws the marker with its point at (x, y). */
+    public static void paint(Graphics2D g, int x, int y) {
+      Pin.paint(g, x, y, "V", COLOR);
+    }
+  }
+
+  /** Pins marking alerts, such as traffic incidents. Pins may be added and removed from any thread. */
+  public static class AlertPins implements MapOverlay {
+    private final List<Pin> pins = new CopyOnWriteArrayList<Pin>();
+
+    public void add(Pin pin) { pins.add(pin); }
+    public void remove(Pin pin) { pins.remove(pin); }
+    public void clear() { pins.clear(); }
+    public List<Pin> getPins() { return pins; }
+
+    @Override
+    public void paint(Graphics2D g, Map map) {
+      for (Pin pin : pins)
+        pin.paint(g, map);
+    }
+  }
+}
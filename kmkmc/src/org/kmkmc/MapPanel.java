@@ -0,0 +1,336 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.ImageIcon;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * A component that displays maps.
+ *
+ * Each map set is compared with the one shown, in blocks of BLOCK pixels
+ * square, and only the blocks that differ, such as those the vehicle marker
+ * and trail moved through, are copied into a back buffer compatible with the
+ * screen and repainted. That's done by the thread setting the map, so the
+ * event thread only paints the changed part of the back buffer. Repaints are
+ * limited to MAX_FPS frames per second (set org.kmkmc.map.maxFps), whatever
+ * rate maps are set at; the changes between frames are combined.
+ *
+ * The vehicle marker may be drawn by the panel itself, over the map, at a
+ * location set on the event thread by {@link #setVehicleLocation}, so it can
+ * be animated between maps. Moving it repaints only the marker's old and new
+ * bounds.
+ */
+@SuppressWarnings("serial")
+public class MapPanel extends JComponent {
+  /** Width and height, in pixels, of the blocks compared. */
+  public static final int BLOCK = 32;
+  /** Most frames painted per second. */
+  public static final int MAX_FPS = Integer.getInteger("org.kmkmc.map.maxFps", 30);
+
+  /** Guards the back buffer, the pixels shown and the dirty region. */
+  private final Object lock = new Object();
+  private BufferedImage backBuffer;
+  /** Pixels of the back buffer, row by row, for comparison with new maps. */
+  private int[] shown;
+  private int bufferWidth, bufferHeight;
+  /** Region of the back buffer changed since the last frame; empty when none. */
+  private final Rectangle dirty = new Rectangle();
+  private volatile Map map;
+  /** Where the panel draws the vehicle marker, or null; and the marker's bounds. Event thread only. */
+  private GeographicPoint vehicleLocation;
+  private Rectangle markerBounds;
+
+  private final Timer frameTimer;
+  private final AtomicBoolean frameScheduled = new AtomicBoolean();
+  private long lastFrameTime;
+
+  // Statistics:
+  private volatile long mapCount, frameCount, paintCount, paintNanos, copiedPixels, coalescedCount;
+
+  /** Constructs a panel of a specified preferred size, in pixels. */
+  public MapPanel(int width, int height) {
+    Dimension size = new Dimension(width, height);
+    setMinimumSize(size);
+    setPreferredSize(size);
+    setMaximumSize(size);
+    setOpaque(true);
+    setBackground(Color.LIGHT_GRAY);
+    frameTimer = new Timer(0, event -> frame());
+    frameTimer.setRepeats(false);
+  }
+
+  /**
+   * Shows a map. May be called from any thread; the map's image is copied
+   * before this returns, so it may then be drawn on again.
+   */
+  public void setMap(Map map) {
+    BufferedImage image = intRgb(map.getImage());
+    int width = image.getWidth(), height = image.getHeight();
+    int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    boolean changed = false;
+    synchronized (lock) {
+      if (backBuffer == null || width != bufferWidth || height != bufferHeight) {
+        backBuffer = createBuffer(width, height);
+        shown = new int[width * height];
+        bufferWidth = width;
+        bufferHeight = height;
+        dirty.setBounds(0, 0, 0, 0);
+      }
+      boolean wasDirty = !dirty.isEmpty();
+      Graphics2D g = backBuffer.createGraphics();
+      for (int y0 = 0; y0 < height; y0 += BLOCK) {
+        int y1 = Math.min(y0 + BLOCK, height);
+        for (int x0 = 0; x0 < width; x0 += BLOCK) {
+          int x1 = Math.min(x0 + BLOCK, width);
+          if (blockEquals(pixels, x0, y0, x1, y1, width))
+            continue;
+          for (int y = y0; y < y1; y++)
+            System.arraycopy(pixels, y * width + x0, shown, y * width + x0, x1 - x0);
+          g.drawImage(image, x0, y0, x1, y1, x0, y0, x1, y1, null);
+          copiedPixels += (x1 - x0) * (y1 - y0);
+          Rectangle block = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+          if (dirty.isEmpty())
+            dirty.setBounds(block);
+          else
+            dirty.add(block);
+          changed = true;
+        }
+      }
+      g.dispose();
+      if (changed && wasDirty)
+        coalescedCount++;
+    }
+    this.map = map;
+    mapCount++;
+    if (changed)
+      scheduleFrame();
+  }
+
+  /** Tests whether a block of pixels equals the one shown. */
+  private boolean blockEquals(int[] pixels, int x0, int y0, int x1, int y1, int width) {
+    for (int y = y0; y < y1; y++)
+      for (int i = y * width + x0, end = y * width + x1; i < end; i++)
+        if (pixels[i] != shown[i])
+          return false;
+    return true;
+  }
+
+  /** Gets an image as a TYPE_INT_RGB BufferedImage, converting it if need be. */
+  private static BufferedImage intRgb(Image image) {
+    if (image instanceof BufferedImage && ((BufferedImage) image).getType() == BufferedImage.TYPE_INT_RGB)
+      return (BufferedImage) image;
+    BufferedImage converted =
+        new BufferedImage(image.getWidth(null), image.getHeight(null), BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = converted.createGraphics();
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return converted;
+  }
+
+  /** Creates a back buffer in the screen's format, if there is a screen. */
+  private BufferedImage createBuffer(int width, int height) {
+    if (GraphicsEnvironment.isHeadless())
+      return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    GraphicsConfiguration configuration = getGraphicsConfiguration();
+    if (configuration == null)
+      configuration = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+          .getDefaultConfiguration();
+    return configuration.createCompatibleImage(width, height);
+  }
+
+  /** Schedules a frame, no sooner than a frame interval after the last, unless one is already scheduled. */
+  private void scheduleFrame() {
+    if (!frameScheduled.compareAndSet(false, true))
+      return;
+    SwingUtilities.invokeLater(() -> {
+      long wait = lastFrameTime + 1000000000L / MAX_FPS - System.nanoTime();
+      if (wait <= 0) {
+        frame();
+      } else {
+        frameTimer.setInitialDelay((int) Math.max(1, wait / 1000000));
+        frameTimer.restart();
+      }
+    });
+  }
+
+  /**
+   * Sets the location at which the panel draws the vehicle marker over the
+   * map, or null for none. Called on the event thread. Maps set on the panel
+   * should then be rendered without the marker.
+   */
+  public void setVehicleLocation(GeographicPoint vehicleLocation) {
+    this.vehicleLocation = vehicleLocation;
+    updateMarker();
+  }
+
+  /** Repaints the marker's old and new bounds, if it has moved. */
+  private void updateMarker() {
+    Map map = this.map;
+    Rectangle bounds = null;
+    if (vehicleLocation != null && map != null) {
+      Point2D.Double point = map.mapGeographicToImage(vehicleLocation);
+      bounds = new Rectangle(MapOverlay.VehicleMarker.BOUNDS);
+      bounds.translate((int) Math.round(point.x), (int) Math.round(point.y));
+    }
+    if (bounds == null ? markerBounds == null : bounds.equals(markerBounds))
+      return;
+    if (markerBounds != null)
+      repaint(markerBounds);
+    if (bounds != null)
+      repaint(bounds);
+    markerBounds = bounds;
+  }
+
+  /** Repaints the region changed since the last frame. Called on the event thread. */
+  private void frame() {
+    frameScheduled.set(false);
+    lastFrameTime = System.nanoTime();
+    updateMarker();  // the map may have moved under it
+    Rectangle region = takeDirty();
+    if (region.isEmpty())
+      return;
+    frameCount++;
+    repaint(region);
+  }
+
+  /** Gets and clears the region changed since the last frame. */
+  Rectangle takeDirty() {
+    synchronized (lock) {
+      Rectangle region = new Rectangle(dirty);
+      dirty.setBounds(0, 0, 0, 0);
+      return region;
+    }
+  }
+
+  @Override
+  protected void paintComponent(Graphics g) {
+    long start = System.nanoTime();
+    synchronized (lock) {
+      if (backBuffer == null) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+      } else {
+        g.drawImage(backBuffer, 0, 0, null);  // clipped to the region repainted
+      }
+    }
+    Rectangle clip = g.getClipBounds();
+    if (markerBounds != null && (clip == null || clip.intersects(markerBounds))) {
+      Graphics2D g2 = (Graphics2D) g.create();
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      MapOverlay.VehicleMarker.paint(g2, markerBounds.x - MapOverlay.VehicleMarker.BOUNDS.x,
+          markerBounds.y - MapOverlay.VehicleMarker.BOUNDS.y);
+      g2.dispose();
+    }
+    paintCount++;
+    paintNanos += System.nanoTime() - start;
+  }
+
+  /** Gets the map shown, or null. */
+  public Map getMap() { return map; }
+  /** Gets the number of maps set. */
+  public long getMapCount() { return mapCount; }
+  /** Gets the number of frames repainted. */
+  public long getFrameCount() { return frameCount; }
+  /** Gets the mean time to paint, in milliseconds. */
+  public double getMeanPaintMillis() { return paintCount == 0 ? 0 : paintNanos / 1e6 / paintCount; }
+  /** Gets the mean fraction of each map's pixels that changed and were copied. */
+  public double getChangedFraction() {
+    return mapCount == 0 || bufferWidth == 0 ? 0 : copiedPixels / (double) mapCount / (bufferWidth * bufferHeight);
+  }
+  /** Gets the number of maps whose changes were combined with another's in one frame. */
+  public long getCoalescedCount() { return coalescedCount; }
+
+  @Override
+  public String toString() {
+    return String.format("MapPanel[%d maps, %d frames, %d combined, %.0f%% changed, %.2f ms per paint]",
+        mapCount, frameCount, coalescedCount, 100 * getChangedFraction(), getMeanPaintMillis());
+  }
+
+  /**
+   * Unit test. Moves the vehicle across a map of generated tiles and compares
+   * the event thread's time per frame against setting a new ImageIcon on a
+   * JLabel, as the app used to.
+   */
+  public static void main(String[] args) throws Exception {
+    final int size = 640, frames = 300;
+    MapClient client = new MapClient();
+    client.setTileCache(new TileCache(null, null, 64 << 20) {
+      @Override
+      public BufferedImage get(int zoom, int x, int y) {
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        g.setColor(new Color(0xe0e0d0 ^ ((x * 31 + y * 17) & 0x1f1f1f)));
+        g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+        g.setColor(Color.WHITE);
+        for (int i = 0; i < TILE_SIZE; i += 32)
+          g.drawLine(i, 0, i, TILE_SIZE);
+        g.dispose();
+        return tile;
+      }
+    });
+    GeographicPoint center = new GeographicPoint(37.429167, -122.138056);
+    client.setCenterLocation(center);
+    MapPanel panel = new MapPanel(size, size);
+    panel.setSize(size, size);
+    JLabel label = new JLabel();
+    label.setSize(size, size);
+    BufferedImage screen = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+
+    long labelNanos = 0, panelNanos = 0, setNanos = 0;
+    int panelFrames = 0;
+    for (int i = 0; i < frames; i++) {
+      GeographicPoint location = new GeographicPoint(center.getLatitude() + 0.00002 * (i % 150),
+          center.getLongitude() + 0.00003 * (i % 150));
+      client.setVehicleLocation(location);
+      client.getTrail().add(location);
+      Map map = client.getMap();
+
+      // As before: a new icon on a label, and a full repaint.
+      long start = System.nanoTime();
+      label.setIcon(new ImageIcon(map.getImage()));
+      Graphics2D g = screen.createGraphics();
+      label.paint(g);
+      g.dispose();
+      labelNanos += System.nanoTime() - start;
+
+      // The panel: copy the changes off the event thread, then paint only them.
+      start = System.nanoTime();
+      panel.setMap(map);
+      setNanos += System.nanoTime() - start;
+      start = System.nanoTime();
+      Rectangle region = panel.takeDirty();
+      if (!region.isEmpty()) {
+        g = screen.createGraphics();
+        g.setClip(region);
+        panel.paint(g);
+        g.dispose();
+        panelFrames++;
+      }
+      panelNanos += System.nanoTime() - start;
+    }
+    System.out.println(panel);
+    System.out.printf("Event thread per frame: label %.3f ms, panel %.3f ms (%.0f%%); panel's copy %.3f ms per map%n",
+        labelNanos / 1e6 / frames, panelNanos / 1e6 / frames, 100.0 * panelNanos / labelNanos,
+        setNanos / 1e6 / frames);
+    System.out.println(panelFrames + " of " + frames + " maps needed repainting");
+    System.exit(0);
+  }
+}
@@ -0,0 +1,271 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Warms a TileCache with the tiles a map following the vehicle will need
+ * soon. From each snapshot's location, heading, speed and yaw rate, this
+ * projects the vehicle's likely path some seconds ahead (by default 30; set
+ * org.kmkmc.map.prefetchSeconds), and prefetches the tiles of the views
+ * centered along it at the current zoom level, then those of the current
+ * view at the levels above and below.
+ *
+ * Tiles are fetched on a few background threads (org.kmkmc.map.prefetchThreads,
+ * default 2) with a bounded queue; when the queue is full, the farthest tiles
+ * are dropped. Prefetches not yet started are cancelled when the zoom level
+ * changes or the heading turns by more than CANCEL_HEADING_CHANGE.
+ */
+public class MapPrefetcher {
+  /** How far ahead to project the vehicle's path, in seconds. */
+  private static final double LOOKAHEAD = Double.parseDouble(System.getProperty("org.kmkmc.map.prefetchSeconds", "30"));
+  private static final int THREADS = Integer.getInteger("org.kmkmc.map.prefetchThreads", 2);
+  /** Most tiles waiting to be prefetched. */
+  private static final int QUEUE_CAPACITY = 128;
+  /** Interval between points on the projected path, in seconds. */
+  private static final double STEP = 2;
+  /** Time constant with which a turn is assumed to straighten out, in seconds. */
+  private static final double TURN_TIME = 4;
+  /** Change of heading, in degrees, that makes the prefetches planned before it obsolete. */
+  public static final double CANCEL_HEADING_CHANGE = 30;
+
+  private final TileCache tileCache;
+  private final int width, height;
+  private final ThreadPoolExecutor executor;
+  /** Prefetches queued or running, by tile key. */
+  private final ConcurrentHashMap<Long, Future<?>> pending = new ConcurrentHashMap<Long, Future<?>>();
+
+  // The zoom level and heading for which the pending prefetches were planned.
+  private int planZoom = -1;
+  private double planHeading;
+
+  private final LongAdder planned = new LongAdder(), dropped = new LongAdder(), cancelled = new LongAdder();
+
+  /**
+   * Constructs a prefetcher for maps of a specified size.
+   *
+   * @param tileCache the cache to warm
+   * @param width the width of the maps, in pixels
+   * @param height the height of the maps, in pixels
+   */
+  public MapPrefetcher(TileCache tileCache, int width, int height) {
+    this.tileCache = tileCache;
+    this.width = width;
+    this.height = height;
+    executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), r -> {
+          Thread thread = new Thread(r, "prefetch");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Plans prefetches for a vehicle snapshot, cancelling those it makes
+   * obsolete. Returns promptly; the tiles are fetched in the background.
+   *
+   * @param snapshot the vehicle's latest snapshot
+   * @param zoom the zoom level of the maps displayed
+   */
+  public synchronized void update(VehicleSnapshot snapshot, int zoom) {
+    GeographicPoint location = snapshot.getLocation();
+    if (location == null)
+      return;
+    double heading = snapshot.getHeading();
+    double turn = Math.abs(Math.IEEEremainder(heading - planHeading, 360));
+    if (zoom != planZoom || turn > CANCEL_HEADING_CHANGE) {
+      cancel();
+      planZoom = zoom;
+      planHeading = heading;
+    }
+
+    // Most likely needed first: the current view, the views along the
+    // projected path, then the current view at the levels above and below.
+    LinkedHashSet<Long> tiles = new LinkedHashSet<Long>();
+    addView(tiles, location, zoom);
+    for (GeographicPoint point : projectPath(snapshot))
+      addView(tiles, point, zoom);
+    if (zoom > 2)
+      addView(tiles, location, zoom - 1);
+    if (zoom < 20)
+      addView(tiles, location, zoom + 1);
+
+    for (long key : tiles) {
+      final int z = (int) (key >>> 58), x = (int) (key >>> 29) & 0x1fffffff, y = (int) key & 0x1fffffff;
+      if (pending.containsKey(key) || tileCache.getIfCached(z, x, y) != null)
+        continue;
+      FutureTask<Void> task = new FutureTask<Void>(() -> {
+        try {
+          tileCache.prefetch(z, x, y);
+        } finally {
+          pending.remove(key);
+        }
+      }, null);
+      pending.put(key, task);
+      try {
+        executor.execute(task);
+        planned.increment();
+      } catch (RejectedExecutionException ree) {
+        pending.remove(key);
+        dropped.increment();  // Queue full: the rest are farther along the path.
+        break;
+      }
+    }
+  }
+
+  /**
+   * Cancels the prefetches that haven't started. Those running are left to
+   * finish, and stay pending until they do.
+   */
+  public synchronized void cancel() {
+    for (Iterator<Future<?>> i = pending.values().iterator(); i.hasNext();) {
+      if (i.next().cancel(false)) {
+        cancelled.increment();
+        i.remove();
+      }
+    }
+    executor.purge();
+  }
+
+  /**
+   * Projects the vehicle's path from a snapshot, at intervals of STEP seconds
+   * up to LOOKAHEAD. The vehicle is assumed to keep its speed, and its turn to
+   * straighten out over a few seconds, as at the end of a bend.
+   */
+  List<GeographicPoint> projectPath(VehicleSnapshot snapshot) {
+    List<GeographicPoint> path = new ArrayList<GeographicPoint>();
+    double speed = snapshot.getVelocity();
+    if (speed <= 0)
+      speed = snapshot.getSpeed() / 3.6;
+    if (speed < 1)
+      return path;
+    GeographicPoint point = snapshot.getLocation();
+    double heading = snapshot.getHeading(), yawRate = snapshot.getYawRate();
+    double decay = Math.exp(-STEP / TURN_TIME);
+    for (double t = STEP; t <= LOOKAHEAD; t += STEP) {
+      point = PositionEstimator.extrapolate(point, heading, speed, yawRate, STEP);
+      heading -= yawRate * STEP;  // yaw rate is counterclockwise
+      yawRate *= decay;
+      path.add(point);
+    }
+    return path;
+  }
+
+  /** Adds the keys of the tiles of the view centered on a point. */
+  private void addView(LinkedHashSet<Long> tiles, GeographicPoint center, int zoom) {
+    int tileSize = TileCache.TILE_SIZE, tileCount = 1 << zoom;
+    double cx = MercatorProjection.x(center.getLongitude(), zoom), cy = MercatorProjection.y(center.getLatitude(), zoom);
+    int left = (int) Math.floor(cx - width / 2.0), top = (int) Math.floor(cy - height / 2.0);
+    for (int y = Math.max(0, Math.floorDiv(top, tileSize)); y <= Math.min(tileCount - 1, Math.floorDiv(top + height - 1, tileSize)); y++)
+      for (int x = Math.floorDiv(left, tileSize); x <= Math.floorDiv(left + width - 1, tileSize); x++)
+        tiles.add(TileCache.key(zoom, Math.floorMod(x, tileCount), y));
+  }
+
+  /** Gets the number of tiles queued to be prefetched. */
+  public long getPlanned() { return planned.sum(); }
+  /** Gets the number of tiles not queued because the queue was full. */
+  public long getDropped() { return dropped.sum(); }
+  /** Gets the number of prefetches cancelled before they started. */
+  public long getCancelled() { return cancelled.sum(); }
+  /** Gets the number of prefetches queued or running. */
+  public int getPending() { return pending.size(); }
+
+  /** Gets the fraction of the tiles prefetched that were later used. */
+  public double getHitRate() {
+    long prefetched = tileCache.getPrefetchHits() + tileCache.getPrefetchWaste();
+    return prefetched == 0 ? 0 : tileCache.getPrefetchHits() / (double) prefetched;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("MapPrefetcher[%d planned, %d dropped, %d cancelled, %d pending; " +
+        "%d fetched, %d from disk, %d used, %d wasted]",
+        getPlanned(), getDropped(), getCancelled(), getPending(), tileCache.getPrefetchFetches(),
+        tileCache.getPrefetchDiskHits(), tileCache.getPrefetchHits(), tileCache.getPrefetchWaste());
+  }
+
+  /**
+   * Unit test. Serves tiles locally with some latency, and drives part of the
+   * synthetic lap with and without prefetching, counting the tiles a map
+   * render had to wait for.
+   */
+  public static void main(String[] args) throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    final byte[] png;
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ImageIO.write(new BufferedImage(TileCache.TILE_SIZE, TileCache.TILE_SIZE, BufferedImage.TYPE_INT_RGB),
+          "png", out);
+      png = out.toByteArray();
+    }
+    server.createContext("/", exchange -> {
+      try {
+        Thread.sleep(40);  // Network latency
+      } catch (InterruptedException ie) {
+      }
+      exchange.sendResponseHeaders(200, png.length);
+      exchange.getResponseBody().write(png);
+      exchange.close();
+    });
+    ExecutorService serverExecutor = Executors.newFixedThreadPool(4);
+    server.setExecutor(serverExecutor);
+    server.start();
+    String template = "http://localhost:" + server.getAddress().getPort() + "/{z}/{x}/{y}.png";
+
+    int zoom = 17;
+    for (boolean prefetch : new boolean[] { false, true }) {
+      TileCache cache = new TileCache(template, null, 64 << 20);
+      MapPrefetcher prefetcher = new MapPrefetcher(cache, 640, 640);
+      DataSenderServer.SyntheticScenario scenario = new DataSenderServer.SyntheticScenario(1);
+      PositionEstimator estimator = new PositionEstimator();
+      long waited = 0;
+      for (int t = 380; t < 530; t++) {  // city streets, then onto the highway
+        CarInfo info = new CarInfo();
+        scenario.sample(t, info);
+        info.present = CarInfo.CREATETIME | CarInfo.LATITUDE | CarInfo.LONGITUDE | CarInfo.SPEED | CarInfo.YAW_RATE;
+        info.createTime = t * 1000L;
+        estimator.update(t * 1000L, info);
+        VehicleSnapshot snapshot = new VehicleSnapshot(t, "", t, estimator.getLocation(),
+            estimator.getHeading(), estimator.getSpeed(), t * 1000L, info);
+        if (prefetch)
+          prefetcher.update(snapshot, zoom);
+        long fetches = cache.getFetches();
+        long start = System.nanoTime();
+        new Map(snapshot.getLocation(), zoom, 640, 640, snapshot.getLocation(), cache).render();
+        if (cache.getFetches() > fetches)
+          waited += System.nanoTime() - start;
+        Thread.sleep(100);  // 10 times real time
+      }
+      prefetcher.cancel();
+      while (prefetcher.getPending() > 0)
+        Thread.sleep(10);
+      System.out.printf("%s: %d tiles fetched while rendering, %.0f ms spent waiting for them; %s%n",
+          prefetch ? "Prefetching" : "Not prefetching", cache.getFetches(), waited / 1e6, prefetch ? prefetcher : cache);
+    }
+    server.stop(0);
+    serverExecutor.shutdown();
+  }
+}
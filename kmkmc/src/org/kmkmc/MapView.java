@@ -0,0 +1,84 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+/**
+ * The view a MapClient renders maps of: where they're centered, at what zoom
+ * level, and how large. A view is immutable; changing a setting makes a new
+ * view, with the next generation number, so a render can tell whether the
+ * view it was started for has since been replaced.
+ */
+public final class MapView {
+  /** Least and greatest zoom levels. */
+  public static final int MIN_ZOOM = 2, MAX_ZOOM = 20;
+
+  private final long generation;
+  private final GeographicPoint centerLocation;
+  private final int zoomLevel, width, height;
+  private final boolean centerOnVehicle;
+
+  /** Constructs the first generation of a view. */
+  public MapView(GeographicPoint centerLocation, int zoomLevel, int width, int height, boolean centerOnVehicle) {
+    this(0, centerLocation, zoomLevel, width, height, centerOnVehicle);
+  }
+
+  private MapView(long generation, GeographicPoint centerLocation, int zoomLevel, int width, int height,
+      boolean centerOnVehicle) {
+    this.generation = generation;
+    this.centerLocation = centerLocation;
+    this.zoomLevel = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoomLevel));
+    this.width = width;
+    this.height = height;
+    this.centerOnVehicle = centerOnVehicle;
+  }
+
+  /** Gets the view's generation: 0 for the first, and one more for each change since. */
+  public long getGeneration() { return generation; }
+  /** Gets the location maps are centered at, unless centered on the vehicle. */
+  public GeographicPoint getCenterLocation() { return centerLocation; }
+  public int getZoomLevel() { return zoomLevel; }
+  public int getWidth() { return width; }
+  public int getHeight() { return height; }
+  /** Gets whether maps are centered on the vehicle. */
+  public boolean isCenterOnVehicle() { return centerOnVehicle; }
+
+  /** Gets the location maps are centered at, given the vehicle's location, which may be null. */
+  public GeographicPoint getCenterLocation(GeographicPoint vehicleLocation) {
+    return centerOnVehicle && vehicleLocation != null ? vehicleLocation : centerLocation;
+  }
+
+  /** Returns a view centered at a location, no longer centered on the vehicle. */
+  public MapView withCenterLocation(GeographicPoint centerLocation) {
+    return new MapView(generation + 1, centerLocation, zoomLevel, width, height, false);
+  }
+
+  /** Returns a view at a zoom level, limited to MIN_ZOOM to MAX_ZOOM, or this view if it's the same. */
+  public MapView withZoomLevel(int zoomLevel) {
+    zoomLevel = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoomLevel));
+    return zoomLevel == this.zoomLevel ? this :
+        new MapView(generation + 1, centerLocation, zoomLevel, width, height, centerOnVehicle);
+  }
+
+  /** Returns a view of a size, in pixels, or this view if it's the same. */
+  public MapView withSize(int width, int height) {
+    return width == this.width && height == this.height ? this :
+        new MapView(generation + 1, centerLocation, zoomLevel, width, height, centerOnVehicle);
+  }
+
+  /**
+   * Returns a view centered on the vehicle or not, or this view if it's the
+   * same. When centering is turned off, the view stays centered at a
+   * specified location, such as where the vehicle was.
+   */
+  public MapView withCenterOnVehicle(boolean centerOnVehicle, GeographicPoint centerLocation) {
+    return centerOnVehicle == this.centerOnVehicle ? this :
+        new MapView(generation + 1, centerOnVehicle ? this.centerLocation : centerLocation, zoomLevel, width, height,
+            centerOnVehicle);
+  }
+
+  @Override
+  public String toString() {
+    return "MapView#" + generation + "[" + (centerOnVehicle ? "vehicle" : centerLocation) + ", zoom " + zoomLevel +
+        ", " + width + "x" + height + "]";
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.util.Random;
+
+/**
+ * The Web Mercator projection used by map tiles, between geographic
+ * coordinates, in degrees, and world pixel coordinates at a zoom level, in
+ * which tile (x, y) spans [256x, 256x + 256) by [256y, 256y + 256). At zoom
+ * level 0 these are the "world coordinates" of the Google Maps API.
+ *
+ * Besides methods for single coordinates, there are methods that project
+ * arrays of coordinates into preallocated arrays, without allocating.
+ * Latitudes are limited to about 89.2 degrees, a third of a tile past the
+ * edge of the world.
+ */
+public class MercatorProjection {
+  private static final double TILE_SIZE = TileCache.TILE_SIZE;
+  /** Sine of the greatest latitude projected. */
+  private static final double MAX_SIN_LATITUDE = 0.9999;
+
+  private MercatorProjection() {}
+
+  /** Gets the number of world pixels per world coordinate at a zoom level. */
+  public static double scale(int zoom) {
+    return 1 << zoom;
+  }
+
+  /** Projects a longitude to an x coordinate in world pixels at a zoom level. */
+  public static double x(double longitude, int zoom) {
+    return (longitude / 360 + 0.5) * TILE_SIZE * scale(zoom);
+  }
+
+  /** Projects a latitude to a y coordinate in world pixels at a zoom level. */
+  public static double y(double latitude, int zoom) {
+    double siny = Math.min(Math.max(Math.sin(Math.toRadians(latitude)), -MAX_SIN_LATITUDE), MAX_SIN_LATITUDE);
+    return (0.5 - Math.log((1 + siny) / (1 - siny)) / (4 * Math.PI)) * TILE_SIZE * scale(zoom);
+  }
+
+  /** Gets the longitude of an x coordinate in world pixels at a zoom level. */
+  public static double longitude(double x, int zoom) {
+    return (x / (TILE_SIZE * scale(zoom)) - 0.5) * 360;
+  }
+
+  /** Gets the latitude of a y coordinate in world pixels at a zoom level. */
+  public static double latitude(double y, int zoom) {
+    return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y / (TILE_SIZE * scale(zoom))))));
+  }
+
+  /**
+   * Projects points to world pixels at a zoom level, less an offset, such as
+   * the world pixel coordinates of the top left corner of an image. The
+   * output arrays may be the input arrays.
+   *
+   * @param latitudes the latitudes of the points, in degrees
+   * @param longitudes the longitudes of the points, in degrees
+   * @param from the index of the first point
+   * @param count the number of points
+   * @param zoom the zoom level
+   * @param left subtracted from each x coordinate
+   * @param top subtracted from each y coordinate
+   * @param xs receives the x coordinates, from index 0
+   * @param ys receives the y coordinates, from index 0
+   */
+  public static void project(double[] latitudes, double[] longitudes, int from, int count, int zoom,
+      double left, double top, double[] xs, double[] ys) {
+    double size = TILE_SIZE * scale(zoom);
+    double xScale = size / 360, xOffset = size / 2 - left;
+    double yScale = -size / (4 * Math.PI), yOffset = size / 2 - top;
+    for (int i = 0; i < count; i++) {
+      double siny = Math.sin(Math.toRadians(latitudes[from + i]));
+      siny = siny < -MAX_SIN_LATITUDE ? -MAX_SIN_LATITUDE : siny > MAX_SIN_LATITUDE ? MAX_SIN_LATITUDE : siny;
+      xs[i] = longitudes[from + i] * xScale + xOffset;
+      ys[i] = Math.log((1 + siny) / (1 - siny)) * yScale + yOffset;
+    }
+  }
+
+  /**
+   * Gets the geographic coordinates of points in world pixels at a zoom
+   * level, plus an offset. The inverse of {@link #project}.
+   *
+   * @param xs the x coordinates of the points
+   * @param ys the y coordinates of the points
+   * @param from the index of the first point
+   * @param count the number of points
+   * @param zoom the zoom level
+   * @param left added to each x coordinate
+   * @param top added to each y coordinate
+   * @param latitudes receives the latitudes, in degrees, from index 0
+   * @param longitudes receives the longitudes, in degrees, from index 0
+   */
+  public static void unproject(double[] xs, double[] ys, int from, int count, int zoom,
+      double left, double top, double[] latitudes, double[] longitudes) {
+    double size = TILE_SIZE * scale(zoom);
+    for (int i = 0; i < count; i++) {
+      longitudes[i] = ((xs[from + i] + left) / size - 0.5) * 360;
+      latitudes[i] = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * (ys[from + i] + top) / size))));
+    }
+  }
+
+  /** Unit test. Compares the batch and single projections, and times them. */
+  public static void main(String[] args) {
+    int n = 100000, zoom = 15;
+    Random random = new Random(1);
+    double[] latitudes = new double[n], longitudes = new double[n], xs = new double[n], ys = new double[n];
+    for (int i = 0; i < n; i++) {
+      latitudes[i] = 37.4 + random.nextGaussian() * 0.1;
+      longitudes[i] = -122.1 + random.nextGaussian() * 0.1;
+    }
+    double left = x(-122.2, zoom), top = y(37.5, zoom);
+    project(latitudes, longitudes, 0, n, zoom, left, top, xs, ys);
+    double maxError = 0;
+    for (int i = 0; i < n; i++)
+      maxError = Math.max(maxError, Math.max(Math.abs(xs[i] - (x(longitudes[i], zoom) - left)),
+          Math.abs(ys[i] - (y(latitudes[i], zoom) - top))));
+    double[] latitudes2 = new double[n], longitudes2 = new double[n];
+    unproject(xs, ys, 0, n, zoom, left, top, latitudes2, longitudes2);
+    double maxRoundTripError = 0;
+    for (int i = 0; i < n; i++)
+      maxRoundTripError = Math.max(maxRoundTripError,
+          Math.max(Math.abs(latitudes2[i] - latitudes[i]), Math.abs(longitudes2[i] - longitudes[i])));
+    System.out.printf("Batch vs single: %.2g pixels; round trip: %.2g degrees%n", maxError, maxRoundTripError);
+
+    long start = System.nanoTime();
+    int repetitions = 50;
+    for (int r = 0; r < repetitions; r++)
+      project(latitudes, longitudes, 0, n, zoom, left, top, xs, ys);
+    System.out.printf("Batch: %.1f ns per point%n", (System.nanoTime() - start) / (double) repetitions / n);
+  }
+}
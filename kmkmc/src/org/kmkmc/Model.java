@@ -2,51 +2,53 @@
 
 package org.kmkmc;
 
-import java.util.Collection;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
-
 /** Models and estimates the state of current driving conditions. */
 public class Model {
 
-  /** Length of history kept for each car measurement. */
+  /** Default length of history kept for each car measurement. */
   private static final int SAMPLE_COUNT = 5;  // 5 seconds
 
   /** Categories of driving conditions. */
   public static enum State { STARTUP, STOPPED, CRUISING, ACTIVE, DEMANDING };
+  private static final State[] STATES = State.values();
+  
+  /**
+   * The car measurements of which history is kept. The length of each one's
+   * history defaults to the value of the org.kmkmc.model.window.<name> system
+   * property (such as org.kmkmc.model.window.yaw_rate), in samples.
+   */
+  public static enum Channel {
+    ACCELERATOR, BRAKE, LATERAL_ACCELERATION, LONGITUDINAL_ACCELERATION, SPEED, YAW_RATE;
+
+    int defaultWindow() {
+      return Integer.getInteger("org.kmkmc.model.window." + name().toLowerCase(), SAMPLE_COUNT);
+    }
+  }
   
   /** Most recent estimate of driving conditions. */
-  private State state;
+  private volatile State state = State.STARTUP;
+  /** Scenario time at which the state was entered, in milliseconds. */
+  private long stateTime;
+  
+  /** The rules by which the state is estimated, and the statistics they test. */
+  private StateRules rules = StateRules.getDefault();
+  private double[] features = new double[rules.getFeatureCount()];
   
   /** Supplies data about the car. */
   private VehicleDataClient vehicleDataClient;
   
-  // The history and statistics of each of several car measurements.
-  private ArrayBlockingQueue<Double> acceleratorHistory = new ArrayBlockingQueue<Double>(SAMPLE_COUNT);
-  private Statistics acceleratorStatistics = new Statistics();
-  private ArrayBlockingQueue<Double> brakeHistory = new ArrayBlockingQueue<Double>(SAMPLE_COUNT);
-  private Statistics brakeStatistics = new Statistics();
-  private ArrayBlockingQueue<Double> lateralAccelerationHistory = new ArrayBlockingQueue<Double>(SAMPLE_COUNT);
-  private Statistics lateralAccelerationStatistics = new Statistics();
-  private ArrayBlockingQueue<Double> longitudinalAccelerationHistory = new ArrayBlockingQueue<Double>(SAMPLE_COUNT);
-  private Statistics longitudinalAccelerationStatistics = new Statistics();
-  private ArrayBlockingQueue<Double> speedHistory = new ArrayBlockingQueue<Double>(SAMPLE_COUNT);
-  private Statistics speedStatistics = new Statistics();
-  private ArrayBlockingQueue<Double> yawRateHistory = new ArrayBlockingQueue<Double>(SAMPLE_COUNT);
-  private Statistics yawRateStatistics = new Statistics();
-
-  /** Statistics of some car measurement. */
-  private static class Statistics {
-    public int count;
-    public double mean, min, max, sd;
-    public String toString() {
-      return "count=" + count + ", mean=" + mean + ", min=" + min + ", max=" + max + ", sd=" + sd;
-    }
-  }
+  /** The history and statistics of each car measurement, indexed by Channel ordinal. */
+  private final RollingStatistics[] statistics = new RollingStatistics[Channel.values().length];
+  /** Longer-term statistics of each car measurement, indexed by Channel ordinal. */
+  private final MultiResolutionStatistics[] history = new MultiResolutionStatistics[Channel.values().length];
   
   /** Constructs a model that will obtain car data from a specified VehicleDataClient. */
   public Model(VehicleDataClient vehicleDataClient) {
     this.vehicleDataClient = vehicleDataClient;
+    for (Channel channel : Channel.values()) {
+      statistics[channel.ordinal()] = new RollingStatistics(channel.defaultWindow());
+      history[channel.ordinal()] = new MultiResolutionStatistics();
+    }
   }
   
   /** Gets the most recent state estimate. */
@@ -54,71 +56,76 @@ public class Model {
     return state;
   }
   
+  /** Gets the history and statistics of a car measurement. */
+  public RollingStatistics getStatistics(Channel channel) {
+    return statistics[channel.ordinal()];
+  }
+  
+  /** Sets the rules by which the state is estimated. */
+  public void setRules(StateRules rules) {
+    this.rules = rules;
+    features = new double[rules.getFeatureCount()];
+  }
+  
+  /** Gets the statistics of a car measurement over the last second, 30 seconds, 5 minutes or trip. */
+  public MultiResolutionStatistics getHistory(Channel channel) {
+    return history[channel.ordinal()];
+  }
+  
+  /**
+   * Gets whether the car appears to have settled into a long cruise: steady
+   * highway speed over the last 5 minutes, with no slowdown in the last 30
+   * seconds.
+   */
+  public boolean isLongCruise() {
+    MultiResolutionStatistics speed = getHistory(Channel.SPEED);
+    MultiResolutionStatistics.Aggregate fiveMinutes = speed.get(MultiResolutionStatistics.Resolution.FIVE_MINUTES);
+    MultiResolutionStatistics.Aggregate halfMinute = speed.get(MultiResolutionStatistics.Resolution.HALF_MINUTE);
+    return speed.getSpan(MultiResolutionStatistics.Resolution.FIVE_MINUTES) >= 120
+        && fiveMinutes.getMean() > 70 && fiveMinutes.getStandardDeviation() < 15 && halfMinute.getMin() > 50;
+  }
+  
+  /** Sets the length of history kept for a car measurement, in samples, clearing its history. */
+  public void setWindow(Channel channel, int samples) {
+    statistics[channel.ordinal()] = new RollingStatistics(samples);
+  }
+  
   /** Resets the state estimator, clearing all history. */
   public void reset() {
     state = State.STARTUP;
-    acceleratorHistory.clear();
-    brakeHistory.clear();
-    lateralAccelerationHistory.clear();
-    longitudinalAccelerationHistory.clear();
-    speedHistory.clear();
-    yawRateHistory.clear();
+    stateTime = 0;
+    for (RollingStatistics s : statistics)
+      s.clear();
+    for (MultiResolutionStatistics h : history)
+      h.clear();
   }
   
   /** Updates the estimated state using the most recent car measurements. */
   public void update() {
-    update(acceleratorHistory, vehicleDataClient.getAcceleratorPedalRatio(), acceleratorStatistics);
-    update(brakeHistory, vehicleDataClient.isBrakeOn() ? 1 : 0, brakeStatistics);
-    update(lateralAccelerationHistory, vehicleDataClient.getLateralAcceledation(), lateralAccelerationStatistics);
-    update(longitudinalAccelerationHistory, vehicleDataClient.getLongitudinalAcceleration(), longitudinalAccelerationStatistics);
-    update(speedHistory, vehicleDataClient.getSpeed(), speedStatistics);
-    update(yawRateHistory, Math.abs(vehicleDataClient.getYawRate()), yawRateStatistics);
+    update(vehicleDataClient.latest());
+  }
+  
+  /** Updates the estimated state using the car measurements of a specified snapshot. */
+  public void update(VehicleSnapshot snapshot) {
+    long time = snapshot.getTime() * 1000L;
+    add(Channel.ACCELERATOR, time, snapshot.getAcceleratorPedalRatio());
+    add(Channel.BRAKE, time, snapshot.isBrakeOn() ? 1 : 0);
+    add(Channel.LATERAL_ACCELERATION, time, snapshot.getLateralAcceleration());
+    add(Channel.LONGITUDINAL_ACCELERATION, time, snapshot.getLongitudinalAcceleration());
+    add(Channel.SPEED, time, snapshot.getSpeed());
+    add(Channel.YAW_RATE, time, Math.abs(snapshot.getYawRate()));
     
-    if (speedHistory.size() < SAMPLE_COUNT)
-      state = State.STARTUP;
-    else if (speedStatistics.max == 0 && brakeStatistics.min == 1)
-      state = State.STOPPED;
-    else if (speedStatistics.sd < 10 && speedStatistics.mean > 40)
-      state = State.CRUISING;
-    else if (yawRateStatistics.mean > 5 && speedStatistics.mean > 30)
-      state = State.DEMANDING;
-    else {
-      state = State.ACTIVE;
+    rules.extract(this, features);
+    int next = rules.next(state.ordinal(), time - stateTime, features, 0);
+    if (next != state.ordinal()) {
+      state = STATES[next];
+      stateTime = time;
     }
-    // System.out.println(state + "  speed: " + speedStatistics);
-    // System.out.println(state + "  yawRate: " + yawRateStatistics);
   }
 
-  /** Updates the history and statistics of a particular car measurement. */
-  private void update(Queue<Double> samples, double sample, Statistics statistics) {
-    if (samples.size() == SAMPLE_COUNT)
-      samples.remove();
-    samples.add(sample);
-    computeStatistics(samples, statistics);
-  }
-  
-  /** Updates the statistics of a particular car measurement. */
-  private void computeStatistics(Collection<Double> samples, Statistics statistics) {
-    statistics.count = samples.size();
-    statistics.min = Double.MAX_VALUE;
-    statistics.max = 0;
-    double sum = 0;
-    for (double sample : samples) {
-      sum += sample;
-      if (sample < statistics.min)
-        statistics.min = sample;
-      if (sample > statistics.max)
-        statistics.max = sample;
-    }
-    if (samples.size() >= 1)
-      statistics.mean = sum / samples.size();
-    if (samples.size() >= 2) {
-      sum = 0;
-      for (double sample : samples) {
-        double t = (sample - statistics.mean);
-        sum += t * t;
-      }
-      statistics.sd = Math.sqrt(sum / (samples.size() - 1));
-    }
+  /** Adds a sample of a car measurement to its history and statistics. */
+  private void add(Channel channel, long time, double sample) {
+    statistics[channel.ordinal()].add(sample);
+    history[channel.ordinal()].add(time, sample);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,275 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.util.Random;
+
+/**
+ * Statistics of some measurement at several time resolutions at once: over
+ * the last second, the last 30 seconds, the last 5 minutes, and the whole
+ * trip.
+ *
+ * Samples are summarized into one-second buckets, and each window is rolled
+ * up from the buckets of the level below it: 30 one-second buckets make the
+ * half-minute window, and ten 30-second buckets make the five-minute window.
+ * A window covers its most recently completed buckets, so it lags by up to
+ * one bucket of the level below. The trip statistics cover every sample.
+ * Adding a sample takes constant time, as does each roll-up, and no raw
+ * samples are kept. This class isn't thread-safe.
+ */
+public class MultiResolutionStatistics {
+
+  /** The windows over which statistics are kept. */
+  public static enum Resolution {
+    SECOND(1), HALF_MINUTE(30), FIVE_MINUTES(300), TRIP(0);
+
+    /** Length of the window, in seconds, or 0 for the whole trip. */
+    public final int seconds;
+
+    Resolution(int seconds) {
+      this.seconds = seconds;
+    }
+  }
+
+  /** The count, mean, minimum, maximum and standard deviation of a group of samples. */
+  public static class Aggregate {
+    private long count;
+    private double mean, m2;
+    private double min = Double.NaN, max = Double.NaN;
+
+    public long getCount() { return count; }
+    /** Gets the mean, or 0 if there are no samples. */
+    public double getMean() { return mean; }
+    /** Gets the smallest sample, or NaN if there are none. */
+    public double getMin() { return min; }
+    /** Gets the largest sample, or NaN if there are none. */
+    public double getMax() { return max; }
+    /** Gets the sample variance, or 0 if there are fewer than two samples. */
+    public double getVariance() { return count < 2 ? 0 : m2 / (count - 1); }
+    /** Gets the sample standard deviation, or 0 if there are fewer than two samples. */
+    public double getStandardDeviation() { return Math.sqrt(getVariance()); }
+
+    void clear() {
+      count = 0;
+      mean = m2 = 0;
+      min = max = Double.NaN;
+    }
+
+    void add(double sample) {
+      count++;
+      double delta = sample - mean;
+      mean += delta / count;
+      m2 += delta * (sample - mean);
+      if (count == 1) {
+        min = max = sample;
+      } else {
+        min = Math.min(min, sample);
+        max = Math.max(max, sample);
+      }
+    }
+
+    /** Combines another aggregate into this one (Chan's parallel form of Welford's method). */
+    void merge(Aggregate other) {
+      if (other.count == 0)
+        return;
+      if (count == 0) {
+        set(other);
+        return;
+      }
+      long n = count + other.count;
+      double delta = other.mean - mean;
+      mean += delta * other.count / n;
+      m2 += other.m2 + delta * delta * count * other.count / n;
+      count = n;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+
+    void set(Aggregate other) {
+      count = other.count;
+      mean = other.mean;
+      m2 = other.m2;
+      min = other.min;
+      max = other.max;
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + count + ", mean=" + mean + ", min=" + min + ", max=" + max + ", sd=" + getStandardDeviation();
+    }
+  }
+
+  /** A sliding window of buckets, each summarizing one period of the level below. */
+  private static class Level {
+    final Aggregate[] buckets;
+    int next, filled;
+    /** The combination of all the buckets, recomputed whenever a bucket is added. */
+    final Aggregate window = new Aggregate();
+
+    Level(int size) {
+      buckets = new Aggregate[size];
+      for (int i = 0; i < size; i++)
+        buckets[i] = new Aggregate();
+    }
+
+    /** Adds a bucket, dropping the oldest, and returns whether the ring has just wrapped around. */
+    boolean add(Aggregate bucket) {
+      buckets[next].set(bucket);
+      next = (next + 1) % buckets.length;
+      filled = Math.min(filled + 1, buckets.length);
+      window.clear();
+      for (int i = 0; i < filled; i++)
+        window.merge(buckets[i]);
+      return next == 0;
+    }
+
+    void clear() {
+      next = filled = 0;
+      window.clear();
+    }
+  }
+
+  /** Samples in the second now in progress. */
+  private final Aggregate currentSecond = new Aggregate();
+  /** The last 30 completed seconds, one bucket each. */
+  private final Level seconds = new Level(30);
+  /** The last 30-second periods, up to 5 minutes, one bucket each. */
+  private final Level halfMinutes = new Level(10);
+  private final Aggregate lastSecond = new Aggregate();
+  private final Aggregate trip = new Aggregate();
+  /** Start of the second now in progress, in seconds, or Long.MIN_VALUE before the first sample. */
+  private long currentStart = Long.MIN_VALUE;
+
+  /** Discards all samples, including those of the trip. */
+  public void clear() {
+    clearWindows();
+    trip.clear();
+  }
+
+  /** Discards the samples of all windows but the trip. */
+  private void clearWindows() {
+    currentSecond.clear();
+    lastSecond.clear();
+    seconds.clear();
+    halfMinutes.clear();
+    currentStart = Long.MIN_VALUE;
+  }
+
+  /**
+   * Adds a sample.
+   *
+   * @param time the time of the sample, in milliseconds. If time goes
+   * backward, as when a scenario is seeked, the windows start over.
+   * @param sample the value
+   */
+  public void add(long time, double sample) {
+    long second = Math.floorDiv(time, 1000);
+    if (currentStart == Long.MIN_VALUE || second < currentStart) {
+      clearWindows();
+      currentStart = second;
+    } else if (second > currentStart) {
+      long elapsed = second - currentStart;
+      if (elapsed > Resolution.FIVE_MINUTES.seconds) {
+        // Nothing in the windows is recent enough to keep.
+        clearWindows();
+      } else {
+        rollSecond();
+        // Seconds without samples still age the windows.
+        for (long i = 1; i < elapsed; i++)
+          rollSecond();
+      }
+      currentStart = second;
+    }
+    currentSecond.add(sample);
+    trip.add(sample);
+  }
+
+  /** Closes the second in progress, rolling it up into the longer windows. */
+  private void rollSecond() {
+    lastSecond.set(currentSecond);
+    if (seconds.add(currentSecond))
+      halfMinutes.add(seconds.window);
+    currentSecond.clear();
+  }
+
+  /**
+   * Gets the statistics at one resolution. The aggregate returned is live,
+   * changing as samples are added.
+   */
+  public Aggregate get(Resolution resolution) {
+    switch (resolution) {
+    case SECOND: return lastSecond;
+    case HALF_MINUTE: return seconds.window;
+    case FIVE_MINUTES: return halfMinutes.window;
+    default: return trip;
+    }
+  }
+
+  /** Gets the number of seconds of history at a resolution: up to the window's length. */
+  public int getSpan(Resolution resolution) {
+    switch (resolution) {
+    case SECOND: return Math.min(seconds.filled, 1);
+    case HALF_MINUTE: return seconds.filled;
+    case FIVE_MINUTES: return halfMinutes.filled * 30;
+    default: return Integer.MAX_VALUE;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Resolution resolution : Resolution.values())
+      sb.append(resolution).append(": ").append(get(resolution)).append('\n');
+    return sb.toString();
+  }
+
+  /**
+   * Unit test. Feeds five samples a second for an hour, checking each window
+   * against statistics computed directly from the raw samples it covers.
+   */
+  public static void main(String[] args) {
+    MultiResolutionStatistics statistics = new MultiResolutionStatistics();
+    Random random = new Random(1);
+    int rate = 5, duration = 3600;
+    double[] raw = new double[duration * rate];
+    double worst = 0;
+    for (int i = 0; i < raw.length; i++) {
+      raw[i] = 50 + 30 * Math.sin(i / 400.0) + random.nextGaussian() * 5;
+      statistics.add(i * 1000L / rate, raw[i]);
+      int second = i / rate;
+      if (i % rate != rate - 1 || second < 330)
+        continue;
+      // Just before the next second starts, the windows cover the completed seconds.
+      worst = Math.max(worst, check(statistics.get(Resolution.SECOND), raw, (second - 1) * rate, second * rate));
+      worst = Math.max(worst, check(statistics.get(Resolution.HALF_MINUTE), raw, (second - 30) * rate, second * rate));
+      int halfMinuteEnd = second / 30 * 30;
+      worst = Math.max(worst, check(statistics.get(Resolution.FIVE_MINUTES), raw, (halfMinuteEnd - 300) * rate,
+          halfMinuteEnd * rate));
+      worst = Math.max(worst, check(statistics.get(Resolution.TRIP), raw, 0, i + 1));
+    }
+    System.out.print(statistics);
+    System.out.printf("Worst relative error %.2e%n", worst);
+
+    long start = System.nanoTime();
+    int n = 10000000;
+    for (int i = 0; i < n; i++)
+      statistics.add(i * 200L, i % 97);
+    System.out.printf("%.1f ns per sample%n", (System.nanoTime() - start) / (double) n);
+  }
+
+  private static double check(Aggregate aggregate, double[] raw, int from, int to) {
+    double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+    for (int i = from; i < to; i++) {
+      sum += raw[i];
+      min = Math.min(min, raw[i]);
+      max = Math.max(max, raw[i]);
+    }
+    double mean = sum / (to - from), squares = 0;
+    for (int i = from; i < to; i++)
+      squares += (raw[i] - mean) * (raw[i] - mean);
+    double sd = Math.sqrt(squares / (to - from - 1));
+    if (aggregate.getCount() != to - from || aggregate.getMin() != min || aggregate.getMax() != max)
+      throw new AssertionError(aggregate + " but expected count=" + (to - from) + ", min=" + min + ", max=" + max);
+    return Math.max(Math.abs(aggregate.getMean() - mean) / Math.abs(mean), Math.abs(aggregate.getStandardDeviation() - sd) / sd);
+  }
+}
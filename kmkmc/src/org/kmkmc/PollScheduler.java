@@ -0,0 +1,192 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a poll repeatedly at a fixed rate, choosing the interval between polls
+ * from the state of the vehicle and the observed duration of each poll.
+ *
+ * Polls are due at deadlines spaced one interval apart, regardless of how long
+ * each poll takes, so the rate doesn't drift with I/O time. A poll that
+ * overruns its interval causes a missed deadline; the schedule then restarts
+ * from the present rather than firing a burst of catch-up polls. The interval
+ * is never shorter than twice the typical poll duration, so a slow server
+ * isn't asked for more than it can answer.
+ *
+ * While the vehicle is stopped the interval lengthens. After a failed poll,
+ * the interval backs off exponentially with random jitter, so many clients of
+ * a failing service don't retry in lockstep, and returns to normal after a
+ * successful poll.
+ *
+ * The intervals default to the values of the org.kmkmc.poll.interval,
+ * org.kmkmc.poll.stoppedInterval and org.kmkmc.poll.maxBackoff system
+ * properties, in milliseconds.
+ */
+public class PollScheduler {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  /** Weight of the newest sample in the moving averages. */
+  private static final double SMOOTHING = 0.2;
+
+  /** One poll. */
+  public interface Task {
+    /** Polls once, and returns whether the poll succeeded. */
+    boolean run() throws Exception;
+  }
+
+  private final Task task;
+  private final long interval, stoppedInterval, maxBackoff;
+
+  private volatile Model.State state = Model.State.STARTUP;
+
+  // Statistics, written only by the polling thread.
+  private volatile long pollCount, failureCount, missedCount;
+  private volatile int consecutiveFailures;
+  /** Moving average of poll duration, in nanoseconds. */
+  private volatile double meanDuration;
+  /** Moving average of the time between the starts of successive polls, in nanoseconds. */
+  private volatile double meanPeriod;
+  private volatile long currentInterval;
+
+  /** Constructs a scheduler with the default intervals. */
+  public PollScheduler(Task task) {
+    this(task, Long.getLong("org.kmkmc.poll.interval", 200), Long.getLong("org.kmkmc.poll.stoppedInterval", 1000),
+        Long.getLong("org.kmkmc.poll.maxBackoff", 30000));
+  }
+
+  /**
+   * Constructs a scheduler.
+   *
+   * @param task the poll
+   * @param interval the interval between polls while the vehicle is moving, in milliseconds
+   * @param stoppedInterval the interval between polls while the vehicle is stopped, in milliseconds
+   * @param maxBackoff the longest interval after failed polls, in milliseconds
+   */
+  public PollScheduler(Task task, long interval, long stoppedInterval, long maxBackoff) {
+    if (interval < 1 || stoppedInterval < 1 || maxBackoff < 1)
+      throw new IllegalArgumentException("Intervals must be positive");
+    this.task = task;
+    this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+    this.stoppedInterval = TimeUnit.MILLISECONDS.toNanos(stoppedInterval);
+    this.maxBackoff = TimeUnit.MILLISECONDS.toNanos(maxBackoff);
+    currentInterval = this.interval;
+  }
+
+  /** Sets the current state of the vehicle, from which the interval is chosen. */
+  public void setState(Model.State state) {
+    this.state = state;
+  }
+
+  /** Polls until the thread is interrupted. */
+  public void run() throws InterruptedException {
+    long deadline = System.nanoTime(), previousStart = 0;
+    while (!Thread.currentThread().isInterrupted()) {
+      long start = System.nanoTime();
+      if (previousStart != 0)
+        meanPeriod = average(meanPeriod, start - previousStart);
+      previousStart = start;
+      boolean succeeded;
+      try {
+        succeeded = task.run();
+      } catch (InterruptedException ie) {
+        throw ie;
+      } catch (Exception e) {
+        logger.severe("Poll failed: " + e);
+        succeeded = false;
+      }
+      long end = System.nanoTime();
+      meanDuration = average(meanDuration, end - start);
+      pollCount++;
+      if (succeeded) {
+        consecutiveFailures = 0;
+      } else {
+        failureCount++;
+        consecutiveFailures++;
+      }
+
+      long delay = nextInterval();
+      currentInterval = delay;
+      deadline += delay;
+      if (deadline < end) {
+        missedCount++;
+        if (logger.isLoggable(Level.FINE))
+          logger.fine("Poll missed its deadline: " + this);
+        deadline = end;  // start over rather than catching up
+      }
+      TimeUnit.NANOSECONDS.sleep(deadline - end);
+    }
+    throw new InterruptedException();
+  }
+
+  /** Chooses the interval before the next poll, in nanoseconds. */
+  private long nextInterval() {
+    long base = state == Model.State.STOPPED ? stoppedInterval : interval;
+    base = Math.max(base, (long) (2 * meanDuration));
+    if (consecutiveFailures == 0)
+      return base;
+    // Double the interval for each consecutive failure, then pick a time at
+    // random in its upper half.
+    long backoff = base << Math.min(consecutiveFailures, 20);
+    backoff = Math.min(Math.max(backoff, base), maxBackoff);
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  private static double average(double mean, long sample) {
+    return mean == 0 ? sample : mean + SMOOTHING * (sample - mean);
+  }
+
+  /** Gets the number of polls run. */
+  public long getPollCount() { return pollCount; }
+  /** Gets the number of polls that failed. */
+  public long getFailureCount() { return failureCount; }
+  /** Gets the number of polls that finished after the next one was due. */
+  public long getMissedCount() { return missedCount; }
+  /** Gets the number of polls that have failed since the last successful one. */
+  public int getConsecutiveFailures() { return consecutiveFailures; }
+  /** Gets the interval chosen before the next poll, in milliseconds. */
+  public double getInterval() { return currentInterval / 1e6; }
+  /** Gets the typical duration of a poll, in milliseconds. */
+  public double getMeanDuration() { return meanDuration / 1e6; }
+  /** Gets the rate at which polls are actually being run, per second. */
+  public double getAchievedRate() { return meanPeriod == 0 ? 0 : 1e9 / meanPeriod; }
+
+  @Override
+  public String toString() {
+    return String.format("%.1f polls/s, interval %.0f ms, duration %.1f ms, %d polls, %d failed, %d missed deadlines",
+        getAchievedRate(), getInterval(), getMeanDuration(), pollCount, failureCount, missedCount);
+  }
+
+  /**
+   * Unit test. Runs a poll that takes 20 ms, that is slow for a while, then
+   * fails for a while, with the vehicle stopped for part of the time, and
+   * prints the schedule's statistics each second.
+   */
+  public static void main(String[] args) throws Exception {
+    final long start = System.nanoTime();
+    final PollScheduler[] scheduler = new PollScheduler[1];
+    scheduler[0] = new PollScheduler(() -> {
+      long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+      scheduler[0].setState(seconds >= 2 && seconds < 4 ? Model.State.STOPPED : Model.State.CRUISING);
+      Thread.sleep(seconds >= 4 && seconds < 6 ? 300 : 20);
+      return seconds < 6 || seconds >= 9;
+    }, 200, 1000, 2000);
+    Thread thread = new Thread(() -> {
+      try {
+        scheduler[0].run();
+      } catch (InterruptedException ie) {
+      }
+    });
+    thread.start();
+    for (int i = 0; i < 12; i++) {
+      Thread.sleep(1000);
+      System.out.println(i + 1 + "s: " + scheduler[0]);
+    }
+    thread.interrupt();
+    thread.join();
+  }
+}
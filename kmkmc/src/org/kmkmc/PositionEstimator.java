@@ -0,0 +1,334 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Estimates a vehicle's position by fusing its reported location, speed and
+ * yaw rate with an extended Kalman filter.
+ *
+ * The filter's state is the vehicle's position in meters east and north of a
+ * local origin, its heading, and its speed. Between polls the vehicle is
+ * assumed to move at constant speed and turn rate, the turn rate being the
+ * reported yaw rate. Each poll's location and speed then correct the estimate.
+ * A location too far from the prediction to be plausible (by Mahalanobis
+ * distance) is treated as a GPS glitch and ignored, unless several in a row
+ * agree, in which case the vehicle really has moved (as when the scenario is
+ * seeked) and the filter starts over there.
+ *
+ * Speeds are reported in km/h and yaw rates in degrees per second, positive
+ * counterclockwise (turning left).
+ */
+public class PositionEstimator {
+  private static final double METERS_PER_DEGREE = 111320;
+
+  /** Standard deviation of reported locations, in meters. */
+  private static final double LOCATION_SD = 5;
+  /** Standard deviation of reported speeds, in m/s. */
+  private static final double SPEED_SD = 0.5;
+  /** Standard deviation of the vehicle's acceleration, in m/s^2. */
+  private static final double ACCELERATION_SD = 3;
+  /** Standard deviation of reported yaw rates, in radians per second. */
+  private static final double YAW_RATE_SD = Math.toRadians(2);
+  /** Variance per second of position, for motion the model doesn't capture, in m^2/s. */
+  private static final double POSITION_DIFFUSION = 1;
+  /** Squared Mahalanobis distance beyond which a location is rejected: chi-square, 2 degrees of freedom, p = 0.001. */
+  private static final double GATE = 13.8;
+  /** Number of consecutive rejected locations after which the filter starts over. */
+  private static final int MAX_REJECTIONS = 3;
+  /** Longest interval between polls across which the estimate is carried, in seconds. */
+  private static final double MAX_GAP = 30;
+  /** Longest interval over which a location is extrapolated, in seconds. */
+  public static final double MAX_EXTRAPOLATION = 5;
+
+  private boolean initialized;
+  /** Latitude and longitude of the local origin, and meters per degree of longitude there. */
+  private double originLatitude, originLongitude, metersPerDegreeLongitude;
+
+  /** State: meters east, meters north, heading (radians counterclockwise from east), speed (m/s). */
+  private final double[] x = new double[4];
+  /** State covariance, row-major. */
+  private final double[] p = new double[16];
+  private final double[] scratch = new double[16];
+
+  /** Time of the last update, in milliseconds: the reported createtime, or else the wall time. */
+  private long lastTime;
+  private double yawRate;  // radians per second
+  private int rejections;
+  private boolean rejected;
+
+  /** Discards the estimate, so the next location reported starts a new one. */
+  public void reset() {
+    initialized = false;
+    rejections = 0;
+    rejected = false;
+  }
+
+  /**
+   * Updates the estimate with the values decoded from a poll. Values with the
+   * same createtime as the previous update are ignored.
+   *
+   * @param wallTime when the poll was made, in milliseconds since the epoch
+   * @param info the decoded values
+   * @return whether the estimate was updated
+   */
+  public boolean update(long wallTime, CarInfo info) {
+    long time = info.has(CarInfo.CREATETIME) ? info.createTime : wallTime;
+    boolean hasLocation = info.has(CarInfo.LATITUDE) && info.has(CarInfo.LONGITUDE);
+    if (info.has(CarInfo.YAW_RATE))
+      yawRate = Math.toRadians(info.yawRate);
+    if (!initialized) {
+      if (!hasLocation)
+        return false;
+      initialize(time, info);
+      return true;
+    }
+    double dt = (time - lastTime) / 1000.0;
+    if (dt <= 0)
+      return false;
+    if (dt > MAX_GAP) {
+      if (hasLocation)
+        initialize(time, info);
+      return hasLocation;
+    }
+    lastTime = time;
+    predict(dt);
+    rejected = false;
+    if (hasLocation) {
+      if (correctLocation(east(info.longitude), north(info.latitude))) {
+        rejections = 0;
+      } else if (++rejections >= MAX_REJECTIONS) {
+        initialize(time, info);
+        return true;
+      } else {
+        rejected = true;
+      }
+    }
+    if (info.has(CarInfo.SPEED))
+      correctSpeed(info.speed / 3.6);
+    return true;
+  }
+
+  private void initialize(long time, CarInfo info) {
+    initialized = true;
+    lastTime = time;
+    rejections = 0;
+    rejected = false;
+    originLatitude = info.latitude;
+    originLongitude = info.longitude;
+    metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(originLatitude));
+    x[0] = x[1] = 0;
+    x[2] = 0;
+    x[3] = info.has(CarInfo.SPEED) ? info.speed / 3.6 : 0;
+    Arrays.fill(p, 0);
+    p[0] = p[5] = LOCATION_SD * LOCATION_SD;
+    p[10] = Math.PI * Math.PI;  // heading unknown until the vehicle moves
+    p[15] = SPEED_SD * SPEED_SD;
+  }
+
+  /** Advances the estimate by an interval, in seconds. */
+  private void predict(double dt) {
+    double heading = x[2], v = x[3], w = yawRate;
+    if (Math.abs(w) < 1e-4) {
+      x[0] += v * Math.cos(heading) * dt;
+      x[1] += v * Math.sin(heading) * dt;
+    } else {
+      x[0] += v / w * (Math.sin(heading + w * dt) - Math.sin(heading));
+      x[1] += v / w * (Math.cos(heading) - Math.cos(heading + w * dt));
+    }
+    x[2] = normalize(heading + w * dt);
+
+    // Linearize about the mean heading over the interval: F = I except for the
+    // position's dependence on heading and speed.
+    double mid = heading + w * dt / 2, c = Math.cos(mid) * dt, s = Math.sin(mid) * dt;
+    double[] f = { 1, 0, -v * s, c, 0, 1, v * c, s, 0, 0, 1, 0, 0, 0, 0, 1 };
+    // P = F P F^T + Q
+    for (int i = 0; i < 4; i++)
+      for (int j = 0; j < 4; j++) {
+        double sum = 0;
+        for (int k = 0; k < 4; k++)
+          sum += f[i * 4 + k] * p[k * 4 + j];
+        scratch[i * 4 + j] = sum;
+      }
+    for (int i = 0; i < 4; i++)
+      for (int j = 0; j < 4; j++) {
+        double sum = 0;
+        for (int k = 0; k < 4; k++)
+          sum += scratch[i * 4 + k] * f[j * 4 + k];
+        p[i * 4 + j] = sum;
+      }
+    p[0] += POSITION_DIFFUSION * dt;
+    p[5] += POSITION_DIFFUSION * dt;
+    p[10] += YAW_RATE_SD * YAW_RATE_SD * dt * dt;
+    p[15] += ACCELERATION_SD * ACCELERATION_SD * dt * dt;
+  }
+
+  /** Corrects the estimate with a location, unless it's an outlier. Returns false if it's rejected. */
+  private boolean correctLocation(double east, double north) {
+    double r = LOCATION_SD * LOCATION_SD;
+    double s00 = p[0] + r, s01 = p[1], s10 = p[4], s11 = p[5] + r;
+    double det = s00 * s11 - s01 * s10;
+    double i00 = s11 / det, i01 = -s01 / det, i10 = -s10 / det, i11 = s00 / det;
+    double y0 = east - x[0], y1 = north - x[1];
+    double d2 = y0 * (i00 * y0 + i01 * y1) + y1 * (i10 * y0 + i11 * y1);
+    if (d2 > GATE)
+      return false;
+    // K = P H^T S^-1, where P H^T is the first two columns of P.
+    double[] k = new double[8];
+    for (int i = 0; i < 4; i++) {
+      k[i * 2] = p[i * 4] * i00 + p[i * 4 + 1] * i10;
+      k[i * 2 + 1] = p[i * 4] * i01 + p[i * 4 + 1] * i11;
+    }
+    for (int i = 0; i < 4; i++)
+      x[i] += k[i * 2] * y0 + k[i * 2 + 1] * y1;
+    x[2] = normalize(x[2]);
+    // P = P - K H P, where H P is the first two rows of P.
+    for (int i = 0; i < 4; i++)
+      for (int j = 0; j < 4; j++)
+        scratch[i * 4 + j] = p[i * 4 + j] - k[i * 2] * p[j] - k[i * 2 + 1] * p[4 + j];
+    System.arraycopy(scratch, 0, p, 0, 16);
+    return true;
+  }
+
+  /** Corrects the estimate with a speed, in m/s. */
+  private void correctSpeed(double speed) {
+    double s = p[15] + SPEED_SD * SPEED_SD;
+    double y = speed - x[3];
+    double k0 = p[3] / s, k1 = p[7] / s, k2 = p[11] / s, k3 = p[15] / s;
+    x[0] += k0 * y;
+    x[1] += k1 * y;
+    x[2] = normalize(x[2] + k2 * y);
+    x[3] += k3 * y;
+    double[] k = { k0, k1, k2, k3 };
+    for (int i = 0; i < 4; i++)
+      for (int j = 0; j < 4; j++)
+        scratch[i * 4 + j] = p[i * 4 + j] - k[i] * p[12 + j];
+    System.arraycopy(scratch, 0, p, 0, 16);
+  }
+
+  private double east(double longitude) {
+    return (longitude - originLongitude) * metersPerDegreeLongitude;
+  }
+
+  private double north(double latitude) {
+    return (latitude - originLatitude) * METERS_PER_DEGREE;
+  }
+
+  private static double normalize(double angle) {
+    return Math.IEEEremainder(angle, 2 * Math.PI);
+  }
+
+  /** Gets whether there's an estimate yet. */
+  public boolean isInitialized() { return initialized; }
+
+  /** Gets whether the location reported by the last update was rejected as a glitch. */
+  public boolean wasRejected() { return rejected; }
+
+  /** Gets the estimated location. */
+  public GeographicPoint getLocation() {
+    return new GeographicPoint(originLatitude + x[1] / METERS_PER_DEGREE, originLongitude + x[0] / metersPerDegreeLongitude);
+  }
+
+  /** Gets the estimated heading, in degrees clockwise from north. */
+  public double getHeading() {
+    double heading = 90 - Math.toDegrees(x[2]);
+    return heading < 0 ? heading + 360 : heading;
+  }
+
+  /** Gets the estimated speed, in m/s. */
+  public double getSpeed() {
+    return Math.max(x[3], 0);
+  }
+
+  /** Gets the standard deviation of the estimated location, in meters. */
+  public double getLocationError() {
+    return Math.sqrt((p[0] + p[5]) / 2);
+  }
+
+  /**
+   * Extrapolates a location, assuming constant speed and turn rate.
+   *
+   * @param location the starting location
+   * @param heading the starting heading, in degrees clockwise from north
+   * @param speed the speed, in m/s
+   * @param yawRate the turn rate, in degrees per second counterclockwise
+   * @param seconds the interval, which is limited to MAX_EXTRAPOLATION
+   */
+  public static GeographicPoint extrapolate(GeographicPoint location, double heading, double speed, double yawRate,
+      double seconds) {
+    double dt = Math.max(0, Math.min(seconds, MAX_EXTRAPOLATION));
+    if (dt == 0 || speed == 0)
+      return location;
+    double a = Math.toRadians(90 - heading), w = Math.toRadians(yawRate);
+    double east, north;
+    if (Math.abs(w) < 1e-4) {
+      east = speed * Math.cos(a) * dt;
+      north = speed * Math.sin(a) * dt;
+    } else {
+      east = speed / w * (Math.sin(a + w * dt) - Math.sin(a));
+      north = speed / w * (Math.cos(a) - Math.cos(a + w * dt));
+    }
+    double latitude = location.getLatitude();
+    return new GeographicPoint(latitude + north / METERS_PER_DEGREE,
+        location.getLongitude() + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude))));
+  }
+
+  /**
+   * Unit test. Tracks the synthetic drive of {@link DataSenderServer} with
+   * noisy GPS and occasional glitches, comparing the error of the estimate and
+   * of the raw locations, and of extrapolating half a second ahead.
+   */
+  public static void main(String[] args) {
+    DataSenderServer.SyntheticScenario scenario = new DataSenderServer.SyntheticScenario(411);
+    PositionEstimator estimator = new PositionEstimator();
+    Random random = new Random(1);
+    CarInfo truth = new CarInfo(), next = new CarInfo(), reported = new CarInfo();
+    double rawError = 0, estimateError = 0, extrapolationError = 0;
+    int n = 0, glitches = 0, rejected = 0;
+    for (int t = 0; t < 1799; t++) {  // one lap
+      scenario.sample(t, truth);
+      reported.present = CarInfo.CREATETIME | CarInfo.LATITUDE | CarInfo.LONGITUDE | CarInfo.SPEED | CarInfo.YAW_RATE;
+      reported.createTime = 1000L * t;
+      reported.speed = truth.speed;
+      reported.yawRate = truth.yawRate;
+      reported.latitude = truth.latitude + random.nextGaussian() * LOCATION_SD / METERS_PER_DEGREE;
+      reported.longitude = truth.longitude + random.nextGaussian() * LOCATION_SD / METERS_PER_DEGREE;
+      if (t > 100 && random.nextDouble() < 0.02) {
+        reported.latitude += 0.003;  // a glitch of over 300 m
+        glitches++;
+      }
+      estimator.update(1000L * t, reported);
+      if (estimator.wasRejected())
+        rejected++;
+      if (t < 60)
+        continue;
+      rawError += distance(truth.latitude, truth.longitude, reported.latitude, reported.longitude);
+      GeographicPoint estimate = estimator.getLocation();
+      estimateError += distance(truth.latitude, truth.longitude, estimate.getLatitude(), estimate.getLongitude());
+      // Halfway to the next poll, compare with the midpoint of the true positions.
+      scenario.sample(t + 1, next);
+      GeographicPoint ahead = extrapolate(estimate, estimator.getHeading(), estimator.getSpeed(), truth.yawRate, 0.5);
+      extrapolationError += distance((truth.latitude + next.latitude) / 2, (truth.longitude + next.longitude) / 2,
+          ahead.getLatitude(), ahead.getLongitude());
+      n++;
+    }
+    System.out.printf("Mean error: raw %.1f m, estimate %.1f m, extrapolated 0.5 s %.1f m; %d glitches, %d rejected%n",
+        rawError / n, estimateError / n, extrapolationError / n, glitches, rejected);
+
+    long start = System.nanoTime();
+    int iterations = 1000000;
+    for (int i = 0; i < iterations; i++) {
+      reported.createTime += 1000;
+      estimator.update(reported.createTime, reported);
+    }
+    System.out.printf("%.2f us per update%n", (System.nanoTime() - start) / 1e3 / iterations);
+  }
+
+  private static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+    double north = (latitude2 - latitude1) * METERS_PER_DEGREE;
+    double east = (longitude2 - longitude1) * METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude1));
+    return Math.sqrt(north * north + east * east);
+  }
+}
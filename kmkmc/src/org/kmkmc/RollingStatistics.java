@@ -0,0 +1,248 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * The count, mean, minimum, maximum and standard deviation of the most recent
+ * samples of some measurement, over a window of fixed length.
+ *
+ * The samples are kept in a ring buffer of primitive doubles. The mean and
+ * variance are updated incrementally as each sample enters the window and the
+ * oldest leaves it (a sliding form of Welford's method), and are recomputed
+ * exactly from time to time, and whenever an outlier leaves the window, so
+ * that rounding errors can't accumulate. The minimum and maximum are tracked
+ * with monotonic deques of sample numbers. Adding a sample therefore takes
+ * amortized constant time, however long the window, and allocates nothing.
+ * This class isn't thread-safe.
+ */
+public class RollingStatistics {
+  /** Number of samples after which the mean and variance are recomputed exactly. */
+  static final int RECOMPUTE_INTERVAL = 4096;
+  /** Factor by which m2 must shrink in one step for the mean and variance to be recomputed at once. */
+  static final double CANCELLATION = 1e-6;
+
+  private final double[] samples;
+  /** Number of samples ever added, since the last clear. */
+  private long added;
+  private int count;
+  private double mean, m2;
+  private int sinceRecompute;
+
+  // Monotonic deques of sample numbers: the window's minimum is at the head of
+  // minQueue, and values increase toward the tail; likewise maxQueue.
+  private final long[] minQueue, maxQueue;
+  private int minHead, minSize, maxHead, maxSize;
+
+  /**
+   * Constructs statistics over a window of a specified number of samples.
+   *
+   * @param capacity the number of samples in the window
+   */
+  public RollingStatistics(int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    samples = new double[capacity];
+    minQueue = new long[capacity];
+    maxQueue = new long[capacity];
+  }
+
+  /** Gets the number of samples in a full window. */
+  public int getCapacity() {
+    return samples.length;
+  }
+
+  /** Gets the number of samples now in the window. */
+  public int getCount() {
+    return count;
+  }
+
+  /** Gets whether the window is full. */
+  public boolean isFull() {
+    return count == samples.length;
+  }
+
+  /** Discards all samples. */
+  public void clear() {
+    added = 0;
+    count = 0;
+    mean = m2 = 0;
+    sinceRecompute = 0;
+    minHead = minSize = maxHead = maxSize = 0;
+  }
+
+  /** Adds a sample to the window, dropping the oldest sample if the window is full. */
+  public void add(double sample) {
+    int capacity = samples.length;
+    int slot = (int) (added % capacity);
+    if (count == capacity) {
+      double old = samples[slot];
+      long expired = added - capacity;
+      if (minSize > 0 && minQueue[minHead] == expired) {
+        minHead = next(minHead);
+        minSize--;
+      }
+      if (maxSize > 0 && maxQueue[maxHead] == expired) {
+        maxHead = next(maxHead);
+        maxSize--;
+      }
+      // Replace the oldest sample with the new one, keeping the count.
+      double oldMean = mean, oldM2 = m2;
+      mean += (sample - old) / count;
+      m2 += (sample - old) * (sample - mean + old - oldMean);
+      if (m2 < oldM2 * CANCELLATION)
+        sinceRecompute = Integer.MAX_VALUE - 1;  // an outlier left; what's left of m2 is mostly rounding error
+    } else {
+      count++;
+      double delta = sample - mean;
+      mean += delta / count;
+      m2 += delta * (sample - mean);
+    }
+    samples[slot] = sample;
+
+    while (minSize > 0 && samples[slot(minQueue[tail(minHead, minSize)])] >= sample)
+      minSize--;
+    minQueue[tail(minHead, ++minSize)] = added;
+    while (maxSize > 0 && samples[slot(maxQueue[tail(maxHead, maxSize)])] <= sample)
+      maxSize--;
+    maxQueue[tail(maxHead, ++maxSize)] = added;
+    added++;
+
+    if (++sinceRecompute >= Math.max(RECOMPUTE_INTERVAL, capacity))
+      recompute();
+  }
+
+  /** Recomputes the mean and variance exactly from the samples in the window. */
+  private void recompute() {
+    sinceRecompute = 0;
+    double sum = 0;
+    for (int i = 0; i < count; i++)
+      sum += samples[i];
+    mean = sum / count;
+    double sumSquares = 0;
+    for (int i = 0; i < count; i++) {
+      double d = samples[i] - mean;
+      sumSquares += d * d;
+    }
+    m2 = sumSquares;
+  }
+
+  private int slot(long sampleNumber) {
+    return (int) (sampleNumber % samples.length);
+  }
+
+  private int next(int i) {
+    return i + 1 == samples.length ? 0 : i + 1;
+  }
+
+  /** Gets the index of the last element of a deque. */
+  private int tail(int head, int size) {
+    int i = head + size - 1;
+    return i >= samples.length ? i - samples.length : i;
+  }
+
+  /** Gets the most recent sample, or NaN if there are none. */
+  public double getLast() {
+    return count == 0 ? Double.NaN : samples[slot(added - 1)];
+  }
+
+  /** Gets the mean of the samples in the window, or 0 if there are none. */
+  public double getMean() {
+    return minSize > 0 && getMin() == getMax() ? getMin() : mean;
+  }
+
+  /** Gets the smallest sample in the window, or NaN if there are none. */
+  public double getMin() {
+    return minSize == 0 ? Double.NaN : samples[slot(minQueue[minHead])];
+  }
+
+  /** Gets the largest sample in the window, or NaN if there are none. */
+  public double getMax() {
+    return maxSize == 0 ? Double.NaN : samples[slot(maxQueue[maxHead])];
+  }
+
+  /** Gets the sample variance of the samples in the window, or 0 if there are fewer than two. */
+  public double getVariance() {
+    return count < 2 || getMin() == getMax() ? 0 : Math.max(m2, 0) / (count - 1);
+  }
+
+  /** Gets the sample standard deviation of the samples in the window, or 0 if there are fewer than two. */
+  public double getStandardDeviation() {
+    return Math.sqrt(getVariance());
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + count + ", mean=" + getMean() + ", min=" + getMin() + ", max=" + getMax()
+        + ", sd=" + getStandardDeviation();
+  }
+
+  /**
+   * Unit test. Checks the statistics against those computed directly from a
+   * queue of the samples, for several window lengths, then compares the cost
+   * per sample with that of rescanning the window.
+   */
+  public static void main(String[] args) {
+    Random random = new Random(1);
+    for (int capacity : new int[] { 1, 2, 5, 60, 3000 }) {
+      RollingStatistics statistics = new RollingStatistics(capacity);
+      ArrayDeque<Double> window = new ArrayDeque<Double>();
+      double worst = 0;
+      for (int i = 0; i < 20000; i++) {
+        // Speeds that are sometimes constant, as when parked, and sometimes large.
+        double sample = i % 1000 < 200 ? 0 : Math.round(random.nextDouble() * 1200) / 10.0 + (i % 7000 < 10 ? 1e6 : 0);
+        statistics.add(sample);
+        window.add(sample);
+        if (window.size() > capacity)
+          window.remove();
+        double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (double s : window) {
+          sum += s;
+          min = Math.min(min, s);
+          max = Math.max(max, s);
+        }
+        double mean = sum / window.size(), squares = 0;
+        for (double s : window)
+          squares += (s - mean) * (s - mean);
+        double sd = window.size() < 2 ? 0 : Math.sqrt(squares / (window.size() - 1));
+        if (statistics.getCount() != window.size() || statistics.getMin() != min || statistics.getMax() != max)
+          throw new AssertionError("Sample " + i + ": " + statistics + " but min=" + min + ", max=" + max);
+        worst = Math.max(worst, Math.abs(statistics.getMean() - mean) / Math.max(1, Math.abs(mean)));
+        worst = Math.max(worst, Math.abs(statistics.getStandardDeviation() - sd) / Math.max(1, sd));
+      }
+      System.out.printf("Window %d: worst relative error of mean and sd %.2e%n", capacity, worst);
+    }
+
+    int n = 2000000;
+    for (int capacity : new int[] { 5, 300, 3000 }) {
+      RollingStatistics statistics = new RollingStatistics(capacity);
+      long start = System.nanoTime();
+      double check = 0;
+      for (int i = 0; i < n; i++) {
+        statistics.add(i % 97);
+        check += statistics.getStandardDeviation() + statistics.getMin();
+      }
+      double rolling = (System.nanoTime() - start) / (double) n;
+      double[] samples = new double[capacity];
+      int rescans = capacity >= 300 ? n / 100 : n;
+      start = System.nanoTime();
+      for (int i = 0; i < rescans; i++) {
+        samples[i % capacity] = i % 97;
+        double sum = 0, min = Double.MAX_VALUE;
+        for (double s : samples) {
+          sum += s;
+          min = Math.min(min, s);
+        }
+        double mean = sum / capacity, squares = 0;
+        for (double s : samples)
+          squares += (s - mean) * (s - mean);
+        check += squares + min;
+      }
+      double rescan = (System.nanoTime() - start) / (double) rescans;
+      System.out.printf("Window %d: %.1f ns per sample, versus %.1f ns rescanning (%s)%n", capacity, rolling, rescan,
+          check > 0 ? "ok" : "?");
+    }
+  }
+}
@@ -0,0 +1,157 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+/**
+ * Interpolates the vehicle's location and speed between the two most recent
+ * snapshots, so the display can animate them at its own frame rate rather
+ * than jumping at each poll.
+ *
+ * Snapshots are placed in time by the wall time of the poll their location
+ * was estimated from. The interpolator shows the vehicle one poll interval in
+ * the past, so that by the time it reaches the latest snapshot the next has
+ * usually arrived. If it hasn't, the location is extrapolated from the latest
+ * by dead reckoning, for at most MAX_EXTRAPOLATION milliseconds. Snapshots
+ * may be added from one thread while another samples.
+ */
+public class SnapshotInterpolator {
+  /** Longest time the location is extrapolated past the latest snapshot, in milliseconds. */
+  public static final long MAX_EXTRAPOLATION = 1000;
+  /** Longest interval interpolated across, in milliseconds; longer gaps are jumped. */
+  public static final long MAX_INTERVAL = 5000;
+
+  /** The vehicle's interpolated location and speed at a moment. */
+  public static final class Sample {
+    private final GeographicPoint location;
+    private final double speed;
+
+    Sample(GeographicPoint location, double speed) {
+      this.location = location;
+      this.speed = speed;
+    }
+
+    public GeographicPoint getLocation() { return location; }
+    /** Gets the speed, in the units of {@link VehicleSnapshot#getSpeed()}. */
+    public double getSpeed() { return speed; }
+  }
+
+  private VehicleSnapshot previous, latest;
+
+  /**
+   * Adds a snapshot, if its location is newer than the latest's. If the
+   * vehicle time jumped, as on a seek, the vehicle is shown at the new
+   * location rather than moving there.
+   */
+  public synchronized void add(VehicleSnapshot snapshot) {
+    long time = snapshot.getEstimateTime();
+    if (time == 0)
+      return;
+    if (latest != null && time == latest.getEstimateTime()) {
+      latest = snapshot;  // the same estimate, perhaps with newer values
+      return;
+    }
+    if (latest != null && (time < latest.getEstimateTime() || time - latest.getEstimateTime() > MAX_INTERVAL ||
+        snapshot.getTime() < latest.getTime() || (snapshot.getTime() - latest.getTime()) * 1000L > MAX_INTERVAL))
+      latest = null;  // time went backward, or there was a long gap or a seek: start over
+    previous = latest;
+    latest = snapshot;
+  }
+
+  /** Forgets the snapshots added, so the next is shown where it is. */
+  public synchronized void reset() {
+    previous = latest = null;
+  }
+
+  /**
+   * Gets the vehicle's location and speed to show at a wall time, or null if
+   * no snapshot has been added.
+   *
+   * @param wallTime the time, in milliseconds since the epoch
+   */
+  public synchronized Sample sample(long wallTime) {
+    if (latest == null)
+      return null;
+    long t1 = latest.getEstimateTime();
+    if (previous == null)
+      return new Sample(latest.getLocation(), latest.getSpeed());
+    long t0 = previous.getEstimateTime(), interval = t1 - t0;
+    long renderTime = wallTime - interval;
+    if (renderTime >= t1) {
+      // The next snapshot is late: dead reckon from the latest.
+      GeographicPoint location = latest.getLocationAt(Math.min(renderTime, t1 + MAX_EXTRAPOLATION));
+      return new Sample(location, latest.getSpeed());
+    }
+    double f = Math.max(0, (renderTime - t0) / (double) interval);
+    GeographicPoint a = previous.getLocation(), b = latest.getLocation();
+    GeographicPoint location = new GeographicPoint(a.getLatitude() + f * (b.getLatitude() - a.getLatitude()),
+        a.getLongitude() + f * (b.getLongitude() - a.getLongitude()));
+    return new Sample(location, previous.getSpeed() + f * (latest.getSpeed() - previous.getSpeed()));
+  }
+
+  /**
+   * Unit test. Feeds snapshots of the synthetic course at 5 per second and
+   * samples them at 60 frames per second, comparing the largest step
+   * between frames with the step between polls. Then seeks 5 minutes ahead,
+   * and checks the vehicle is shown at once where it landed.
+   */
+  public static void main(String[] args) {
+    DataSenderServer.SyntheticScenario scenario = new DataSenderServer.SyntheticScenario(1);
+    SnapshotInterpolator interpolator = new SnapshotInterpolator();
+    long start = 1000000000000L, pollInterval = 200, frameInterval = 1000 / 60;
+    CarInfo info = new CarInfo(), next = new CarInfo();
+    GeographicPoint lastPolled = null, lastShown = null;
+    double maxPollStep = 0, maxFrameStep = 0, maxSpeedStep = 0, maxPolledSpeedStep = 0;
+    double lastSpeed = Double.NaN, lastPolledSpeed = Double.NaN;
+    int frames = 0;
+    for (long now = start, nextPoll = start; now < start + 120000; now += frameInterval) {
+      while (now >= nextPoll) {
+        // The course is sampled once a second; poll points between, from 60 s in, where it's moving.
+        int t = 60 + (int) ((nextPoll - start) / 1000);
+        double f = ((nextPoll - start) % 1000) / 1000.0;
+        scenario.sample(t, info);
+        scenario.sample(t + 1, next);
+        GeographicPoint location = new GeographicPoint(info.latitude + f * (next.latitude - info.latitude),
+            info.longitude + f * (next.longitude - info.longitude));
+        info.speed += f * (next.speed - info.speed);
+        VehicleSnapshot snapshot = new VehicleSnapshot(0, "test", t, location, 0, 0, nextPoll, info);
+        interpolator.add(snapshot);
+        if (lastPolled != null) {
+          maxPollStep = Math.max(maxPollStep, distance(lastPolled, location));
+          maxPolledSpeedStep = Math.max(maxPolledSpeedStep, Math.abs(info.speed - lastPolledSpeed));
+        }
+        lastPolled = location;
+        lastPolledSpeed = info.speed;
+        nextPoll += pollInterval;
+      }
+      Sample sample = interpolator.sample(now);
+      if (lastShown != null) {
+        maxFrameStep = Math.max(maxFrameStep, distance(lastShown, sample.getLocation()));
+        maxSpeedStep = Math.max(maxSpeedStep, Math.abs(sample.getSpeed() - lastSpeed));
+      }
+      lastShown = sample.getLocation();
+      lastSpeed = sample.getSpeed();
+      frames++;
+    }
+    System.out.printf("%d frames: largest step %.2f m, speed change %.3f per frame; against %.2f m, %.3f per poll%n",
+        frames, maxFrameStep, maxSpeedStep, maxPollStep, maxPolledSpeedStep);
+
+    long now = start + 120000 + pollInterval;
+    scenario.sample(480, info);
+    GeographicPoint landed = new GeographicPoint(info.latitude, info.longitude);
+    interpolator.add(new VehicleSnapshot(0, "test", 480, landed, 0, 0, now, info));
+    System.out.printf("After a seek: %.2f m from where it landed%n", distance(landed, interpolator.sample(now).getLocation()));
+
+    long time = System.nanoTime();
+    for (int i = 0; i < 1000000; i++)
+      interpolator.sample(start + 120000 + i % 200);
+    System.out.printf("%.0f ns per sample%n", (System.nanoTime() - time) / 1e6);
+  }
+
+  /** Gets the approximate distance between two nearby points, in meters. */
+  private static double distance(GeographicPoint a, GeographicPoint b) {
+    double north = (b.getLatitude() - a.getLatitude()) * Geofence.METERS_PER_DEGREE;
+    double east = (b.getLongitude() - a.getLongitude()) * Geofence.METERS_PER_DEGREE *
+        Math.cos(Math.toRadians(a.getLatitude()));
+    return Math.sqrt(north * north + east * east);
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One stage of a pipeline: it takes messages from a {@link Mailbox}, processes
+ * them on its own executor, and posts the results to the mailboxes of the
+ * stages connected downstream. Because a mailbox keeps only its latest
+ * message, a stage that falls behind skips stale inputs rather than queuing
+ * them, and never holds up the stages upstream.
+ *
+ * A stage processes one message at a time, in the order posted, so its
+ * function needs no synchronization of its own. The function may return null
+ * to post nothing downstream.
+ *
+ * @param <I> the type of the messages processed
+ * @param <O> the type of the results
+ */
+public class Stage<I, O> {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  private final String name;
+  private final Function<? super I, ? extends O> function;
+  private final Executor executor;
+  private final Mailbox<I> mailbox = new Mailbox<I>();
+  private final List<Stage<? super O, ?>> downstream = new CopyOnWriteArrayList<Stage<? super O, ?>>();
+  /** Set while a task to drain the mailbox is scheduled or running. */
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private volatile boolean stopped;
+
+  private final LongAdder processedCount = new LongAdder();
+  private final LongAdder errorCount = new LongAdder();
+  private final AtomicLong busyNanos = new AtomicLong();
+  private final long startNanos = System.nanoTime();
+
+  /**
+   * Constructs a stage that runs on a thread of its own.
+   *
+   * @param name the stage's name, also given to its thread
+   * @param function processes each message
+   */
+  public Stage(String name, Function<? super I, ? extends O> function) {
+    this(name, function, newExecutor(name));
+  }
+
+  /**
+   * Constructs a stage that runs on a specified executor, such as
+   * SwingUtilities::invokeLater for a stage that updates the UI.
+   */
+  public Stage(String name, Function<? super I, ? extends O> function, Executor executor) {
+    this.name = name;
+    this.function = function;
+    this.executor = executor;
+  }
+
+  private static ExecutorService newExecutor(final String name) {
+    return Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, name);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /** Connects a stage downstream of this one, to receive its results. Returns the stage connected. */
+  public <T extends Stage<? super O, ?>> T connect(T stage) {
+    downstream.add(stage);
+    return stage;
+  }
+
+  /** Posts a message to this stage, replacing any message not yet processed. */
+  public void post(I message) {
+    if (stopped)
+      return;
+    mailbox.post(message);
+    if (scheduled.compareAndSet(false, true))
+      executor.execute(this::drain);
+  }
+
+  /** Processes messages until the mailbox is empty. */
+  private void drain() {
+    while (true) {
+      I message;
+      while ((message = mailbox.take()) != null)
+        process(message);
+      scheduled.set(false);
+      // A message posted after the last take but before the flag was cleared
+      // found the flag set and didn't schedule a task, so check again.
+      if (mailbox.getDepth() == 0 || !scheduled.compareAndSet(false, true))
+        return;
+    }
+  }
+
+  private void process(I message) {
+    long start = System.nanoTime();
+    O result = null;
+    try {
+      result = function.apply(message);
+    } catch (RuntimeException e) {
+      errorCount.increment();
+      logger.log(Level.SEVERE, "Stage " + name + " failed", e);
+    }
+    busyNanos.addAndGet(System.nanoTime() - start);
+    processedCount.increment();
+    if (result != null)
+      for (Stage<? super O, ?> stage : downstream)
+        stage.post(result);
+  }
+
+  /** Stops accepting messages, and shuts down the stage's thread, if it has its own. */
+  public void stop() {
+    stopped = true;
+    if (executor instanceof ExecutorService)
+      ((ExecutorService) executor).shutdown();
+  }
+
+  public String getName() { return name; }
+  /** Gets the number of messages processed. */
+  public long getProcessedCount() { return processedCount.sum(); }
+  /** Gets the number of messages skipped because a newer one arrived before they were processed. */
+  public long getConflatedCount() { return mailbox.getConflatedCount(); }
+  /** Gets the number of messages whose processing failed. */
+  public long getErrorCount() { return errorCount.sum(); }
+  /** Gets the number of messages waiting: 0 or 1. */
+  public int getDepth() { return mailbox.getDepth(); }
+
+  /** Gets the mean time taken to process a message, in milliseconds. */
+  public double getMeanProcessingTime() {
+    long n = getProcessedCount();
+    return n == 0 ? 0 : busyNanos.get() / 1e6 / n;
+  }
+
+  /** Gets the rate at which messages have been processed since the stage was constructed, per second. */
+  public double getThroughput() {
+    return getProcessedCount() / ((System.nanoTime() - startNanos) / 1e9);
+  }
+
+  /** Gets the fraction of time the stage has spent processing. */
+  public double getUtilization() {
+    return busyNanos.get() / (double) (System.nanoTime() - startNanos);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d processed (%.1f/s), %d conflated, %d errors, depth %d, %.2f ms each, %.0f%% busy",
+        name, getProcessedCount(), getThroughput(), getConflatedCount(), getErrorCount(), getDepth(),
+        getMeanProcessingTime(), 100 * getUtilization());
+  }
+
+  /**
+   * Unit test. Feeds a fast stage and a slow one from a source posting every
+   * 10 ms, and shows that the slow stage conflates without delaying the fast
+   * one.
+   */
+  public static void main(String[] args) throws Exception {
+    final long[] lastSeen = new long[2];
+    Stage<Long, Long> source = new Stage<Long, Long>("source", n -> n);
+    Stage<Long, Void> fast = source.connect(new Stage<Long, Void>("fast", n -> {
+      lastSeen[0] = n;
+      return null;
+    }));
+    Stage<Long, Void> slow = source.connect(new Stage<Long, Void>("slow", n -> {
+      try {
+        Thread.sleep(95);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      lastSeen[1] = n;
+      return null;
+    }));
+    long n = 0;
+    for (int i = 0; i < 200; i++) {
+      source.post(++n);
+      Thread.sleep(10);
+    }
+    Thread.sleep(200);
+    for (Stage<?, ?> stage : new Stage<?, ?>[] { source, fast, slow })
+      System.out.println(stage);
+    System.out.println("Posted " + n + "; fast saw " + lastSeen[0] + " last, slow saw " + lastSeen[1] + " last");
+    source.stop();
+    fast.stop();
+    slow.stop();
+  }
+}
@@ -0,0 +1,433 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rules by which {@link Model} classifies driving conditions, compiled from
+ * properties into flat tables so that evaluating them allocates nothing.
+ *
+ * Each state has an enter condition and an exit condition, both comparisons
+ * of statistics of the car's measurements with constants, such as
+ * "speed.sd < 10 & speed.mean > 40". A condition is a disjunction, separated
+ * by |, of conjunctions, separated by &. Each statistic is named
+ * channel.statistic, optionally followed by @resolution to use the long-term
+ * statistics of {@link MultiResolutionStatistics}. The exit condition
+ * defaults to the negation of the enter condition; a different one adds
+ * hysteresis. Each state also has a dwell time, the least time it lasts
+ * before the model can leave it, and the states are ordered by priority.
+ * STARTUP is in effect whenever its own enter condition holds.
+ *
+ * The default rules are read from the model-rules.properties resource, or
+ * from the file named by the org.kmkmc.modelRules system property, so they
+ * can be changed without recompiling.
+ */
+public class StateRules {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  /** Statistics a rule can test. FULL is 1 if the window is full, and 0 if not. */
+  public static enum Statistic { COUNT, MEAN, MIN, MAX, SD, LAST, FULL }
+
+  /** Resolutions of statistics, by their names in rules. WINDOW is a channel's RollingStatistics. */
+  public static enum Resolution {
+    WINDOW("window", null),
+    SECOND("1s", MultiResolutionStatistics.Resolution.SECOND),
+    HALF_MINUTE("30s", MultiResolutionStatistics.Resolution.HALF_MINUTE),
+    FIVE_MINUTES("5min", MultiResolutionStatistics.Resolution.FIVE_MINUTES),
+    TRIP("trip", MultiResolutionStatistics.Resolution.TRIP);
+
+    final String label;
+    final MultiResolutionStatistics.Resolution resolution;
+
+    Resolution(String label, MultiResolutionStatistics.Resolution resolution) {
+      this.label = label;
+      this.resolution = resolution;
+    }
+  }
+
+  private static final int LT = 0, LE = 1, GT = 2, GE = 3, EQ = 4, NE = 5;
+  private static final String[] OPERATORS = { "<", "<=", ">", ">=", "==", "!=" };
+
+  private static volatile StateRules defaultRules;
+
+  // The distinct statistics the rules test, which extract() fills in.
+  private final Model.Channel[] featureChannels;
+  private final Statistic[] featureStatistics;
+  private final Resolution[] featureResolutions;
+
+  // Comparisons: feature index, operator and constant.
+  private final int[] termFeatures, termOperators;
+  private final double[] termConstants;
+  /** The terms of conjunction i are termStart[i] up to termStart[i + 1]. */
+  private final int[] termStart;
+  /** The conjunctions of condition i are conjunctionStart[i] up to conjunctionStart[i + 1]. */
+  private final int[] conjunctionStart;
+
+  // Per State ordinal: condition indexes (exit -1 for "not enter"), and dwell in milliseconds.
+  private final int[] enter, exit;
+  private final long[] dwell;
+  /** States other than STARTUP, by ordinal, highest priority first. */
+  private final int[] order;
+
+  /** Accumulates a rule set as it's parsed. */
+  private static class Builder {
+    final List<Model.Channel> channels = new ArrayList<Model.Channel>();
+    final List<Statistic> statistics = new ArrayList<Statistic>();
+    final List<Resolution> resolutions = new ArrayList<Resolution>();
+    final List<int[]> terms = new ArrayList<int[]>();
+    final List<Double> constants = new ArrayList<Double>();
+    final List<Integer> termStart = new ArrayList<Integer>();
+    final List<Integer> conjunctionStart = new ArrayList<Integer>();
+
+    int feature(Model.Channel channel, Statistic statistic, Resolution resolution) {
+      for (int i = 0; i < channels.size(); i++)
+        if (channels.get(i) == channel && statistics.get(i) == statistic && resolutions.get(i) == resolution)
+          return i;
+      channels.add(channel);
+      statistics.add(statistic);
+      resolutions.add(resolution);
+      return channels.size() - 1;
+    }
+
+    /** Compiles a condition, returning its index. */
+    int condition(String key, String text) {
+      conjunctionStart.add(termStart.size());
+      for (String conjunction : text.split("\\|")) {
+        termStart.add(terms.size());
+        for (String term : conjunction.split("&")) {
+          term = term.trim();
+          if (term.equals("true"))
+            continue;  // an empty conjunction always holds
+          compileTerm(key, term);
+        }
+      }
+      return conjunctionStart.size() - 1;
+    }
+
+    void compileTerm(String key, String term) {
+      int at = 0;
+      while (at < term.length() && "<>=!".indexOf(term.charAt(at)) < 0)
+        at++;
+      int end = at + (at + 1 < term.length() && term.charAt(at + 1) == '=' ? 2 : 1);
+      int operator = at < term.length() ? Arrays.asList(OPERATORS).indexOf(term.substring(at, end)) : -1;
+      if (operator < 0)
+        throw error(key, "no comparison in \"" + term + "\"");
+      String value = term.substring(0, at).trim(), constant = term.substring(end).trim();
+      Resolution resolution = Resolution.WINDOW;
+      int atSign = value.indexOf('@');
+      if (atSign >= 0) {
+        String label = value.substring(atSign + 1).trim();
+        resolution = null;
+        for (Resolution r : Resolution.values())
+          if (r.label.equals(label))
+            resolution = r;
+        if (resolution == null)
+          throw error(key, "unknown resolution \"" + label + "\"");
+        value = value.substring(0, atSign).trim();
+      }
+      int dot = value.lastIndexOf('.');
+      if (dot < 0)
+        throw error(key, "\"" + value + "\" isn't channel.statistic");
+      Model.Channel channel;
+      Statistic statistic;
+      try {
+        channel = Model.Channel.valueOf(value.substring(0, dot).toUpperCase());
+        statistic = Statistic.valueOf(value.substring(dot + 1).toUpperCase());
+      } catch (IllegalArgumentException iae) {
+        throw error(key, "unknown channel or statistic in \"" + value + "\"");
+      }
+      if ((statistic == Statistic.LAST || statistic == Statistic.FULL) && resolution != Resolution.WINDOW)
+        throw error(key, statistic.name().toLowerCase() + " is only available for the window");
+      try {
+        constants.add(Double.parseDouble(constant));
+      } catch (NumberFormatException nfe) {
+        throw error(key, "\"" + constant + "\" isn't a number");
+      }
+      terms.add(new int[] { feature(channel, statistic, resolution), operator });
+    }
+
+    static IllegalArgumentException error(String key, String message) {
+      return new IllegalArgumentException("Model rule " + key + ": " + message);
+    }
+  }
+
+  /**
+   * Compiles rules from properties: order, the states other than STARTUP
+   * highest priority first; and for each state, state.enter, state.exit and
+   * state.dwell (seconds).
+   *
+   * @throws IllegalArgumentException if the rules are malformed
+   */
+  public StateRules(Properties properties) {
+    Builder builder = new Builder();
+    int stateCount = Model.State.values().length;
+    enter = new int[stateCount];
+    exit = new int[stateCount];
+    dwell = new long[stateCount];
+    Arrays.fill(enter, -1);
+    Arrays.fill(exit, -1);
+    for (Model.State state : Model.State.values()) {
+      String enterRule = properties.getProperty(state + ".enter");
+      String exitRule = properties.getProperty(state + ".exit");
+      if (enterRule != null)
+        enter[state.ordinal()] = builder.condition(state + ".enter", enterRule);
+      if (exitRule != null)
+        exit[state.ordinal()] = builder.condition(state + ".exit", exitRule);
+      String dwellTime = properties.getProperty(state + ".dwell", "0").trim();
+      try {
+        dwell[state.ordinal()] = (long) (Double.parseDouble(dwellTime) * 1000);
+      } catch (NumberFormatException nfe) {
+        throw Builder.error(state + ".dwell", "\"" + dwellTime + "\" isn't a number");
+      }
+    }
+    String orderRule = properties.getProperty("order");
+    if (orderRule == null)
+      throw Builder.error("order", "missing");
+    List<Integer> states = new ArrayList<Integer>();
+    for (String name : orderRule.split(",")) {
+      Model.State state;
+      try {
+        state = Model.State.valueOf(name.trim());
+      } catch (IllegalArgumentException iae) {
+        throw Builder.error("order", "unknown state \"" + name.trim() + "\"");
+      }
+      if (state == Model.State.STARTUP || states.contains(state.ordinal()))
+        throw Builder.error("order", "STARTUP, or a state listed twice");
+      if (enter[state.ordinal()] < 0)
+        throw Builder.error("order", state + " has no enter rule");
+      states.add(state.ordinal());
+    }
+    if (states.isEmpty())
+      throw Builder.error("order", "no states");
+    order = toArray(states);
+
+    int features = builder.channels.size();
+    featureChannels = builder.channels.toArray(new Model.Channel[features]);
+    featureStatistics = builder.statistics.toArray(new Statistic[features]);
+    featureResolutions = builder.resolutions.toArray(new Resolution[features]);
+    int terms = builder.terms.size();
+    termFeatures = new int[terms];
+    termOperators = new int[terms];
+    termConstants = new double[terms];
+    for (int i = 0; i < terms; i++) {
+      termFeatures[i] = builder.terms.get(i)[0];
+      termOperators[i] = builder.terms.get(i)[1];
+      termConstants[i] = builder.constants.get(i);
+    }
+    builder.termStart.add(terms);
+    termStart = toArray(builder.termStart);
+    builder.conjunctionStart.add(builder.termStart.size() - 1);
+    conjunctionStart = toArray(builder.conjunctionStart);
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    int[] array = new int[list.size()];
+    for (int i = 0; i < array.length; i++)
+      array[i] = list.get(i);
+    return array;
+  }
+
+  /**
+   * Gets the default rules, loading them if need be. If the file named by
+   * org.kmkmc.modelRules can't be loaded, the built-in rules are used.
+   */
+  public static StateRules getDefault() {
+    if (defaultRules == null) {
+      synchronized (StateRules.class) {
+        if (defaultRules == null) {
+          String file = System.getProperty("org.kmkmc.modelRules");
+          if (file != null) {
+            try {
+              defaultRules = load(file);
+            } catch (IOException | IllegalArgumentException e) {
+              logger.log(Level.SEVERE, "Failed to load model rules from " + file + "; using built-in rules", e);
+            }
+          }
+          if (defaultRules == null)
+            defaultRules = loadBuiltIn();
+        }
+      }
+    }
+    return defaultRules;
+  }
+
+  /** Loads rules from a properties file. */
+  public static StateRules load(String file) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+    }
+    return new StateRules(properties);
+  }
+
+  private static StateRules loadBuiltIn() {
+    Properties properties = new Properties();
+    try (InputStream in = StateRules.class.getResourceAsStream("/org/kmkmc/model-rules.properties")) {
+      if (in == null)
+        throw new IOException("Missing resource");
+      properties.load(in);
+    } catch (IOException ioe) {
+      throw new IllegalStateException("Failed to load built-in model rules", ioe);
+    }
+    return new StateRules(properties);
+  }
+
+  /** Gets the number of distinct statistics the rules test. */
+  public int getFeatureCount() { return featureChannels.length; }
+  /** Gets the channel of a statistic the rules test. */
+  public Model.Channel getFeatureChannel(int feature) { return featureChannels[feature]; }
+  /** Gets which statistic of its channel a feature is. */
+  public Statistic getFeatureStatistic(int feature) { return featureStatistics[feature]; }
+  /** Gets the resolution of a statistic the rules test. */
+  public Resolution getFeatureResolution(int feature) { return featureResolutions[feature]; }
+
+  /** Fills in the statistics the rules test, from a model's current statistics. */
+  public void extract(Model model, double[] features) {
+    for (int i = 0; i < featureChannels.length; i++) {
+      Model.Channel channel = featureChannels[i];
+      if (featureResolutions[i] == Resolution.WINDOW) {
+        RollingStatistics s = model.getStatistics(channel);
+        switch (featureStatistics[i]) {
+        case COUNT: features[i] = s.getCount(); break;
+        case MEAN: features[i] = s.getMean(); break;
+        case MIN: features[i] = s.getMin(); break;
+        case MAX: features[i] = s.getMax(); break;
+        case SD: features[i] = s.getStandardDeviation(); break;
+        case FULL: features[i] = s.isFull() ? 1 : 0; break;
+        default: features[i] = s.getLast(); break;
+        }
+      } else {
+        MultiResolutionStatistics.Aggregate a = model.getHistory(channel).get(featureResolutions[i].resolution);
+        switch (featureStatistics[i]) {
+        case COUNT: features[i] = a.getCount(); break;
+        case MEAN: features[i] = a.getMean(); break;
+        case MIN: features[i] = a.getMin(); break;
+        case MAX: features[i] = a.getMax(); break;
+        default: features[i] = a.getStandardDeviation(); break;
+        }
+      }
+    }
+  }
+
+  /** Evaluates a condition against features starting at an offset into an array. */
+  private boolean holds(int condition, double[] features, int offset) {
+    for (int c = conjunctionStart[condition]; c < conjunctionStart[condition + 1]; c++) {
+      boolean all = true;
+      for (int t = termStart[c]; t < termStart[c + 1] && all; t++) {
+        double value = features[offset + termFeatures[t]], constant = termConstants[t];
+        switch (termOperators[t]) {
+        case LT: all = value < constant; break;
+        case LE: all = value <= constant; break;
+        case GT: all = value > constant; break;
+        case GE: all = value >= constant; break;
+        case EQ: all = value == constant; break;
+        default: all = value != constant; break;
+        }
+      }
+      if (all)
+        return true;
+    }
+    return false;
+  }
+
+  private boolean exits(int state, double[] features, int offset) {
+    return exit[state] >= 0 ? holds(exit[state], features, offset) : !holds(enter[state], features, offset);
+  }
+
+  /**
+   * Chooses the next state. The current state continues unless either a
+   * state of higher priority can be entered, or the current state's exit
+   * condition holds, in which case the first state that can be entered, in
+   * order of priority, follows. Either way, the current state lasts at least
+   * its dwell time.
+   *
+   * @param current the ordinal of the current state
+   * @param elapsed the time since the current state was entered, in milliseconds
+   * @param features the statistics the rules test, as filled in by extract()
+   * @param offset the index in features of the first statistic
+   * @return the ordinal of the next state
+   */
+  public int next(int current, long elapsed, double[] features, int offset) {
+    int startup = Model.State.STARTUP.ordinal();
+    if (enter[startup] >= 0 && holds(enter[startup], features, offset))
+      return startup;
+    if (current != startup && elapsed >= 0 && elapsed < dwell[current])
+      return current;
+    boolean leaving = current == startup || exits(current, features, offset);
+    for (int state : order) {
+      if (state == current) {
+        if (!leaving)
+          return current;
+      } else if (holds(enter[state], features, offset)) {
+        return state;
+      }
+    }
+    return leaving ? order[order.length - 1] : current;
+  }
+
+  /**
+   * Unit test. Feeds a speed that hovers around the CRUISING threshold to a
+   * model with the default rules and to one without hysteresis or dwell,
+   * counting state changes. Checks STARTUP ends with a short speed window,
+   * then times evaluation.
+   */
+  public static void main(String[] args) {
+    Properties plain = new Properties();
+    plain.setProperty("order", "STOPPED, CRUISING, DEMANDING, ACTIVE");
+    plain.setProperty("STARTUP.enter", "speed.count < 5 & speed.full == 0");
+    plain.setProperty("STOPPED.enter", "speed.max == 0 & brake.min == 1");
+    plain.setProperty("CRUISING.enter", "speed.sd < 10 & speed.mean > 40");
+    plain.setProperty("DEMANDING.enter", "yaw_rate.mean > 5 & speed.mean > 30");
+    plain.setProperty("ACTIVE.enter", "true");
+    StateRules[] ruleSets = { new StateRules(plain), getDefault() };
+    String[] names = { "no hysteresis", "default rules" };
+    for (int r = 0; r < ruleSets.length; r++) {
+      Model model = new Model(null);
+      model.setRules(ruleSets[r]);
+      Random random = new Random(1);
+      CarInfo info = new CarInfo();
+      Model.State previous = null;
+      int changes = 0;
+      for (int t = 0; t < 600; t++) {
+        info.speed = 40 + 3 * Math.sin(t / 7.0) + random.nextGaussian();
+        model.update(new VehicleSnapshot(t, "", t, new GeographicPoint(0, 0), 0, 0, 0, info));
+        if (model.getState() != previous)
+          changes++;
+        previous = model.getState();
+      }
+      System.out.println(names[r] + ": " + changes + " state changes in 600 samples");
+    }
+
+    // A speed window shorter than 5 samples ends STARTUP once it's full.
+    Model small = new Model(null);
+    small.setWindow(Model.Channel.SPEED, 3);
+    CarInfo info = new CarInfo();
+    for (int t = 0; t < 3; t++)
+      small.update(new VehicleSnapshot(t, "", t, new GeographicPoint(0, 0), 0, 0, 0, info));
+    System.out.println("After 3 samples in a 3-sample speed window: " + small.getState());
+
+    StateRules rules = getDefault();
+    int vehicles = 10000, features = rules.getFeatureCount();
+    double[] table = new double[vehicles * features];
+    int[] states = new int[vehicles];
+    Random random = new Random(2);
+    for (int i = 0; i < table.length; i++)
+      table[i] = random.nextDouble() * 80;
+    long start = System.nanoTime();
+    int rounds = 200, sum = 0;
+    for (int round = 0; round < rounds; round++)
+      for (int v = 0; v < vehicles; v++)
+        sum += states[v] = rules.next(states[v], 10000, table, v * features);
+    System.out.printf("%.1f ns per vehicle per tick (%d)%n", (System.nanoTime() - start) / (double) rounds / vehicles, sum);
+  }
+}
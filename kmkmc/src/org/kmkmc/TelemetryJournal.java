@@ -0,0 +1,224 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only journal of the values decoded by each poll of one vehicle,
+ * recorded in a memory-mapped file so that a drive can later be replayed
+ * without the network (see {@link JournalReplay}).
+ *
+ * The file has a 128-byte header followed by fixed-width 128-byte records.
+ * All values are little-endian. The header holds a magic number, the format
+ * version, the record size, the record count, the userid and the vehicle ID.
+ * Each record holds the wall-clock time of the poll, the decoded createtime,
+ * the CarInfo present mask, a flags word for the two booleans, and the 13
+ * double values in the order they are declared in CarInfo.
+ *
+ * The mapped region grows in chunks as records are appended. The record
+ * count in the header is written after each record, so a reader never sees a
+ * partial record. close() trims the file to its records.
+ */
+public class TelemetryJournal implements Closeable {
+  static final int MAGIC = 0x4a4b4d4b;  // "KMKJ"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 128;
+  static final int RECORD_SIZE = 128;
+  static final int COUNT_OFFSET = 16;
+  static final int USERID_OFFSET = 24;
+  static final int VID_OFFSET = 76;
+  static final int MAX_STRING_BYTES = 50;
+
+  // Offsets of values within a record.
+  static final int WALL_TIME = 0;
+  static final int CREATE_TIME = 8;
+  static final int PRESENT = 16;
+  static final int FLAGS = 20;
+  static final int VALUES = 24;
+
+  static final int BRAKE_FLAG = 1, PARKING_BRAKE_FLAG = 2;
+
+  /** Number of records by which the mapped region grows. */
+  private static final int CHUNK_RECORDS = 8192;
+
+  private final FileChannel channel;
+  private MappedByteBuffer buffer;
+  private long count;
+  private String vid;
+
+  /**
+   * Opens a journal for appending, creating it if need be.
+   *
+   * @param path the journal file
+   * @param userid the vehicle whose polls are recorded. If the file exists,
+   * it must be a journal of the same vehicle.
+   */
+  public TelemetryJournal(Path path, String userid) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    boolean exists = channel.size() >= HEADER_SIZE;
+    try {
+      if (exists) {
+        map(channel.size());
+        checkHeader(buffer, path);
+        if (!userid.equals(getString(buffer, USERID_OFFSET)))
+          throw new IOException(path + " is a journal of " + getString(buffer, USERID_OFFSET) + ", not " + userid);
+        count = buffer.getLong(COUNT_OFFSET);
+        vid = getString(buffer, VID_OFFSET);
+      } else {
+        map(HEADER_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, RECORD_SIZE);
+        buffer.putLong(COUNT_OFFSET, 0);
+        putString(buffer, USERID_OFFSET, userid);
+      }
+    } catch (IOException ioe) {
+      channel.close();
+      throw ioe;
+    }
+  }
+
+  /** Gets the number of records in the journal. */
+  public synchronized long size() {
+    return count;
+  }
+
+  /**
+   * Appends a record of one poll.
+   *
+   * @param wallTime when the poll was made, in milliseconds since the epoch
+   * @param info the values decoded by the poll
+   */
+  public synchronized void append(long wallTime, CarInfo info) throws IOException {
+    long offset = HEADER_SIZE + count * RECORD_SIZE;
+    if (offset + RECORD_SIZE > buffer.capacity())
+      map(offset + (long) CHUNK_RECORDS * RECORD_SIZE);
+    int p = (int) offset;
+    buffer.putLong(p + WALL_TIME, wallTime);
+    buffer.putLong(p + CREATE_TIME, info.createTime);
+    buffer.putInt(p + PRESENT, info.present);
+    buffer.putInt(p + FLAGS, (info.brakeOn ? BRAKE_FLAG : 0) | (info.parkingBrakeOn ? PARKING_BRAKE_FLAG : 0));
+    p += VALUES;
+    buffer.putDouble(p, info.latitude);
+    buffer.putDouble(p + 8, info.longitude);
+    buffer.putDouble(p + 16, info.speed);
+    buffer.putDouble(p + 24, info.lateralAcceleration);
+    buffer.putDouble(p + 32, info.longitudinalAcceleration);
+    buffer.putDouble(p + 40, info.yawRate);
+    buffer.putDouble(p + 48, info.odometer);
+    buffer.putDouble(p + 56, info.acceleratorPedalRatio);
+    buffer.putDouble(p + 64, info.steeringAngle);
+    buffer.putDouble(p + 72, info.engineRpm);
+    buffer.putDouble(p + 80, info.residualFuel);
+    buffer.putDouble(p + 88, info.engineTemperature);
+    buffer.putDouble(p + 96, info.outsideTemperature);
+    if (info.vid != null && !info.vid.isEmpty() && !info.vid.equals(vid)) {
+      vid = info.vid;
+      putString(buffer, VID_OFFSET, vid);
+    }
+    buffer.putLong(COUNT_OFFSET, ++count);
+  }
+
+  /** Writes the journal to disk, trims the file to its records, and closes it. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (!channel.isOpen())
+      return;
+    buffer.force();
+    buffer = null;
+    channel.truncate(HEADER_SIZE + count * RECORD_SIZE);
+    channel.close();
+  }
+
+  private void map(long size) throws IOException {
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("Journal is full");
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  static void checkHeader(ByteBuffer buffer, Path path) throws IOException {
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE)
+      throw new IOException(path + " isn't a version " + VERSION + " telemetry journal");
+  }
+
+  static String getString(ByteBuffer buffer, int offset) {
+    int length = Math.min(buffer.getShort(offset), MAX_STRING_BYTES);
+    byte[] bytes = new byte[Math.max(length, 0)];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = buffer.get(offset + 2 + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void putString(ByteBuffer buffer, int offset, String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(bytes.length, MAX_STRING_BYTES);
+    buffer.putShort(offset, (short) length);
+    for (int i = 0; i < length; i++)
+      buffer.put(offset + 2 + i, bytes[i]);
+  }
+
+  /** Unit test. Records a synthetic drive, then replays it at full speed and at 20x, checking each record. */
+  public static void main(String[] args) throws Exception {
+    Path path = Files.createTempFile("kmkmc", ".journal");
+    Files.delete(path);
+    int n = 20000;
+    long start = System.currentTimeMillis();
+    TelemetryJournal journal = new TelemetryJournal(path, "test");
+    CarInfo info = new CarInfo();
+    info.vid = "12345678901234561";
+    for (int i = 0; i < n; i++) {
+      fill(info, i);
+      journal.append(start + 200L * i, info);
+    }
+    journal.close();
+    System.out.println("Wrote " + n + " records, " + Files.size(path) + " bytes");
+
+    for (double speed : new double[] { Double.POSITIVE_INFINITY, 20 }) {
+      JournalReplay replay = new JournalReplay(path, speed);
+      CarInfo expected = new CarInfo(), actual = new CarInfo();
+      expected.vid = actual.vid = replay.vid();
+      int limit = Double.isInfinite(speed) ? n : 50;
+      long t0 = System.nanoTime();
+      for (int i = 0; i < limit; i++) {
+        fill(expected, i);
+        if (!replay.next(actual) || !actual.sameValues(expected))
+          throw new AssertionError("Record " + i + " differs: " + actual);
+      }
+      long t1 = System.nanoTime();
+      System.out.printf("Replayed %d records at %sx in %.1f ms%n", limit, speed, (t1 - t0) / 1e6);
+      replay.close();
+    }
+    Files.delete(path);
+  }
+
+  private static void fill(CarInfo info, int i) {
+    info.present = (1 << 16) - 1;
+    info.createTime = 1383308638000L + 1000L * (i / 5);
+    info.latitude = 37.4 + i * 1e-5;
+    info.longitude = -122.1 - i * 1e-5;
+    info.speed = i % 100;
+    info.lateralAcceleration = Math.sin(i);
+    info.longitudinalAcceleration = Math.cos(i);
+    info.yawRate = i % 7 - 3;
+    info.odometer = i * 0.01;
+    info.acceleratorPedalRatio = i % 101;
+    info.brakeOn = i % 3 == 0;
+    info.parkingBrakeOn = i < 10;
+    info.steeringAngle = i % 90 - 45;
+    info.engineRpm = 800 + i % 3000;
+    info.residualFuel = 255 - i % 255;
+    info.engineTemperature = 90;
+    info.outsideTemperature = 20;
+  }
+}
@@ -0,0 +1,419 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Supplies the 256-pixel square tiles of the Web Mercator map pyramid, from
+ * which Map assembles its images. Tile (x, y) at zoom level z covers world
+ * pixels [256x, 256x + 256) by [256y, 256y + 256) of the world at that level.
+ *
+ * Tiles are kept in two levels of cache: memory, holding the most recently
+ * used tiles up to a budget of bytes, and a directory on disk, holding every
+ * tile fetched. A tile in neither is fetched from a tile server, if
+ * org.kmkmc.map.tileUrl gives a URL template containing {z}, {x} and {y}, or
+ * else rendered by the Static Maps API, centered on the tile. A tile that
+ * couldn't be fetched isn't tried again for FAILURE_BACKOFF milliseconds, so
+ * an unreachable server doesn't stall every render.
+ *
+ * The cache directory is given by org.kmkmc.map.tileCache (default
+ * ~/.kmkmc/tiles; empty for none), and the memory budget in megabytes by
+ * org.kmkmc.map.tileMemory (default 64).
+ */
+public class TileCache {
+  private static final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  /** Width and height of a tile, in pixels. */
+  public static final int TILE_SIZE = 256;
+  /** Rows added above and below a Static Maps tile, then cropped, to remove the Google logo. */
+  private static final int LOGO_MARGIN = 25;
+  /** Time after a tile fails to be fetched before it's tried again, in milliseconds. */
+  public static final long FAILURE_BACKOFF = 30000;
+  /** Least time between warnings of tiles that couldn't be fetched, in milliseconds. */
+  private static final long FAILURE_WARNING_INTERVAL = 10000;
+
+  private static final TileCache DEFAULT = new TileCache(
+      System.getProperty("org.kmkmc.map.tileUrl"),
+      directory(System.getProperty("org.kmkmc.map.tileCache",
+          new File(new File(System.getProperty("user.home"), ".kmkmc"), "tiles").getPath())),
+      Long.getLong("org.kmkmc.map.tileMemory", 64) << 20);
+
+  private final String urlTemplate;
+  private final File directory;
+  private final long memoryBudget;
+
+  /** Tiles in memory, by key, least recently used first. */
+  private final LinkedHashMap<Long, BufferedImage> memory = new LinkedHashMap<Long, BufferedImage>(64, 0.75f, true);
+  private long memoryBytes;
+  /** Keys of tiles prefetched into memory and not yet got. */
+  private final HashSet<Long> prefetched = new HashSet<Long>();
+  /** Tiles being loaded, by key. */
+  private final ConcurrentHashMap<Long, CompletableFuture<BufferedImage>> loading =
+      new ConcurrentHashMap<Long, CompletableFuture<BufferedImage>>();
+  /** System.nanoTime() at which each tile that failed to be fetched may be tried again, by key. */
+  private final ConcurrentHashMap<Long, Long> failed = new ConcurrentHashMap<Long, Long>();
+
+  private final LongAdder memoryHits = new LongAdder(), diskHits = new LongAdder();
+  private final LongAdder fetches = new LongAdder(), failures = new LongAdder(), skips = new LongAdder();
+  private final LongAdder prefetchDiskHits = new LongAdder(), prefetchFetches = new LongAdder();
+  private long prefetchHits, prefetchWaste;
+  /** System.currentTimeMillis() of the last warning of a failed fetch, and the failures since. */
+  private long lastFailureWarning, failuresSinceWarning;
+
+  /**
+   * Constructs a tile cache.
+   *
+   * @param urlTemplate the URL of a tile, with {z}, {x} and {y} in place of
+   *          its zoom level and column and row; or null to use the Static Maps API
+   * @param directory the directory in which to cache tiles, or null for none
+   * @param memoryBudget the most bytes of tile images to keep in memory
+   */
+  public TileCache(String urlTemplate, File directory, long memoryBudget) {
+    this.urlTemplate = urlTemplate;
+    this.directory = directory;
+    this.memoryBudget = memoryBudget;
+  }
+
+  private static File directory(String path) {
+    return path.isEmpty() ? null : new File(path);
+  }
+
+  /** Gets the tile cache shared by the app's maps. */
+  public static TileCache getDefault() {
+    return DEFAULT;
+  }
+
+  /** Packs a tile's zoom level, column and row into a key. */
+  static long key(int zoom, int x, int y) {
+    return ((long) zoom << 58) | ((long) x << 29) | y;
+  }
+
+  /**
+   * Gets a tile, from memory, disk or the network, as it can. Blocks if the
+   * tile must be fetched. Returns null if the tile doesn't exist or couldn't be
+   * fetched.
+   *
+   * @param zoom the zoom level
+   * @param x the column, from 0 to 2^zoom - 1
+   * @param y the row, from 0 to 2^zoom - 1
+   */
+  public BufferedImage get(int zoom, int x, int y) {
+    return get(zoom, x, y, false);
+  }
+
+  /**
+   * Loads a tile into memory ahead of need, from disk or the network. Blocks
+   * if the tile must be fetched. A tile that's prefetched is counted as a
+   * prefetch hit if it's later got, or as wasted if it's evicted first.
+   *
+   * @return whether the tile is now in memory
+   */
+  public boolean prefetch(int zoom, int x, int y) {
+    return get(zoom, x, y, true) != null;
+  }
+
+  private BufferedImage get(int zoom, int x, int y, boolean prefetch) {
+    int n = 1 << zoom;
+    if (x < 0 || x >= n || y < 0 || y >= n)
+      return null;
+    long key = key(zoom, x, y);
+    BufferedImage tile = getCached(key, prefetch);
+    if (tile != null) {
+      if (!prefetch)
+        memoryHits.increment();
+      return tile;
+    }
+    // If another thread is already loading the tile, wait for it rather than load it twice.
+    CompletableFuture<BufferedImage> loader = new CompletableFuture<BufferedImage>();
+    CompletableFuture<BufferedImage> existing = loading.putIfAbsent(key, loader);
+    if (existing != null) {
+      tile = existing.join();
+      if (!prefetch && tile != null) {
+        memoryHits.increment();
+        getCached(key, false);  // Counts a prefetch hit, if it was a prefetch.
+      }
+      return tile;
+    }
+    try {
+      tile = load(zoom, x, y, key, prefetch);
+    } finally {
+      loading.remove(key);
+      loader.complete(tile);
+    }
+    return tile;
+  }
+
+  /**
+   * Loads a tile from disk or the network, and puts it in memory. Returns null
+   * if it fails, or if it failed to be fetched too recently to try again.
+   */
+  private BufferedImage load(int zoom, int x, int y, long key, boolean prefetch) {
+    BufferedImage tile = null;
+    File file = file(zoom, x, y);
+    if (file != null && file.isFile()) {
+      try {
+        tile = ImageIO.read(file);
+      } catch (IOException ioe) {
+        logger.warning("Can't read cached tile " + file + ": " + ioe.getMessage());
+      }
+      if (tile != null) {
+        (prefetch ? prefetchDiskHits : diskHits).increment();
+        put(key, tile, prefetch);
+        return tile;
+      }
+    }
+    Long retryTime = failed.get(key);
+    if (retryTime != null) {
+      if (System.nanoTime() - retryTime < 0) {
+        skips.increment();
+        return null;
+      }
+      failed.remove(key);
+    }
+    (prefetch ? prefetchFetches : fetches).increment();
+    try {
+      tile = fetch(zoom, x, y);
+    } catch (Exception e) {
+      failures.increment();
+      failed.put(key, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FAILURE_BACKOFF));
+      warnFailure(zoom + "/" + x + "/" + y, e);
+      return null;
+    }
+    put(key, tile, prefetch);
+    if (file != null)
+      store(tile, file);
+    return tile;
+  }
+
+  /**
+   * Warns that a tile couldn't be fetched, at most once every
+   * FAILURE_WARNING_INTERVAL, counting the failures not warned of. The stack
+   * trace is logged at FINE.
+   */
+  private void warnFailure(String tile, Exception e) {
+    logger.log(Level.FINE, "Error fetching map tile " + tile, e);
+    String warning = null;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      failuresSinceWarning++;
+      if (now - lastFailureWarning >= FAILURE_WARNING_INTERVAL) {
+        warning = "Can't fetch map tile " + tile + ": " + e +
+            (failuresSinceWarning > 1 ? " (" + (failuresSinceWarning - 1) + " other tiles failed)" : "");
+        lastFailureWarning = now;
+        failuresSinceWarning = 0;
+      }
+    }
+    if (warning != null)
+      logger.warning(warning);
+  }
+
+  /** Gets a tile if it's in memory, without fetching it. */
+  public BufferedImage getIfCached(int zoom, int x, int y) {
+    return getCached(key(zoom, x, y), true);
+  }
+
+  /** Tests whether a tile is in memory or on disk, so getting it needn't touch the network. */
+  public boolean contains(int zoom, int x, int y) {
+    if (getIfCached(zoom, x, y) != null)
+      return true;
+    File file = file(zoom, x, y);
+    return file != null && file.isFile();
+  }
+
+  /**
+   * Gets a tile from memory, or null.
+   *
+   * @param quietly whether to leave the tile's prefetched mark, since it's not being used
+   */
+  private synchronized BufferedImage getCached(long key, boolean quietly) {
+    BufferedImage tile = memory.get(key);
+    if (tile != null && !quietly && prefetched.remove(key))
+      prefetchHits++;
+    return tile;
+  }
+
+  private synchronized void put(long key, BufferedImage tile, boolean prefetch) {
+    BufferedImage previous = memory.put(key, tile);
+    if (previous != null)
+      memoryBytes -= bytes(previous);
+    memoryBytes += bytes(tile);
+    if (prefetch)
+      prefetched.add(key);
+    for (Iterator<java.util.Map.Entry<Long, BufferedImage>> i = memory.entrySet().iterator();
+        memoryBytes > memoryBudget && i.hasNext();) {
+      java.util.Map.Entry<Long, BufferedImage> eldest = i.next();
+      if (eldest.getValue() == tile)
+        break;
+      memoryBytes -= bytes(eldest.getValue());
+      if (prefetched.remove(eldest.getKey()))
+        prefetchWaste++;
+      i.remove();
+    }
+  }
+
+  private static long bytes(BufferedImage image) {
+    return (long) image.getWidth() * image.getHeight() * 4;
+  }
+
+  private File file(int zoom, int x, int y) {
+    if (directory == null)
+      return null;
+    return new File(directory, zoom + File.separator + x + File.separator + y + ".png");
+  }
+
+  /** Writes a tile to the disk cache, through a temporary file so no reader sees it half written. */
+  private void store(BufferedImage tile, File file) {
+    try {
+      File parent = file.getParentFile();
+      parent.mkdirs();
+      File temporary = File.createTempFile("tile", ".tmp", parent);
+      ImageIO.write(tile, "png", temporary);
+      Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ioe) {
+      logger.warning("Can't cache tile " + file + ": " + ioe.getMessage());
+    }
+  }
+
+  /** Fetches a tile from the network. */
+  private BufferedImage fetch(int zoom, int x, int y) throws IOException {
+    if (urlTemplate != null) {
+      String url = urlTemplate.replace("{z}", Integer.toString(zoom))
+          .replace("{x}", Integer.toString(x)).replace("{y}", Integer.toString(y));
+      return copy(read(HttpTransport.getDefault().get(URI.create(url))));
+    }
+    // Center a Static Maps image on the tile, with margins to crop off the logo.
+    double longitude = MercatorProjection.longitude((x + 0.5) * TILE_SIZE, zoom);
+    double latitude = MercatorProjection.latitude((y + 0.5) * TILE_SIZE, zoom);
+    String request = String.format(
+        "/maps/api/staticmap?key=%s&sensor=true&center=%.7f,%.7f&zoom=%d&size=%dx%d&visual_refresh=true",
+        Map.API_KEY, latitude, longitude, zoom, TILE_SIZE, TILE_SIZE + 2 * LOGO_MARGIN);
+    BufferedImage image = read(HttpTransport.getDefault().get(HttpTransport.uri("https", Map.HOST, request)));
+    return copy(image.getSubimage(0, LOGO_MARGIN, TILE_SIZE, TILE_SIZE));
+  }
+
+  private static BufferedImage read(ByteBuffer body) throws IOException {
+    BufferedImage image = ImageIO.read(HttpTransport.asStream(body));
+    if (image == null)
+      throw new IOException("Response isn't an image");
+    return image;
+  }
+
+  /** Copies an image into one of its own, in a type that's quick to draw. */
+  private static BufferedImage copy(BufferedImage image) {
+    BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+    copy.getGraphics().drawImage(image, 0, 0, null);
+    return copy;
+  }
+
+  /** Gets the number of tiles found in memory. */
+  public long getMemoryHits() { return memoryHits.sum(); }
+  /** Gets the number of tiles found on disk. */
+  public long getDiskHits() { return diskHits.sum(); }
+  /** Gets the number of tiles fetched from the network, including failures. */
+  public long getFetches() { return fetches.sum(); }
+  /** Gets the number of tiles that couldn't be fetched. */
+  public long getFailures() { return failures.sum(); }
+  /** Gets the number of tiles not fetched because they failed too recently. */
+  public long getSkips() { return skips.sum(); }
+  /** Gets the fraction of tiles got without touching the network. */
+  public double getHitRate() {
+    long hits = getMemoryHits() + getDiskHits(), total = hits + getFetches();
+    return total == 0 ? 0 : hits / (double) total;
+  }
+  /** Gets the number of tiles prefetched from disk. */
+  public long getPrefetchDiskHits() { return prefetchDiskHits.sum(); }
+  /** Gets the number of tiles prefetched from the network. */
+  public long getPrefetchFetches() { return prefetchFetches.sum(); }
+  /** Gets the number of prefetched tiles that were later got. */
+  public synchronized long getPrefetchHits() { return prefetchHits; }
+  /** Gets the number of prefetched tiles evicted from memory before they were got. */
+  public synchronized long getPrefetchWaste() { return prefetchWaste; }
+  /** Gets the bytes of tile images in memory. */
+  public synchronized long getMemoryBytes() { return memoryBytes; }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "TileCache[%d memory hits, %d disk hits, %d fetches, %d failures, %d skips, %.0f%% hit rate, %d KB in memory]",
+        getMemoryHits(), getDiskHits(), getFetches(), getFailures(), getSkips(), 100 * getHitRate(),
+        getMemoryBytes() >> 10);
+  }
+
+  /**
+   * Unit test. Serves generated tiles locally, then renders a map as a
+   * vehicle drives across it, from an empty cache, from memory, and from disk.
+   * Then renders maps with the server stopped, which should try each tile once.
+   */
+  public static void main(String[] args) throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      String[] zxy = exchange.getRequestURI().getPath().replace(".png", "").substring(1).split("/");
+      BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+      Graphics g = tile.getGraphics();
+      g.setColor(new Color(Integer.parseInt(zxy[1]) * 40 % 256, Integer.parseInt(zxy[2]) * 40 % 256, 200));
+      g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+      g.setColor(Color.WHITE);
+      g.drawString(zxy[0] + "/" + zxy[1] + "/" + zxy[2], 100, 128);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ImageIO.write(tile, "png", out);
+      try {
+        Thread.sleep(50);  // Network latency
+      } catch (InterruptedException ie) {
+      }
+      exchange.sendResponseHeaders(200, out.size());
+      exchange.getResponseBody().write(out.toByteArray());
+      exchange.close();
+    });
+    server.start();
+    String template = "http://localhost:" + server.getAddress().getPort() + "/{z}/{x}/{y}.png";
+    File directory = Files.createTempDirectory("tiles").toFile();
+
+    TileCache shared = new TileCache(template, directory, 64 << 20);
+    String[] passes = { "Empty cache", "Memory", "Disk" };
+    TileCache[] caches = { shared, shared, new TileCache(template, directory, 64 << 20) };
+    for (int pass = 0; pass < passes.length; pass++) {
+      TileCache cache = caches[pass];
+      long start = System.nanoTime();
+      int renders = 50;
+      for (int i = 0; i < renders; i++) {
+        GeographicPoint location = new GeographicPoint(37.40, -122.15 + i * 0.001);
+        new Map(location, 15, 640, 640, location, cache).render();
+      }
+      System.out.printf("%s: %.1f ms per map; %s%n", passes[pass], (System.nanoTime() - start) / 1e6 / renders, cache);
+    }
+    server.stop(0);
+
+    TileCache unreachable = new TileCache(template, null, 64 << 20);
+    long start = System.nanoTime();
+    int renders = 20;
+    for (int i = 0; i < renders; i++) {
+      GeographicPoint location = new GeographicPoint(37.40, -122.15);
+      new Map(location, 15, 640, 640, location, unreachable).render();
+    }
+    System.out.printf("Server stopped: %.1f ms per map; %s%n", (System.nanoTime() - start) / 1e6 / renders, unreachable);
+  }
+}
@@ -0,0 +1,221 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+import java.text.MessageFormat;
+import java.util.Arrays;
+
+/**
+ * Accumulates statistics of a trip from a stream of vehicle snapshots:
+ * distance, moving and idle time, fuel used, time and distance in each
+ * driving state, and maximum and average speed. Each update takes constant
+ * time and no history is kept, so there may be one accumulator per trip or
+ * per vehicle, and a Summary of each may be got at any moment, from any
+ * thread.
+ *
+ * An interval between snapshots counts only if it's short, so a gap in the
+ * data, or a jump forward or back in a replay, just restarts accumulation.
+ * Distances are in the odometer's units, speeds in those of the speedometer.
+ */
+public class TripAccumulator {
+  /** Reading of the fuel gauge when the tank is full. */
+  public static final double FUEL_GAUGE_FULL = 255;
+  /** Capacity of the fuel tank, in liters. */
+  public static final double FUEL_TANK_LITERS = 45;
+  public static final double LITERS_PER_GALLON = 3.785;
+
+  /** Longest interval between snapshots that counts toward the trip, in seconds. */
+  private static final int MAX_INTERVAL = 10;
+  /** Rise in the fuel gauge reading taken to mean a refuel rather than noise. */
+  private static final double REFUEL_THRESHOLD = FUEL_GAUGE_FULL / 20;
+
+  private static final int STATE_COUNT = Model.State.values().length;
+
+  /** The statistics of a trip at some moment. */
+  public static final class Summary {
+    private final int startTime, endTime;
+    private final double distance, fuelUsed, maxSpeed;
+    private final int movingTime, idleTime;
+    private final int[] stateTime;
+    private final double[] stateDistance;
+
+    private Summary(TripAccumulator trip) {
+      startTime = trip.startTime;
+      endTime = trip.lastTime;
+      distance = trip.distance;
+      fuelUsed = trip.fuelUsed + Math.max(0, trip.segmentStartFuel - trip.lastFuel);
+      maxSpeed = trip.maxSpeed;
+      movingTime = trip.movingTime;
+      idleTime = trip.idleTime;
+      stateTime = trip.stateTime.clone();
+      stateDistance = trip.stateDistance.clone();
+    }
+
+    /** Gets the vehicle time of the first snapshot, in seconds. */
+    public int getStartTime() { return startTime; }
+    /** Gets the vehicle time of the latest snapshot, in seconds. */
+    public int getEndTime() { return endTime; }
+    /** Gets the distance traveled. */
+    public double getDistance() { return distance; }
+    /** Gets the time spent moving, in seconds. */
+    public int getMovingTime() { return movingTime; }
+    /** Gets the time spent stopped, in seconds. */
+    public int getIdleTime() { return idleTime; }
+    /** Gets the total time counted, in seconds. */
+    public int getTime() { return movingTime + idleTime; }
+    /** Gets the fuel used, as a fraction of a full tank. */
+    public double getFuelUsed() { return fuelUsed / FUEL_GAUGE_FULL; }
+    /** Gets the fuel used, in gallons. */
+    public double getFuelUsedGallons() { return getFuelUsed() * FUEL_TANK_LITERS / LITERS_PER_GALLON; }
+    public double getMaxSpeed() { return maxSpeed; }
+    /** Gets the average speed while moving, in odometer units per hour. */
+    public double getAverageSpeed() { return movingTime == 0 ? 0 : distance / (movingTime / 3600.0); }
+    /** Gets the time spent in a driving state, in seconds. */
+    public int getTime(Model.State state) { return stateTime[state.ordinal()]; }
+    /** Gets the distance traveled in a driving state. */
+    public double getDistance(Model.State state) { return stateDistance[state.ordinal()]; }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(MessageFormat.format(
+          "{0,number,#.##} distance, {1} s moving, {2} s idle, {3,number,#.##} gallons, " +
+          "{4,number,#.#} max speed, {5,number,#.#} average speed",
+          distance, movingTime, idleTime, getFuelUsedGallons(), maxSpeed, getAverageSpeed()));
+      for (Model.State state : Model.State.values())
+        if (stateTime[state.ordinal()] > 0)
+          sb.append(MessageFormat.format("; {0} {1} s, {2,number,#.##}",
+              state, stateTime[state.ordinal()], stateDistance[state.ordinal()]));
+      return sb.toString();
+    }
+  }
+
+  private boolean started;
+  private int startTime, lastTime;
+  private double lastOdometer, lastSpeed, lastFuel;
+  private Model.State lastState;
+  private double distance, maxSpeed;
+  private int movingTime, idleTime;
+  /** Fuel used in segments that ended with a refuel, in gauge units. */
+  private double fuelUsed;
+  /** Fuel gauge reading at the start of the current segment. */
+  private double segmentStartFuel;
+  private final int[] stateTime = new int[STATE_COUNT];
+  private final double[] stateDistance = new double[STATE_COUNT];
+
+  /**
+   * Adds a snapshot to the trip. The interval since the previous snapshot is
+   * credited to the driving state then in effect.
+   */
+  public synchronized void update(VehicleSnapshot snapshot, Model.State state) {
+    int time = snapshot.getTime();
+    double odometer = snapshot.getOdometer(), speed = snapshot.getSpeed(), fuel = snapshot.getResidualFuel();
+    if (!started) {
+      started = true;
+      startTime = time;
+      segmentStartFuel = fuel;
+    } else {
+      int interval = time - lastTime;
+      if (interval <= 0) {
+        if (interval < 0) {
+          // Jumped back: count the fuel used so far, and restart from here.
+          fuelUsed += Math.max(0, segmentStartFuel - lastFuel);
+          segmentStartFuel = fuel;
+        } else {
+          return;  // Same snapshot again, or no new data.
+        }
+      } else if (interval <= MAX_INTERVAL) {
+        double traveled = Math.max(0, odometer - lastOdometer);
+        distance += traveled;
+        if (lastSpeed > 0)
+          movingTime += interval;
+        else
+          idleTime += interval;
+        stateTime[lastState.ordinal()] += interval;
+        stateDistance[lastState.ordinal()] += traveled;
+        if (fuel > lastFuel + REFUEL_THRESHOLD) {
+          fuelUsed += Math.max(0, segmentStartFuel - lastFuel);
+          segmentStartFuel = fuel;
+        }
+      } else {
+        fuelUsed += Math.max(0, segmentStartFuel - lastFuel);
+        segmentStartFuel = fuel;
+      }
+    }
+    maxSpeed = Math.max(maxSpeed, speed);
+    lastTime = time;
+    lastOdometer = odometer;
+    lastSpeed = speed;
+    lastFuel = fuel;
+    lastState = state;
+  }
+
+  /** Clears the statistics, to start a new trip. */
+  public synchronized void reset() {
+    started = false;
+    distance = maxSpeed = fuelUsed = segmentStartFuel = lastFuel = 0;
+    movingTime = idleTime = 0;
+    Arrays.fill(stateTime, 0);
+    Arrays.fill(stateDistance, 0);
+  }
+
+  /** Gets the trip's statistics so far. */
+  public synchronized Summary getSummary() {
+    return new Summary(this);
+  }
+
+  @Override
+  public String toString() {
+    return getSummary().toString();
+  }
+
+  /**
+   * Unit test. Accumulates a trip around the synthetic course, and compares
+   * the totals with the differences between its first and last snapshots.
+   * Then checks that fuel is counted the same across a gap and a seek back.
+   */
+  public static void main(String[] args) throws Exception {
+    DataSenderServer.SyntheticScenario scenario = new DataSenderServer.SyntheticScenario(1);
+    TripAccumulator trip = new TripAccumulator();
+    Model.State[] states = Model.State.values();
+    CarInfo first = null, info = null;
+    int n = 0;
+    long start = System.nanoTime();
+    for (int t = 0; t < 1799; t++) {
+      info = new CarInfo();
+      scenario.sample(t, info);
+      if (first == null)
+        first = info;
+      VehicleSnapshot snapshot = new VehicleSnapshot(t, "", t, null, 0, 0, 0, info);
+      trip.update(snapshot, info.speed == 0 ? Model.State.STOPPED : states[2 + (t / 60) % (states.length - 2)]);
+      n++;
+    }
+    double nanos = (System.nanoTime() - start) / (double) n;
+    Summary summary = trip.getSummary();
+    System.out.println(summary);
+    System.out.printf("Odometer difference %.2f, fuel gauge difference %.1f gallons%n",
+        info.odometer - first.odometer,
+        (first.residualFuel - info.residualFuel) / FUEL_GAUGE_FULL * FUEL_TANK_LITERS / LITERS_PER_GALLON);
+    System.out.printf("%d samples and updates, %.0f ns each%n", n, nanos);
+
+    // Burn 6 gauge units, then 6 more after a jump forward or back.
+    TripAccumulator gap = new TripAccumulator(), seek = new TripAccumulator();
+    for (int i = 0; i <= 6; i++) {
+      gap.update(fuelSnapshot(100 + i, i, 200 - i), Model.State.CRUISING);
+      seek.update(fuelSnapshot(100 + i, i, 200 - i), Model.State.CRUISING);
+    }
+    for (int i = 0; i <= 6; i++) {
+      gap.update(fuelSnapshot(200 + i, 6 + i, 200 - i), Model.State.CRUISING);
+      seek.update(fuelSnapshot(50 + i, 6 + i, 200 - i), Model.State.CRUISING);
+    }
+    System.out.printf("Fuel across a gap %.1f, across a seek back %.1f gauge units (expected 12)%n",
+        gap.getSummary().getFuelUsed() * FUEL_GAUGE_FULL, seek.getSummary().getFuelUsed() * FUEL_GAUGE_FULL);
+  }
+
+  private static VehicleSnapshot fuelSnapshot(int time, double odometer, double fuel) {
+    CarInfo info = new CarInfo();
+    info.speed = 30;
+    info.odometer = odometer;
+    info.residualFuel = fuel;
+    return new VehicleSnapshot(time, "", time, null, 0, 0, 0, info);
+  }
+}
@@ -2,37 +2,33 @@
 
 package org.kmkmc;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Scanner;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-
 /**
  * Maintains a local copy of the state of a vehicle, which it updates by polling
  * the web service. The vehicle tracked is identified by a userID supplied to
  * the constructor.
+ * 
+ * Every poll can be recorded in a {@link TelemetryJournal}, and a journal can
+ * be replayed in place of the web service. Setting -Dorg.kmkmc.journal=file
+ * records, and -Dorg.kmkmc.replay=file replays at the speed given by
+ * -Dorg.kmkmc.replaySpeed (1x, Nx or max; default 1x). Any "%s" in the
+ * file name is replaced by the userid.
  */
 public class VehicleDataClient {
-  private static final String HOST = "api-jp-t-itc.com";
+  /**
+   * The web service's scheme and host (and optionally port), such as
+   * "http://localhost:8080" for a {@link DataSenderServer}. This defaults to
+   * the value of the kmkmc.carServer system property.
+   */
+  static final URI DEFAULT_SERVER = URI.create(System.getProperty("kmkmc.carServer", "https://api-jp-t-itc.com"));
   private static final String API_KEY = System.getProperty("kmkmc.carApiKey", "<missing kmkmc.carApiKey value");
   public static final String USER_ID_411 = "usSF-411";
   public static final String USER_ID_413 = "usSF-413";
@@ -46,21 +42,22 @@ public class VehicleDataClient {
   private long syncedTimestamp;
   private int syncedSimulationTime;
   
-  // Most recent values the web service has reported for our vehicle.
+  /**
+   * The most recent values the web service has reported for our vehicle.
+   * Only poll() writes this, replacing it whole, so readers need no locking.
+   */
+  private volatile VehicleSnapshot snapshot = VehicleSnapshot.STARTUP;
   
-  private String vid;
+  // State carried from poll to poll, guarded by this object's lock.
+  private long sequence;
+  private String status = "Startup";
   private int time;  // offset into scenario, in seconds
   private GeographicPoint location = new GeographicPoint(0, 0);
-  private double speed, lateralAcceleration, longitudinalAcceleration, yawRate, odometer;
-  private double acceleratorPedalRatio;  // [0,100]
-  private boolean brakeOn, parkingBrakeOn;
-  private double steeringAngle, engineRpm, residualFuel, engineTemperature, outsideTemperature;
   
-  // For filtering bad values out of lat & lon
-  private GeographicPoint previousLocation = new GeographicPoint(0, 0);
-  private double deltaLatitude, deltaLongitude;
-  
-  private String status = "Startup";
+  /** Fuses reported locations, speeds and yaw rates, filtering out bad locations. */
+  private PositionEstimator positionEstimator = new PositionEstimator();
+  /** Wall time of the poll from which the location was last estimated. */
+  private long estimateTime;
 
   /** Names of parameters for which we request data from the server. */
   private static final String[] parameter_names = { "MapMatching", 
@@ -71,59 +68,112 @@ public class VehicleDataClient {
   /** URI used to request the current values of parameters from the server. */  
   private String dataRequest;
   
-  private DocumentBuilder builder;
-  private XPath xpath;
+  /** The web service polled. */
+  private URI server = DEFAULT_SERVER;
+  
+  private CarInfoParser parser = new CarInfoParser();
+  /** Values decoded from the most recent response, reused from poll to poll. */
+  private CarInfo carInfo = new CarInfo();
+  /** Whether to decode responses with the original DOM parser instead of the streaming one. */
+  private boolean useDomParser = Boolean.getBoolean("org.kmkmc.useDomParser");
+  
+  /** Records every poll, if not null. */
+  private TelemetryJournal journal;
+  /** Supplies polls in place of the web service, if not null. */
+  private JournalReplay replay;
   
   /** Constructs a VehicleDataClient for monitoring the state of a specified vehicle. */
   public VehicleDataClient(String userID) {
     this.userid = userID;
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    factory.setValidating(false);
+    dataRequest = generateDataRequest(userid);
     try {
-      builder = factory.newDocumentBuilder();
-    } catch (ParserConfigurationException pce) {
-      logger.severe(pce.toString());
+      String journalFile = System.getProperty("org.kmkmc.journal");
+      if (journalFile != null) {
+        final TelemetryJournal journal = new TelemetryJournal(Paths.get(String.format(journalFile, userid)), userid);
+        setJournal(journal);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            journal.close();
+          } catch (IOException ioe) {
+            logger.log(Level.WARNING, "Failed to close journal", ioe);
+          }
+        }));
+      }
+      String replayFile = System.getProperty("org.kmkmc.replay");
+      if (replayFile != null)
+        setReplay(new JournalReplay(Paths.get(String.format(replayFile, userid)),
+            JournalReplay.parseSpeed(System.getProperty("org.kmkmc.replaySpeed", "1x"))));
+    } catch (IOException ioe) {
+      logger.log(Level.SEVERE, "Failed to open journal", ioe);
     }
-    xpath = XPathFactory.newInstance().newXPath();
-    
-    StringBuilder sb = new StringBuilder(generatePreamble("GetVehicleInfo"));
-    sb.append("&now");
-    for (String p : parameter_names)
-      sb.append("&").append(p).append("=1");
-    dataRequest = sb.toString();
   }
   
   /** Gets the ID of the vehicle we're monitoring. */
   public String userid() { return userid; }
   
+  /**
+   * Gets the vehicle state recorded by the most recent poll. This never blocks.
+   * Callers that need several values should read them all from one snapshot,
+   * as the individual access methods below may each see a different poll.
+   */
+  public VehicleSnapshot latest() { return snapshot; }
+  
   // Access methods for current state
 
-  public String vid() { return vid; }
-  public int getTime() { return time; }
-  public GeographicPoint getLocation() { return location; }
+  public String vid() { return snapshot.vid(); }
+  public int getTime() { return snapshot.getTime(); }
+  public GeographicPoint getLocation() { return snapshot.getLocation(); }
   
-  public double getSpeed() { return speed; }
-  public double getLateralAcceledation() { return lateralAcceleration; }
-  public double getLongitudinalAcceleration() { return longitudinalAcceleration; }
-  public double getYawRate() { return yawRate; }
-  public double getOdometer() { return odometer; }
+  public double getSpeed() { return snapshot.getSpeed(); }
+  public double getLateralAcceledation() { return snapshot.getLateralAcceleration(); }
+  public double getLongitudinalAcceleration() { return snapshot.getLongitudinalAcceleration(); }
+  public double getYawRate() { return snapshot.getYawRate(); }
+  public double getOdometer() { return snapshot.getOdometer(); }
   
-  public double getAcceleratorPedalRatio() { return acceleratorPedalRatio; }
-  public boolean isBrakeOn() { return brakeOn; }
-  public boolean isParkingBrakeOn() { return parkingBrakeOn; }
-  public double getSteeringAngle() { return steeringAngle; }
-  public double getEngineRpm() { return engineRpm; }
-  public double getResidualFuel() { return residualFuel; }
-  public double getEngineTemperature() { return engineTemperature; }
-  public double getOutsideTemperature() { return outsideTemperature; }
+  public double getAcceleratorPedalRatio() { return snapshot.getAcceleratorPedalRatio(); }
+  public boolean isBrakeOn() { return snapshot.isBrakeOn(); }
+  public boolean isParkingBrakeOn() { return snapshot.isParkingBrakeOn(); }
+  public double getSteeringAngle() { return snapshot.getSteeringAngle(); }
+  public double getEngineRpm() { return snapshot.getEngineRpm(); }
+  public double getResidualFuel() { return snapshot.getResidualFuel(); }
+  public double getEngineTemperature() { return snapshot.getEngineTemperature(); }
+  public double getOutsideTemperature() { return snapshot.getOutsideTemperature(); }
   
   /** Gets a string summarizing the most recent attempt to poll the car data server. */
-  public String getStatus() { return status; }
+  public String getStatus() { return snapshot.getStatus(); }
+  
+  /**
+   * Sets whether responses are decoded with the original DOM parser rather
+   * than the streaming one. This defaults to the value of the
+   * org.kmkmc.useDomParser system property.
+   */
+  public synchronized void setUseDomParser(boolean useDomParser) {
+    this.useDomParser = useDomParser;
+  }
+  
+  /** Sets the scheme and host (and optionally port) of the web service polled. */
+  public synchronized void setServer(URI server) {
+    this.server = server;
+  }
+  
+  /** Sets the journal in which every poll is recorded, or null for none. */
+  public synchronized void setJournal(TelemetryJournal journal) {
+    this.journal = journal;
+  }
+  
+  /** Sets the journal that is replayed in place of polling the web service, or null for none. */
+  public synchronized void setReplay(JournalReplay replay) {
+    this.replay = replay;
+  }
   
   /** Sends a "SearchDataReset" to the web service. */
   public synchronized void reset() {
-    callServer(generatePreamble("SearchDataReset"));
+    if (replay != null)
+      replay.seek(0);
+    else
+      callServer(generatePreamble("SearchDataReset"));
     syncedSimulationTime = 0;
+    positionEstimator.reset();
     poll();
   }
   
@@ -134,95 +184,121 @@ public class VehicleDataClient {
    */
   public synchronized void seek(int time) {
     syncedSimulationTime = time;
-    callServer(generatePreamble("SearchDataSeek") + "&seekseconds=" + time);
+    positionEstimator.reset();
+    if (replay != null)
+      replay.seek(time);
+    else
+      callServer(generatePreamble("SearchDataSeek") + "&seekseconds=" + time);
     poll();
   }
 
-  /** Polls the web service for the latest values of vehicle parameters, and records those. */
-  public synchronized void poll() {
-    String response = Boolean.getBoolean("org.kmkmc.useSampleData") ? SAMPLE_DATA : callServer(dataRequest);
-    // System.out.println(response);
-    InputSource is = new InputSource();
-    is.setCharacterStream(new StringReader(response));
+  /**
+   * Polls the web service for the latest values of vehicle parameters, and records those.
+   *
+   * @return whether values were received
+   */
+  public synchronized boolean poll() {
+    if (replay != null)
+      return pollReplay();
+    ByteBuffer response = Boolean.getBoolean("org.kmkmc.useSampleData") ? ByteBuffer.wrap(SAMPLE_DATA) : callServer(dataRequest);
     try {
-      Document doc = builder.parse(is);
-      NodeList nodes = (NodeList) xpath.evaluate("/response/carinfo", doc, XPathConstants.NODESET);
-      for (int i = 0; i < nodes.getLength(); i++) {
-        Node node = nodes.item(i);
-        String actualUserid = xpath.evaluate("car/userid", node);
-        if (actualUserid.equals(userid)) {
-          status = "Vehicle data received";
-          parse(node);
-          return;
-        }
-        logger.fine("Spurious reponse with userid (" + actualUserid + ") vs request (" + userid + "): " + response);
+      InputStream in = HttpTransport.asStream(response);
+      boolean found = useDomParser ? parser.parseDom(in, userid, carInfo) : parser.parse(in, userid, carInfo);
+      if (found) {
+        accept(carInfo);
+        return true;
       }
-      status = "No vehicle data";
+      if (logger.isLoggable(Level.FINE))
+        logger.fine("No record for userid (" + userid + "): " + StandardCharsets.UTF_8.decode(response.duplicate()));
+      reject("No vehicle data");
     } catch (Exception e) {
-      logger.log(Level.SEVERE, "Failed to build or query DOM document", e);
+      logger.log(Level.SEVERE, "Failed to parse vehicle data", e);
+      reject(status);
     }
+    return false;
   }
   
-  private void parse(Node node) throws Exception {
-    vid = xpath.evaluate("car/vid", node);
-    String timestamp = xpath.evaluate("data/createtime", node);
-    DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'hh:mm:ss");
-    Date date = (Date) formatter.parse(timestamp);
-    if (syncedTimestamp == 0)
-      syncedTimestamp = date.getTime();
-    time = (int) (date.getTime() - syncedTimestamp) / 1000 + syncedSimulationTime;
-    double latitude = extractDouble(node, "MapMatching/lat", location.getLatitude());
-    double longitude = extractDouble(node, "MapMatching/lon", location.getLongitude());
-    double estimatedLatitude = latitude, estimatedLongitude = longitude;
-    double deltaLatitude = latitude - previousLocation.getLatitude(), deltaLongitude = longitude - previousLocation.getLongitude();
-    // System.out.print("deltaLat=" + deltaLatitude);
-    String s = "";
-    if (Math.abs(deltaLatitude) > 0.001) {
-      estimatedLatitude = location.getLatitude() + this.deltaLatitude;
-      s += "lat: extrapolated";
-      // System.out.println("Extrapolating latitude");
-      // System.out.println(" EXTRAPOLATED");
-      status = "Extrapolating latitude";
-    } else {
-      s += "lat: good";
-      this.deltaLatitude = deltaLatitude;
-      // System.out.println();
+  /** Takes the next poll from the journal being replayed, waiting until it is due. */
+  private boolean pollReplay() {
+    try {
+      if (replay.next(carInfo)) {
+        accept(carInfo);
+        return true;
+      }
+      reject("End of replay");
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      reject("Replay interrupted");
     }
-    // System.out.print("deltaLon=" + deltaLongitude);
-    if (Math.abs(deltaLongitude) > 0.001) {
-      estimatedLongitude = location.getLongitude() + this.deltaLongitude;
-      s += ", lon: extrapolated";
-      // System.out.println("Extrapolating longitude");
-      // System.out.println(" EXTRAPOLATED");
-      status = "Extrapolating longitude";
-    } else {
-      s += ", lon: good";
-      this.deltaLongitude = deltaLongitude;
-      // System.out.println();
+    return false;
+  }
+  
+  /**
+   * Records values decoded from a response as the result of a poll. poll()
+   * calls this, as does a {@link FleetPoller} that polls on our behalf.
+   */
+  synchronized void accept(CarInfo info) {
+    if (journal != null) {
+      try {
+        journal.append(System.currentTimeMillis(), info);
+      } catch (IOException ioe) {
+        logger.log(Level.SEVERE, "Failed to record poll; journal closed", ioe);
+        journal = null;
+      }
+    }
+    status = "Vehicle data received";
+    update(info);
+    snapshot = new VehicleSnapshot(++sequence, status, time, location, positionEstimator.getHeading(),
+        positionEstimator.getSpeed(), estimateTime, info);
+  }
+  
+  /** Records a poll that yielded no values, with a status explaining why. */
+  synchronized void reject(String status) {
+    this.status = status;
+    snapshot = snapshot.withStatus(++sequence, status);
+  }
+  
+  /** Records the values decoded from a response. */
+  private void update(CarInfo info) {
+    if (info.has(CarInfo.CREATETIME)) {
+      if (syncedTimestamp == 0)
+        syncedTimestamp = info.createTime;
+      time = (int) (info.createTime - syncedTimestamp) / 1000 + syncedSimulationTime;
+    }
+    long now = System.currentTimeMillis();
+    if (positionEstimator.update(now, info)) {
+      location = positionEstimator.getLocation();
+      estimateTime = now;
+      if (positionEstimator.wasRejected())
+        status = "Extrapolating location";
     }
-    // System.out.println(s);
-    if (Math.abs(longitude - previousLocation.getLongitude()) > 0.001)
-      estimatedLongitude = location.getLongitude() + deltaLongitude;
-    else deltaLongitude = longitude - location.getLongitude();
-    location = new GeographicPoint(estimatedLatitude, estimatedLongitude);
-    previousLocation = new GeographicPoint(latitude, longitude);
-    speed = extractDouble(node, "Spd", speed);
-    lateralAcceleration = extractDouble(node, "ALatStdByEsc", lateralAcceleration);
-    longitudinalAcceleration = extractDouble(node, "ALgtStd", longitudinalAcceleration);
-    yawRate = extractDouble(node, "YawRateStd", yawRate);
-    odometer = extractDouble(node, "OdoDst", odometer);
-    acceleratorPedalRatio= extractDouble(node, "AccrPedlRat", acceleratorPedalRatio);
-    brakeOn = extractBoolean(node, "BrkLiIntenReq", brakeOn);
-    steeringAngle= extractDouble(node, "SteerWhlAgBas", steeringAngle);
-    parkingBrakeOn = extractBoolean(node, "PrkgLiIndcn", parkingBrakeOn);
-    engineRpm= extractDouble(node, "EngN", engineRpm);
-    residualFuel= extractDouble(node, "RestFu", residualFuel);
-    engineTemperature= extractDouble(node, "EngT", engineTemperature);
-    outsideTemperature = extractDouble(node, "OutdT", outsideTemperature);
   }
 
   private String generatePreamble(String service) {
-    return String.format("/DataSender/services/%s?apilkey=%s&userid=%s", service, API_KEY, userid);
+    return generatePreamble(service, userid);
+  }
+
+  private static String generatePreamble(String service, String userids) {
+    return String.format("/DataSender/services/%s?apilkey=%s&userid=%s", service, API_KEY, userids);
+  }
+
+  /**
+   * Generates the request for the current values of parameters.
+   * 
+   * @param userids the vehicle whose values are requested, or a
+   * comma-separated list of vehicles
+   */
+  static String generateDataRequest(String userids) {
+    StringBuilder sb = new StringBuilder(generatePreamble("GetVehicleInfo", userids));
+    sb.append("&now");
+    for (String p : parameter_names)
+      sb.append("&").append(p).append("=1");
+    return sb.toString();
+  }
+
+  /** Gets the URI at which a request is sent to a web service. */
+  static URI serviceUri(URI server, String request) {
+    return HttpTransport.uri(server.getScheme(), server.getAuthority(), request);
   }
 
   /** 
@@ -230,72 +306,26 @@ public class VehicleDataClient {
    * 
    * @param request the "file" portion of the URL at which the web service is
    * contacted. It includes web service access point plus parameters.
-   * @return response received from the web service
+   * @return body of the response received from the web service, which is
+   * empty if the request failed
    */
-  private String callServer(String request) {
+  private ByteBuffer callServer(String request) {
     try {
-      URL url = new URL("https", HOST, request);
-      // System.out.println("REQUEST: " + url);
+      ByteBuffer response = HttpTransport.getDefault().get(serviceUri(server, request));
       if (logger.isLoggable(Level.FINE))
-	logger.fine("Query: " + url);
-      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      String s = convertStreamToString(connection.getInputStream());
-      // System.out.println("RESPONSE: " + s);
-      if (logger.isLoggable(Level.FINE))
-	logger.fine("Response: " + s);
-      return s;
+        logger.fine("Response: " + StandardCharsets.UTF_8.decode(response.duplicate()));
+      return response;
     } catch (Exception e) {
       logger.severe("Error contacting web service: " + e.getMessage());
-      return "";
-    }
-  }
-  
-  private boolean extractBoolean(Node doc, String name, boolean dflt) {
-    String s = extractString(doc, name, dflt ? "1" : "1");
-    try {
-      return Integer.parseInt(s) > 0;
-    } catch (NumberFormatException nfe) {
-      // logger.warning("Bad " + name + " value \"" + s + "\": " + nfe.getMessage());
-      return dflt;
-    }
-  }
-  
-  private double extractDouble(Node doc, String name, double dflt) {
-    String s = extractString(doc, name, Double.toString(dflt));
-    try {
-      return Double.parseDouble(s);
-    } catch (NumberFormatException nfe) {
-      // logger.warning("Bad " + name + " value \"" + s + "\": " + nfe.getMessage());
-      return dflt;
-    }
-  }
-  
-  private String extractString(Node doc, String name, String dflt) {
-    String expression = "data/" + name;
-    try {
-      Node node = (Node) xpath.evaluate(expression, doc, XPathConstants.NODE);
-      if (node == null) {
-	logger.warning("Missing " + expression + " element");
-	return dflt;
-      }
-      return node.getTextContent(); 
-    } catch (XPathExpressionException xpee) {
-      logger.severe("Error extracting " + name + ": " + xpee.getMessage());
-      return dflt;
+      return ByteBuffer.allocate(0);
     }
   }
 
-  private static String convertStreamToString(InputStream is) {
-    Scanner s = new Scanner(is).useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
-  }
-
   /** 
    * Sample data for testing response parsing.
    * This is substituted if -Dorg.kmkmc.useSampleData=true.
    */
-  private static final String SAMPLE_DATA = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n\n" +
+  static final byte[] SAMPLE_DATA = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n\n" +
       "<response>\n" +
       "<carinfo>\n" +
       "<car>\n" +
@@ -322,7 +352,7 @@ public class VehicleDataClient {
       "</data>\n" +
       "</carinfo>\n" +
       "\n" +
-      "</response>\n";
+      "</response>\n").getBytes(StandardCharsets.UTF_8);
 
   /** Unit test. Polls the web service several times and prints vehicle lat/lon after each. */
   public static void main(String[] args) throws Exception {
@@ -0,0 +1,144 @@
+// Copyright (c) 2013 Art Pope. All rights reserved.
+
+package org.kmkmc;
+
+/**
+ * An immutable record of a vehicle's state as of one poll of the web service.
+ * {@link VehicleDataClient} publishes a new snapshot after every poll, so
+ * every value read from one snapshot belongs to the same poll.
+ */
+public final class VehicleSnapshot {
+  /** The snapshot a client publishes before its first poll. */
+  static final VehicleSnapshot STARTUP = new VehicleSnapshot(0, "Startup", 0, new GeographicPoint(0, 0), 0, 0, 0, new CarInfo());
+
+  private final long sequence;
+  private final String status;
+  private final String vid;
+  private final int time;
+  private final GeographicPoint location;
+  private final double heading, velocity;
+  private final long estimateTime;
+  private final double speed, lateralAcceleration, longitudinalAcceleration, yawRate, odometer;
+  private final double acceleratorPedalRatio;
+  private final boolean brakeOn, parkingBrakeOn;
+  private final double steeringAngle, engineRpm, residualFuel, engineTemperature, outsideTemperature;
+
+  /**
+   * Constructs a snapshot.
+   *
+   * @param sequence the number of polls that preceded this one
+   * @param status a summary of the outcome of the poll
+   * @param time the offset into the scenario, in seconds
+   * @param location the estimated location of the vehicle
+   * @param heading the estimated heading, in degrees clockwise from north
+   * @param velocity the estimated speed, in m/s
+   * @param estimateTime the wall time at which the vehicle was at that location, in milliseconds since the epoch
+   * @param info the remaining values, as decoded from the response
+   */
+  VehicleSnapshot(long sequence, String status, int time, GeographicPoint location, double heading, double velocity,
+      long estimateTime, CarInfo info) {
+    this.sequence = sequence;
+    this.status = status;
+    this.vid = info.vid;
+    this.time = time;
+    this.location = location;
+    this.heading = heading;
+    this.velocity = velocity;
+    this.estimateTime = estimateTime;
+    this.speed = info.speed;
+    this.lateralAcceleration = info.lateralAcceleration;
+    this.longitudinalAcceleration = info.longitudinalAcceleration;
+    this.yawRate = info.yawRate;
+    this.odometer = info.odometer;
+    this.acceleratorPedalRatio = info.acceleratorPedalRatio;
+    this.brakeOn = info.brakeOn;
+    this.parkingBrakeOn = info.parkingBrakeOn;
+    this.steeringAngle = info.steeringAngle;
+    this.engineRpm = info.engineRpm;
+    this.residualFuel = info.residualFuel;
+    this.engineTemperature = info.engineTemperature;
+    this.outsideTemperature = info.outsideTemperature;
+  }
+
+  private VehicleSnapshot(VehicleSnapshot other, long sequence, String status) {
+    this.sequence = sequence;
+    this.status = status;
+    this.vid = other.vid;
+    this.time = other.time;
+    this.location = other.location;
+    this.heading = other.heading;
+    this.velocity = other.velocity;
+    this.estimateTime = other.estimateTime;
+    this.speed = other.speed;
+    this.lateralAcceleration = other.lateralAcceleration;
+    this.longitudinalAcceleration = other.longitudinalAcceleration;
+    this.yawRate = other.yawRate;
+    this.odometer = other.odometer;
+    this.acceleratorPedalRatio = other.acceleratorPedalRatio;
+    this.brakeOn = other.brakeOn;
+    this.parkingBrakeOn = other.parkingBrakeOn;
+    this.steeringAngle = other.steeringAngle;
+    this.engineRpm = other.engineRpm;
+    this.residualFuel = other.residualFuel;
+    this.engineTemperature = other.engineTemperature;
+    this.outsideTemperature = other.outsideTemperature;
+  }
+
+  /**
+   * Returns a copy of this snapshot with a new sequence number and status,
+   * for a poll that yielded no new values.
+   */
+  VehicleSnapshot withStatus(long sequence, String status) {
+    return new VehicleSnapshot(this, sequence, status);
+  }
+
+  /** Gets the number of polls that preceded this one. Later snapshots have larger numbers. */
+  public long getSequence() { return sequence; }
+  /** Gets a string summarizing the outcome of the poll. */
+  public String getStatus() { return status; }
+
+  public String vid() { return vid; }
+  public int getTime() { return time; }
+  public GeographicPoint getLocation() { return location; }
+  /**
+   * Gets the wall time of the poll the location was estimated from, in
+   * milliseconds since the epoch, or 0 if it hasn't been.
+   */
+  public long getEstimateTime() { return estimateTime; }
+  /** Gets the estimated heading, in degrees clockwise from north. */
+  public double getHeading() { return heading; }
+
+  /**
+   * Predicts the location of the vehicle at a specified time, by dead
+   * reckoning from the estimated location, heading, speed and yaw rate.
+   *
+   * @param wallTime the time, in milliseconds since the epoch
+   */
+  public GeographicPoint getLocationAt(long wallTime) {
+    if (estimateTime == 0)
+      return location;
+    return PositionEstimator.extrapolate(location, heading, velocity, yawRate, (wallTime - estimateTime) / 1000.0);
+  }
+
+  /** Gets the estimated speed, in m/s. */
+  public double getVelocity() { return velocity; }
+  public double getSpeed() { return speed; }
+  public double getLateralAcceleration() { return lateralAcceleration; }
+  public double getLongitudinalAcceleration() { return longitudinalAcceleration; }
+  public double getYawRate() { return yawRate; }
+  public double getOdometer() { return odometer; }
+
+  public double getAcceleratorPedalRatio() { return acceleratorPedalRatio; }
+  public boolean isBrakeOn() { return brakeOn; }
+  public boolean isParkingBrakeOn() { return parkingBrakeOn; }
+  public double getSteeringAngle() { return steeringAngle; }
+  public double getEngineRpm() { return engineRpm; }
+  public double getResidualFuel() { return residualFuel; }
+  public double getEngineTemperature() { return engineTemperature; }
+  public double getOutsideTemperature() { return outsideTemperature; }
+
+  @Override
+  public String toString() {
+    return "#" + sequence + " " + status + ": time=" + time + ", location=" + location + ", speed=" + speed;
+  }
+}